@@ -1,6 +1,9 @@
 package com.passvault.app;
 
 import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Toast;
 
 import com.passvault.app.storage.VaultRepository;
 
@@ -14,7 +17,23 @@ public class PassVaultApp extends Application {
     public VaultRepository getVaultRepository() {
         if (vaultRepository == null) {
             vaultRepository = new VaultRepository(this);
+            vaultRepository.setWriteListener(new VaultRepository.WriteListener() {
+                @Override
+                public void onWriteFailed(Exception failure) {
+                    showToast(getString(R.string.save_failed_retrying, String.valueOf(failure.getMessage())));
+                }
+
+                @Override
+                public void onWriteRecovered() {
+                    showToast(getString(R.string.save_recovered));
+                }
+            });
         }
         return vaultRepository;
     }
+
+    /** Saves run in the background, after the screen that made them may be gone, so report them app-wide. */
+    private void showToast(String message) {
+        new Handler(Looper.getMainLooper()).post(() -> Toast.makeText(this, message, Toast.LENGTH_LONG).show());
+    }
 }
@@ -0,0 +1,286 @@
+package com.passvault.app.crypto;
+
+import com.passvault.app.util.WorkerPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Pure-Java Argon2id (RFC 9106, version 0x13).
+ * <p>
+ * Memory is one {@code long[]} of 1 KiB blocks split into {@code parallelism} lanes. Within each of the
+ * four slices of a pass the lanes are independent, so they are filled concurrently on {@link WorkerPool}
+ * and joined before the next slice.
+ */
+public final class Argon2id {
+
+    private static final int VERSION = 0x13;
+    private static final int TYPE_ID = 2;
+    private static final int SYNC_POINTS = 4;
+    private static final int BLOCK_LONGS = 128;
+    private static final int BLOCK_BYTES = BLOCK_LONGS * 8;
+
+    private final int iterations;
+    private final int lanes;
+    private final int laneLength;
+    private final int segmentLength;
+    private final int memoryBlocks;
+    private final long[] memory;
+
+    private Argon2id(int iterations, int memoryKib, int lanes) {
+        this.iterations = iterations;
+        this.lanes = lanes;
+        int blocks = Math.max(memoryKib, 2 * SYNC_POINTS * lanes);
+        this.segmentLength = blocks / (lanes * SYNC_POINTS);
+        this.laneLength = segmentLength * SYNC_POINTS;
+        this.memoryBlocks = laneLength * lanes;
+        this.memory = new long[memoryBlocks * BLOCK_LONGS];
+    }
+
+    /**
+     * Derives {@code tagLength} bytes from {@code password} and {@code salt}.
+     *
+     * @param memoryKib memory cost in KiB (1 KiB blocks)
+     * @param parallelism number of lanes, filled concurrently
+     */
+    public static byte[] hash(byte[] password, byte[] salt, int iterations, int memoryKib, int parallelism,
+                              int tagLength) throws InterruptedException {
+        return hash(password, salt, new byte[0], new byte[0], iterations, memoryKib, parallelism, tagLength);
+    }
+
+    static byte[] hash(byte[] password, byte[] salt, byte[] secret, byte[] associatedData, int iterations,
+                       int memoryKib, int parallelism, int tagLength) throws InterruptedException {
+        if (iterations < 1 || parallelism < 1 || tagLength < 4) throw new IllegalArgumentException("Bad Argon2 parameters");
+        Argon2id instance = new Argon2id(iterations, memoryKib, parallelism);
+        try {
+            byte[] h0 = new Blake2b(Blake2b.MAX_OUTPUT)
+                    .updateInt(parallelism).updateInt(tagLength).updateInt(memoryKib).updateInt(iterations)
+                    .updateInt(VERSION).updateInt(TYPE_ID)
+                    .updateInt(password.length).update(password)
+                    .updateInt(salt.length).update(salt)
+                    .updateInt(secret.length).update(secret)
+                    .updateInt(associatedData.length).update(associatedData)
+                    .digest();
+            instance.initialize(h0);
+            Arrays.fill(h0, (byte) 0);
+            instance.fill();
+            return instance.finish(tagLength);
+        } finally {
+            Arrays.fill(instance.memory, 0L);
+        }
+    }
+
+    private void initialize(byte[] h0) {
+        byte[] input = new byte[h0.length + 8];
+        System.arraycopy(h0, 0, input, 0, h0.length);
+        for (int lane = 0; lane < lanes; lane++) {
+            for (int i = 0; i < 2; i++) {
+                putIntLe(input, h0.length, i);
+                putIntLe(input, h0.length + 4, lane);
+                byte[] block = variableHash(input, BLOCK_BYTES);
+                int base = (lane * laneLength + i) * BLOCK_LONGS;
+                for (int k = 0; k < BLOCK_LONGS; k++) {
+                    memory[base + k] = Blake2b.littleEndianLong(block, k * 8);
+                }
+                Arrays.fill(block, (byte) 0);
+            }
+        }
+        Arrays.fill(input, (byte) 0);
+    }
+
+    private void fill() throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<>(lanes);
+        for (int pass = 0; pass < iterations; pass++) {
+            for (int slice = 0; slice < SYNC_POINTS; slice++) {
+                if (lanes == 1) {
+                    fillSegment(pass, 0, slice);
+                    continue;
+                }
+                tasks.clear();
+                final int p = pass;
+                final int s = slice;
+                for (int lane = 0; lane < lanes; lane++) {
+                    final int l = lane;
+                    tasks.add(() -> {
+                        fillSegment(p, l, s);
+                        return null;
+                    });
+                }
+                for (Future<Void> f : WorkerPool.get().invokeAll(tasks)) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException("Argon2 lane failed", e.getCause());
+                    }
+                }
+            }
+        }
+    }
+
+    private void fillSegment(int pass, int lane, int slice) {
+        boolean dataIndependent = pass == 0 && slice < SYNC_POINTS / 2;
+        long[] address = null;
+        long[] input = null;
+        long[] zero = null;
+        long[] scratchR = new long[BLOCK_LONGS];
+        long[] scratchT = new long[BLOCK_LONGS];
+        if (dataIndependent) {
+            address = new long[BLOCK_LONGS];
+            input = new long[BLOCK_LONGS];
+            zero = new long[BLOCK_LONGS];
+            input[0] = pass;
+            input[1] = lane;
+            input[2] = slice;
+            input[3] = memoryBlocks;
+            input[4] = iterations;
+            input[5] = TYPE_ID;
+        }
+        int start = 0;
+        if (pass == 0 && slice == 0) {
+            start = 2;
+            if (dataIndependent) nextAddresses(address, input, zero, scratchR, scratchT);
+        }
+        int current = lane * laneLength + slice * segmentLength + start;
+        int previous = current % laneLength == 0 ? current + laneLength - 1 : current - 1;
+        for (int i = start; i < segmentLength; i++, current++, previous++) {
+            if (current % laneLength == 1) previous = current - 1;
+            long pseudoRandom;
+            if (dataIndependent) {
+                if (i % BLOCK_LONGS == 0) nextAddresses(address, input, zero, scratchR, scratchT);
+                pseudoRandom = address[i % BLOCK_LONGS];
+            } else {
+                pseudoRandom = memory[previous * BLOCK_LONGS];
+            }
+            int refLane = (int) ((pseudoRandom >>> 32) % lanes);
+            if (pass == 0 && slice == 0) refLane = lane;
+            int refIndex = indexAlpha(pass, slice, i, pseudoRandom & 0xFFFFFFFFL, refLane == lane);
+            fillBlock(memory, previous * BLOCK_LONGS, memory, (refLane * laneLength + refIndex) * BLOCK_LONGS,
+                    memory, current * BLOCK_LONGS, pass != 0, scratchR, scratchT);
+        }
+    }
+
+    private int indexAlpha(int pass, int slice, int index, long pseudoRandom, boolean sameLane) {
+        long areaSize;
+        if (pass == 0) {
+            if (slice == 0) {
+                areaSize = index - 1;
+            } else if (sameLane) {
+                areaSize = (long) slice * segmentLength + index - 1;
+            } else {
+                areaSize = (long) slice * segmentLength + (index == 0 ? -1 : 0);
+            }
+        } else {
+            if (sameLane) {
+                areaSize = laneLength - segmentLength + index - 1;
+            } else {
+                areaSize = laneLength - segmentLength + (index == 0 ? -1 : 0);
+            }
+        }
+        long relative = (pseudoRandom * pseudoRandom) >>> 32;
+        relative = areaSize - 1 - ((areaSize * relative) >>> 32);
+        long startPosition = 0;
+        if (pass != 0) startPosition = slice == SYNC_POINTS - 1 ? 0 : (long) (slice + 1) * segmentLength;
+        return (int) ((startPosition + relative) % laneLength);
+    }
+
+    private static void nextAddresses(long[] address, long[] input, long[] zero, long[] r, long[] t) {
+        input[6]++;
+        fillBlock(zero, 0, input, 0, address, 0, false, r, t);
+        fillBlock(zero, 0, address, 0, address, 0, false, r, t);
+    }
+
+    /** Compression function G: next = P(prev ^ ref) ^ (prev ^ ref) [^ next when xoring into a later pass]. */
+    private static void fillBlock(long[] prevArr, int prev, long[] refArr, int ref, long[] nextArr, int next,
+                                  boolean withXor, long[] r, long[] t) {
+        for (int i = 0; i < BLOCK_LONGS; i++) {
+            r[i] = prevArr[prev + i] ^ refArr[ref + i];
+            t[i] = withXor ? r[i] ^ nextArr[next + i] : r[i];
+        }
+        for (int i = 0; i < 8; i++) {
+            int b = 16 * i;
+            round(r, b, b + 1, b + 2, b + 3, b + 4, b + 5, b + 6, b + 7,
+                    b + 8, b + 9, b + 10, b + 11, b + 12, b + 13, b + 14, b + 15);
+        }
+        for (int i = 0; i < 8; i++) {
+            int b = 2 * i;
+            round(r, b, b + 1, b + 16, b + 17, b + 32, b + 33, b + 48, b + 49,
+                    b + 64, b + 65, b + 80, b + 81, b + 96, b + 97, b + 112, b + 113);
+        }
+        for (int i = 0; i < BLOCK_LONGS; i++) {
+            nextArr[next + i] = t[i] ^ r[i];
+        }
+    }
+
+    private static void round(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6, int v7,
+                              int v8, int v9, int v10, int v11, int v12, int v13, int v14, int v15) {
+        g(v, v0, v4, v8, v12);
+        g(v, v1, v5, v9, v13);
+        g(v, v2, v6, v10, v14);
+        g(v, v3, v7, v11, v15);
+        g(v, v0, v5, v10, v15);
+        g(v, v1, v6, v11, v12);
+        g(v, v2, v7, v8, v13);
+        g(v, v3, v4, v9, v14);
+    }
+
+    private static void g(long[] v, int a, int b, int c, int d) {
+        v[a] = blaMka(v[a], v[b]);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = blaMka(v[c], v[d]);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = blaMka(v[a], v[b]);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = blaMka(v[c], v[d]);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+
+    private static long blaMka(long x, long y) {
+        return x + y + 2 * (x & 0xFFFFFFFFL) * (y & 0xFFFFFFFFL);
+    }
+
+    private byte[] finish(int tagLength) {
+        long[] last = new long[BLOCK_LONGS];
+        for (int lane = 0; lane < lanes; lane++) {
+            int base = (lane * laneLength + laneLength - 1) * BLOCK_LONGS;
+            for (int k = 0; k < BLOCK_LONGS; k++) last[k] ^= memory[base + k];
+        }
+        byte[] bytes = new byte[BLOCK_BYTES];
+        for (int k = 0; k < BLOCK_LONGS; k++) {
+            for (int j = 0; j < 8; j++) bytes[k * 8 + j] = (byte) (last[k] >>> (8 * j));
+        }
+        byte[] tag = variableHash(bytes, tagLength);
+        Arrays.fill(bytes, (byte) 0);
+        Arrays.fill(last, 0L);
+        return tag;
+    }
+
+    /** H' from RFC 9106 section 3.3: BLAKE2b extended to arbitrary output length. */
+    private static byte[] variableHash(byte[] input, int length) {
+        if (length <= Blake2b.MAX_OUTPUT) {
+            return new Blake2b(length).updateInt(length).update(input).digest();
+        }
+        byte[] out = new byte[length];
+        byte[] v = new Blake2b(Blake2b.MAX_OUTPUT).updateInt(length).update(input).digest();
+        int r = (length + 31) / 32 - 2;
+        int offset = 0;
+        for (int i = 0; i < r; i++) {
+            System.arraycopy(v, 0, out, offset, 32);
+            offset += 32;
+            if (i < r - 1) v = new Blake2b(Blake2b.MAX_OUTPUT).update(v).digest();
+        }
+        byte[] tail = new Blake2b(length - 32 * r).update(v).digest();
+        System.arraycopy(tail, 0, out, offset, tail.length);
+        return out;
+    }
+
+    private static void putIntLe(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+        b[offset + 2] = (byte) (value >>> 16);
+        b[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,75 @@
+package com.passvault.app.crypto;
+
+import com.passvault.app.data.KdfAlgorithm;
+
+/**
+ * Per-vault key derivation algorithm and cost, stored next to the salt.
+ * For PBKDF2 only {@link #getIterations()} applies; Argon2id also uses memory (KiB) and parallelism (lanes).
+ */
+public final class KdfParams {
+
+    /** Iterations used by every vault before calibration existed. */
+    public static final int DEFAULT_PBKDF2_ITERATIONS = 120000;
+    public static final int MIN_PBKDF2_ITERATIONS = 50000;
+    public static final int MAX_PBKDF2_ITERATIONS = 5000000;
+
+    public static final int DEFAULT_ARGON2_MEMORY_KIB = 32 * 1024;
+    public static final int MIN_ARGON2_MEMORY_KIB = 8 * 1024;
+    public static final int MAX_ARGON2_MEMORY_KIB = 256 * 1024;
+    public static final int MIN_ARGON2_ITERATIONS = 1;
+    public static final int MAX_ARGON2_ITERATIONS = 10;
+    public static final int MAX_ARGON2_LANES = 8;
+
+    private final KdfAlgorithm algorithm;
+    private final int iterations;
+    private final int memoryKib;
+    private final int parallelism;
+
+    public KdfParams(int iterations) {
+        this(KdfAlgorithm.PBKDF2_SHA256, iterations, 0, 1);
+    }
+
+    private KdfParams(KdfAlgorithm algorithm, int iterations, int memoryKib, int parallelism) {
+        this.algorithm = algorithm;
+        if (algorithm == KdfAlgorithm.ARGON2ID) {
+            this.iterations = clamp(iterations, MIN_ARGON2_ITERATIONS, MAX_ARGON2_ITERATIONS);
+            this.memoryKib = clamp(memoryKib, MIN_ARGON2_MEMORY_KIB, MAX_ARGON2_MEMORY_KIB);
+            this.parallelism = clamp(parallelism, 1, MAX_ARGON2_LANES);
+        } else {
+            this.iterations = clamp(iterations, MIN_PBKDF2_ITERATIONS, MAX_PBKDF2_ITERATIONS);
+            this.memoryKib = 0;
+            this.parallelism = 1;
+        }
+    }
+
+    public static KdfParams defaults() {
+        return new KdfParams(DEFAULT_PBKDF2_ITERATIONS);
+    }
+
+    public static KdfParams argon2id(int iterations, int memoryKib, int parallelism) {
+        return new KdfParams(KdfAlgorithm.ARGON2ID, iterations, memoryKib, parallelism);
+    }
+
+    public KdfAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /** PBKDF2 iteration count, or Argon2 passes over memory. */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /** Argon2 memory cost in KiB; 0 for PBKDF2. */
+    public int getMemoryKib() {
+        return memoryKib;
+    }
+
+    /** Argon2 lanes, filled on separate cores; 1 for PBKDF2. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    private static int clamp(int v, int min, int max) {
+        return v < min ? min : (v > max ? max : v);
+    }
+}
@@ -2,25 +2,55 @@ package com.passvault.app.crypto;
 
 import android.util.Base64;
 
+import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.data.KdfAlgorithm;
+import com.passvault.app.util.WorkerPool;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Derives encryption key and verification hash from master password + salt.
+ * The password KDF (PBKDF2 or Argon2id) runs once per unlock; key and verifier are expanded from its output
+ * (HKDF-Expand, RFC 5869). Algorithm and cost are per vault ({@link KdfParams}) and picked by {@link #calibrate}
+ * for a target unlock time.
+ * <p>
+ * Since {@link #VERSION_ENVELOPE} the vault is encrypted with a random data key (DEK) that is stored wrapped
+ * by the password-derived key ({@link #wrapDataKey}), so a password change only re-wraps 32 bytes.
  */
 public final class KeyDerivation {
 
+    /** Vaults created before versioning: key and verification hash are the same raw PBKDF2 output. */
+    public static final int VERSION_LEGACY = 1;
+    /** One PBKDF2 run, split into independent key and verifier with HKDF-Expand. */
+    public static final int VERSION_SPLIT = 2;
+    /** Random data key wrapped (AES-GCM) by a key-encryption key split from the KDF output. */
+    public static final int VERSION_ENVELOPE = 3;
+    public static final int CURRENT_VERSION = VERSION_ENVELOPE;
+
     private static final int SALT_BYTES = 32;
-    private static final int KEY_ITERATIONS = 120000;
-    private static final int KEY_BIT_LENGTH = 256;
-    private static final int HASH_ITERATIONS = 120000;
-    private static final int HASH_BIT_LENGTH = 256;
+    private static final int CALIBRATION_PROBE_ITERATIONS = 10000;
+    private static final long CALIBRATION_MIN_NANOS = 50_000_000L;
+    private static final int ARGON2_DEFAULT_LANES = 4;
+    private static final int MASTER_BIT_LENGTH = 256;
+    private static final int KEY_BYTES = 32;
+    private static final int VERIFIER_BYTES = 32;
+    private static final int DATA_KEY_BYTES = 32;
+    private static final String HMAC = "HmacSHA256";
+    private static final byte[] INFO_KEY = "passvault-encryption-key".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INFO_VERIFIER = "passvault-verifier".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INFO_WRAPPING_KEY = "passvault-key-wrapping-key".getBytes(StandardCharsets.UTF_8);
 
     private KeyDerivation() {
     }
@@ -32,25 +62,188 @@ public final class KeyDerivation {
         return salt;
     }
 
-    public static byte[] deriveKey(char[] password, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        KeySpec spec = new PBEKeySpec(password, salt, KEY_ITERATIONS, KEY_BIT_LENGTH);
-        SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        return f.generateSecret(spec).getEncoded();
+    /** Fresh random data-encryption key for a new vault. */
+    public static byte[] generateDataKey() {
+        byte[] key = new byte[DATA_KEY_BYTES];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    /** Encrypts the data key under the wrapping key (AES-GCM, tagged binary format). */
+    public static byte[] wrapDataKey(byte[] wrappingKey, byte[] dataKey) throws GeneralSecurityException {
+        VaultCipher kek = VaultCipher.uncached(wrappingKey);
+        try {
+            return kek.encrypt(dataKey, EncryptionMethod.AES_256_GCM);
+        } finally {
+            kek.destroy();
+        }
+    }
+
+    /** Reverses {@link #wrapDataKey}; fails authentication if the wrapping key is wrong or the blob was modified. */
+    public static byte[] unwrapDataKey(byte[] wrappingKey, byte[] wrapped) throws GeneralSecurityException {
+        VaultCipher kek = VaultCipher.uncached(wrappingKey);
+        byte[] key;
+        try {
+            key = kek.decrypt(wrapped);
+        } finally {
+            kek.destroy();
+        }
+        if (key.length != DATA_KEY_BYTES) throw new GeneralSecurityException("Bad data key length");
+        return key;
+    }
+
+    /**
+     * Runs the password KDF once and returns the encryption key plus the verifier for the given scheme version.
+     */
+    public static DerivedKeys derive(char[] password, byte[] salt, int version, KdfParams params)
+            throws GeneralSecurityException {
+        byte[] master = params.getAlgorithm() == KdfAlgorithm.ARGON2ID
+                ? argon2id(password, salt, params)
+                : pbkdf2(password, salt, params.getIterations());
+        if (version == VERSION_LEGACY) {
+            return new DerivedKeys(master, Base64.encodeToString(master, Base64.NO_WRAP), null);
+        }
+        try {
+            return split(master);
+        } finally {
+            Arrays.fill(master, (byte) 0);
+        }
+    }
+
+    /**
+     * Converts legacy keys to the current scheme without another PBKDF2 run
+     * (the legacy key is the raw PBKDF2 output, i.e. the master secret).
+     */
+    public static DerivedKeys upgradeLegacy(DerivedKeys legacy) throws GeneralSecurityException {
+        return split(legacy.getEncryptionKey());
+    }
+
+    /**
+     * Measures KDF throughput on this device and returns parameters for {@code algorithm} whose derivation
+     * takes about {@code targetMillis}. PBKDF2 scales its iteration count; Argon2id keeps its memory cost
+     * (halved only if a single pass is already over budget) and scales the number of passes.
+     */
+    public static KdfParams calibrate(KdfAlgorithm algorithm, long targetMillis) throws GeneralSecurityException {
+        if (algorithm == KdfAlgorithm.ARGON2ID) return calibrateArgon2id(targetMillis);
+        char[] probePassword = "calibration".toCharArray();
+        byte[] probeSalt = new byte[SALT_BYTES];
+        pbkdf2(probePassword, probeSalt, CALIBRATION_PROBE_ITERATIONS); // warm up provider
+        long iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            pbkdf2(probePassword, probeSalt, CALIBRATION_PROBE_ITERATIONS);
+            iterations += CALIBRATION_PROBE_ITERATIONS;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < CALIBRATION_MIN_NANOS);
+        long perTarget = iterations * targetMillis * 1_000_000L / elapsed;
+        long rounded = perTarget / 1000 * 1000;
+        return new KdfParams((int) Math.min(Integer.MAX_VALUE, rounded));
     }
 
-    public static String deriveHashForVerification(char[] password, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        KeySpec spec = new PBEKeySpec(password, salt, HASH_ITERATIONS, HASH_BIT_LENGTH);
+    private static KdfParams calibrateArgon2id(long targetMillis) throws GeneralSecurityException {
+        char[] probePassword = "calibration".toCharArray();
+        byte[] probeSalt = new byte[SALT_BYTES];
+        int lanes = Math.min(WorkerPool.parallelism(), ARGON2_DEFAULT_LANES);
+        int memoryKib = KdfParams.DEFAULT_ARGON2_MEMORY_KIB;
+        long targetNanos = targetMillis * 1_000_000L;
+        long elapsed;
+        while (true) {
+            KdfParams probe = KdfParams.argon2id(1, memoryKib, lanes);
+            long start = System.nanoTime();
+            Arrays.fill(argon2id(probePassword, probeSalt, probe), (byte) 0);
+            elapsed = System.nanoTime() - start;
+            if (elapsed <= targetNanos || memoryKib / 2 < KdfParams.MIN_ARGON2_MEMORY_KIB) break;
+            memoryKib /= 2;
+        }
+        long passes = targetNanos / Math.max(1, elapsed);
+        return KdfParams.argon2id((int) Math.min(KdfParams.MAX_ARGON2_ITERATIONS, Math.max(1, passes)), memoryKib, lanes);
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        KeySpec spec = new PBEKeySpec(password, salt, iterations, MASTER_BIT_LENGTH);
         SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        byte[] hash = f.generateSecret(spec).getEncoded();
-        return Base64.encodeToString(hash, Base64.NO_WRAP);
+        return f.generateSecret(spec).getEncoded();
     }
 
-    public static boolean verifyPassword(char[] password, byte[] salt, String storedHash) {
+    /** Argon2id over the UTF-8 password; lanes are filled in parallel on {@link WorkerPool}. */
+    private static byte[] argon2id(char[] password, byte[] salt, KdfParams params) throws GeneralSecurityException {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
         try {
-            String computed = deriveHashForVerification(password, salt);
-            return computed != null && computed.equals(storedHash);
-        } catch (Exception e) {
-            return false;
+            return Argon2id.hash(bytes, salt, params.getIterations(), params.getMemoryKib(),
+                    params.getParallelism(), MASTER_BIT_LENGTH / 8);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Key derivation interrupted", e);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+            if (encoded.hasArray()) Arrays.fill(encoded.array(), (byte) 0);
+        }
+    }
+
+    private static DerivedKeys split(byte[] master) throws GeneralSecurityException {
+        byte[] key = hkdfExpand(master, INFO_KEY, KEY_BYTES);
+        byte[] verifier = hkdfExpand(master, INFO_VERIFIER, VERIFIER_BYTES);
+        byte[] wrappingKey = hkdfExpand(master, INFO_WRAPPING_KEY, KEY_BYTES);
+        String encoded = Base64.encodeToString(verifier, Base64.NO_WRAP);
+        Arrays.fill(verifier, (byte) 0);
+        return new DerivedKeys(key, encoded, wrappingKey);
+    }
+
+    /** HKDF-Expand with HMAC-SHA256; the PBKDF2 output is already uniform, so it is used as PRK directly. */
+    static byte[] hkdfExpand(byte[] prk, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(prk, HMAC));
+        byte[] out = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (int counter = 1; offset < length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, out, offset, n);
+            offset += n;
+        }
+        return out;
+    }
+
+    /**
+     * Result of one derivation: key for {@link VaultCipher} (split scheme), key-encryption key for the
+     * data key (envelope scheme) and the Base64 verifier kept in prefs.
+     */
+    public static final class DerivedKeys {
+        private final byte[] encryptionKey;
+        private final String verifier;
+        private final byte[] wrappingKey;
+
+        DerivedKeys(byte[] encryptionKey, String verifier, byte[] wrappingKey) {
+            this.encryptionKey = encryptionKey;
+            this.verifier = verifier;
+            this.wrappingKey = wrappingKey;
+        }
+
+        public byte[] getEncryptionKey() {
+            return encryptionKey;
+        }
+
+        /** Key that wraps the data key; null for legacy derivations. */
+        public byte[] getWrappingKey() {
+            return wrappingKey;
+        }
+
+        public String getVerifier() {
+            return verifier;
+        }
+
+        /** Constant-time comparison against the stored verifier. */
+        public boolean matches(String storedVerifier) {
+            if (storedVerifier == null) return false;
+            return MessageDigest.isEqual(verifier.getBytes(StandardCharsets.UTF_8),
+                    storedVerifier.getBytes(StandardCharsets.UTF_8));
         }
     }
 }
@@ -0,0 +1,219 @@
+package com.passvault.app.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.passvault.app.data.EncryptionMethod;
+
+/**
+ * Seals independently authenticated segments of one payload (STREAM construction).
+ * <p>
+ * Each payload gets a random salt; the segment key is expanded from the vault key and that salt,
+ * so nonces only need to be unique within the payload. A segment's index and a "last segment"
+ * flag are bound into its nonce (GCM) or MAC input (CBC), so reordered, dropped or truncated
+ * segments fail authentication. CBC segments use encrypt-then-MAC with HMAC-SHA256.
+ */
+public final class SegmentCipher {
+
+    public static final int SALT_LENGTH = 16;
+
+    private static final int GCM_NONCE_LENGTH = 12;
+    private static final int GCM_TAG_BYTES = 16;
+    private static final int CBC_IV_LENGTH = 16;
+    private static final int CBC_BLOCK = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final String HMAC = "HmacSHA256";
+    private static final byte[] INFO_KEY = "passvault-segment-key".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INFO_MAC = "passvault-segment-mac".getBytes(StandardCharsets.UTF_8);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> GCM_CIPHER = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> CBC_CIPHER = new ThreadLocal<>();
+    private static final ThreadLocal<Mac> MAC = new ThreadLocal<>();
+
+    private final EncryptionMethod method;
+    private final byte[] salt;
+    private final SecretKeySpec segmentKey;
+    private final SecretKeySpec macKey;
+
+    private SegmentCipher(byte[] key, EncryptionMethod method, byte[] salt) throws GeneralSecurityException {
+        this.method = method;
+        this.salt = salt;
+        this.segmentKey = new SecretKeySpec(KeyDerivation.hkdfExpand(key, concat(INFO_KEY, salt), 32), "AES");
+        this.macKey = method == EncryptionMethod.AES_256_CBC
+                ? new SecretKeySpec(KeyDerivation.hkdfExpand(key, concat(INFO_MAC, salt), 32), HMAC)
+                : null;
+    }
+
+    /** New payload with a fresh random salt (for writing). */
+    public static SegmentCipher create(byte[] key, EncryptionMethod method) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return new SegmentCipher(key, method, salt);
+    }
+
+    /** Existing payload from its header fields (for reading). */
+    public static SegmentCipher open(byte[] key, byte methodTag, byte[] salt) throws GeneralSecurityException {
+        return new SegmentCipher(key, VaultCipher.methodOf(methodTag), salt.clone());
+    }
+
+    public EncryptionMethod getMethod() {
+        return method;
+    }
+
+    public byte getMethodTag() {
+        return VaultCipher.tagOf(method);
+    }
+
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    /** Largest sealed size of a segment holding {@code plainLength} bytes. */
+    public int maxSealedSize(int plainLength) {
+        if (method == EncryptionMethod.AES_256_GCM) return plainLength + GCM_TAG_BYTES;
+        return CBC_IV_LENGTH + (plainLength / CBC_BLOCK + 1) * CBC_BLOCK + MAC_LENGTH;
+    }
+
+    /**
+     * Seals {@code plain[offset, offset + length)} as segment {@code index} into {@code out} at {@code outOffset}.
+     *
+     * @return sealed length
+     */
+    public int seal(byte[] plain, int offset, int length, int index, boolean last, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        if (method == EncryptionMethod.AES_256_GCM) {
+            Cipher cipher = cipher(GCM_CIPHER, "AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, segmentKey, new GCMParameterSpec(GCM_TAG_BYTES * 8, nonce(index, last)));
+            return cipher.doFinal(plain, offset, length, out, outOffset);
+        }
+        byte[] iv = new byte[CBC_IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        System.arraycopy(iv, 0, out, outOffset, CBC_IV_LENGTH);
+        Cipher cipher = cipher(CBC_CIPHER, "AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, segmentKey, new IvParameterSpec(iv));
+        int n = CBC_IV_LENGTH + cipher.doFinal(plain, offset, length, out, outOffset + CBC_IV_LENGTH);
+        byte[] tag = mac(index, last, out, outOffset, n);
+        System.arraycopy(tag, 0, out, outOffset + n, MAC_LENGTH);
+        return n + MAC_LENGTH;
+    }
+
+    /**
+     * Opens segment {@code index} from {@code sealed[offset, offset + length)} into {@code out} at {@code outOffset}.
+     *
+     * @return plaintext length
+     * @throws AEADBadTagException if the segment was modified, moved, or its last flag does not match
+     */
+    public int open(byte[] sealed, int offset, int length, int index, boolean last, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        if (method == EncryptionMethod.AES_256_GCM) {
+            Cipher cipher = cipher(GCM_CIPHER, "AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, segmentKey, new GCMParameterSpec(GCM_TAG_BYTES * 8, nonce(index, last)));
+            return cipher.doFinal(sealed, offset, length, out, outOffset);
+        }
+        int body = length - MAC_LENGTH;
+        if (body < CBC_IV_LENGTH + CBC_BLOCK) throw new AEADBadTagException("Segment too short");
+        byte[] expected = mac(index, last, sealed, offset, body);
+        byte[] actual = new byte[MAC_LENGTH];
+        System.arraycopy(sealed, offset + body, actual, 0, MAC_LENGTH);
+        if (!MessageDigest.isEqual(expected, actual)) throw new AEADBadTagException("Segment MAC mismatch");
+        Cipher cipher = cipher(CBC_CIPHER, "AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, segmentKey, new IvParameterSpec(sealed, offset, CBC_IV_LENGTH));
+        return cipher.doFinal(sealed, offset + CBC_IV_LENGTH, body - CBC_IV_LENGTH, out, outOffset);
+    }
+
+    /**
+     * Opens segment {@code index} from the remaining bytes of {@code sealed} into {@code out} at {@code outOffset}.
+     * Reads a direct or memory-mapped buffer in place, without copying the ciphertext to the heap; the buffer's
+     * position is not changed.
+     *
+     * @return plaintext length
+     */
+    public int open(ByteBuffer sealed, int index, boolean last, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        if (sealed.hasArray()) {
+            return open(sealed.array(), sealed.arrayOffset() + sealed.position(), sealed.remaining(), index, last,
+                    out, outOffset);
+        }
+        ByteBuffer in = sealed.duplicate();
+        ByteBuffer target = ByteBuffer.wrap(out, outOffset, out.length - outOffset);
+        if (method == EncryptionMethod.AES_256_GCM) {
+            Cipher cipher = cipher(GCM_CIPHER, "AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, segmentKey, new GCMParameterSpec(GCM_TAG_BYTES * 8, nonce(index, last)));
+            return cipher.doFinal(in, target);
+        }
+        int body = in.remaining() - MAC_LENGTH;
+        if (body < CBC_IV_LENGTH + CBC_BLOCK) throw new AEADBadTagException("Segment too short");
+        Mac mac = mac(index, last);
+        ByteBuffer macInput = in.duplicate();
+        macInput.limit(macInput.position() + body);
+        mac.update(macInput);
+        byte[] expected = mac.doFinal();
+        byte[] actual = new byte[MAC_LENGTH];
+        ByteBuffer tag = in.duplicate();
+        tag.position(tag.position() + body);
+        tag.get(actual);
+        if (!MessageDigest.isEqual(expected, actual)) throw new AEADBadTagException("Segment MAC mismatch");
+        byte[] iv = new byte[CBC_IV_LENGTH];
+        in.get(iv);
+        in.limit(in.position() + body - CBC_IV_LENGTH);
+        Cipher cipher = cipher(CBC_CIPHER, "AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, segmentKey, new IvParameterSpec(iv));
+        return cipher.doFinal(in, target);
+    }
+
+    /** GCM nonce: 7 zero bytes, big-endian segment index, last flag. */
+    private static byte[] nonce(int index, boolean last) {
+        byte[] nonce = new byte[GCM_NONCE_LENGTH];
+        nonce[7] = (byte) (index >>> 24);
+        nonce[8] = (byte) (index >>> 16);
+        nonce[9] = (byte) (index >>> 8);
+        nonce[10] = (byte) index;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+
+    private byte[] mac(int index, boolean last, byte[] data, int offset, int length) throws GeneralSecurityException {
+        Mac mac = mac(index, last);
+        mac.update(data, offset, length);
+        return mac.doFinal();
+    }
+
+    /** Thread's HMAC, initialized with the MAC key and fed the segment nonce. */
+    private Mac mac(int index, boolean last) throws GeneralSecurityException {
+        Mac mac = MAC.get();
+        if (mac == null) {
+            mac = Mac.getInstance(HMAC);
+            MAC.set(mac);
+        }
+        mac.init(macKey);
+        mac.update(nonce(index, last));
+        return mac;
+    }
+
+    private static Cipher cipher(ThreadLocal<Cipher> cache, String transformation) throws GeneralSecurityException {
+        Cipher cipher = cache.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            cache.set(cipher);
+        }
+        return cipher;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = new byte[a.length + b.length];
+        System.arraycopy(a, 0, out, 0, a.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+}
@@ -0,0 +1,99 @@
+package com.passvault.app.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * Decrypts a stream written by {@link SegmentedOutputStream}, one segment at a time.
+ * A segment is only returned after it authenticated; a stream that ends without a segment marked
+ * last (truncation) fails with an {@link IOException}.
+ */
+public final class SegmentedInputStream extends InputStream {
+
+    private final InputStream in;
+    private final SegmentCipher cipher;
+    private final byte[] sealed;
+    private final byte[] plain = new byte[SegmentedOutputStream.SEGMENT_SIZE + 32];
+    private int plainPos;
+    private int plainLen;
+    private int index;
+    private int lookahead = -1;
+    private boolean finished;
+
+    public SegmentedInputStream(InputStream in, byte[] key) throws IOException {
+        this.in = in;
+        int tag = in.read();
+        if (tag < 0) throw new EOFException("Missing segment header");
+        byte[] salt = new byte[SegmentCipher.SALT_LENGTH];
+        readFully(salt, 0, salt.length);
+        try {
+            this.cipher = SegmentCipher.open(key, (byte) tag, salt);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Invalid segment header", e);
+        }
+        this.sealed = new byte[cipher.maxSealedSize(SegmentedOutputStream.SEGMENT_SIZE)];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return plain[plainPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, plainLen - plainPos);
+        System.arraycopy(plain, plainPos, b, off, n);
+        plainPos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        java.util.Arrays.fill(plain, (byte) 0);
+        in.close();
+    }
+
+    /** Ensures buffered plaintext is available; false at the authenticated end of the stream. */
+    private boolean fill() throws IOException {
+        while (plainPos == plainLen) {
+            if (finished) return false;
+            readSegment();
+        }
+        return true;
+    }
+
+    private void readSegment() throws IOException {
+        int n = 0;
+        if (lookahead >= 0) {
+            sealed[n++] = (byte) lookahead;
+            lookahead = -1;
+        }
+        while (n < sealed.length) {
+            int r = in.read(sealed, n, sealed.length - n);
+            if (r < 0) break;
+            n += r;
+        }
+        boolean last = n < sealed.length || (lookahead = in.read()) < 0;
+        try {
+            plainLen = cipher.open(sealed, 0, n, index++, last, plain, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Vault segment " + (index - 1) + " failed authentication (modified or truncated)", e);
+        }
+        plainPos = 0;
+        finished = last;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int r = in.read(b, off, len);
+            if (r < 0) throw new EOFException("Missing segment header");
+            off += r;
+            len -= r;
+        }
+    }
+}
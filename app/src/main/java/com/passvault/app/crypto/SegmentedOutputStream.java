@@ -0,0 +1,80 @@
+package com.passvault.app.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import com.passvault.app.data.EncryptionMethod;
+
+/**
+ * Encrypts everything written to it as fixed-size {@link SegmentCipher} segments.
+ * <p>
+ * Layout: {@code [method tag][salt][segment 0]...[segment n]}; every segment but the last holds
+ * exactly {@link #SEGMENT_SIZE} plaintext bytes. Only one segment is buffered at a time.
+ * {@link #close()} seals the final segment and closes the underlying stream.
+ */
+public final class SegmentedOutputStream extends OutputStream {
+
+    public static final int SEGMENT_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final SegmentCipher cipher;
+    private final byte[] plain = new byte[SEGMENT_SIZE];
+    private final byte[] sealed;
+    private int buffered;
+    private int index;
+    private boolean closed;
+
+    public SegmentedOutputStream(OutputStream out, byte[] key, EncryptionMethod method) throws IOException {
+        this.out = out;
+        try {
+            this.cipher = SegmentCipher.create(key, method);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot init segment cipher", e);
+        }
+        this.sealed = new byte[cipher.maxSealedSize(SEGMENT_SIZE)];
+        out.write(cipher.getMethodTag());
+        out.write(cipher.getSalt());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffered == SEGMENT_SIZE) flushSegment(false);
+        plain[buffered++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            // A full buffer is only sealed once more data arrives, so the last segment is known at close.
+            if (buffered == SEGMENT_SIZE) flushSegment(false);
+            int n = Math.min(len, SEGMENT_SIZE - buffered);
+            System.arraycopy(b, off, plain, buffered, n);
+            buffered += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            flushSegment(true);
+        } finally {
+            java.util.Arrays.fill(plain, (byte) 0);
+            out.close();
+        }
+    }
+
+    private void flushSegment(boolean last) throws IOException {
+        try {
+            int n = cipher.seal(plain, 0, buffered, index++, last, sealed, 0);
+            out.write(sealed, 0, n);
+            buffered = 0;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Segment encryption failed", e);
+        }
+    }
+}
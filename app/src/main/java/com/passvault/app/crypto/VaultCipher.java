@@ -2,11 +2,21 @@ package com.passvault.app.crypto;
 
 import android.util.Base64;
 
+import com.passvault.app.util.WorkerPool;
+
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -15,6 +25,19 @@ import com.passvault.app.data.EncryptionMethod;
 
 /**
  * Encrypt/decrypt vault payload using AES with the chosen method.
+ * <p>
+ * An instance is bound to one key ({@link #forKey}); its {@code Cipher} objects are cached per thread
+ * and IVs come from a per-thread pool filled by one shared {@link SecureRandom}, so encrypting many
+ * small fields does not pay for provider lookups and RNG setup on every call. The key is held in a
+ * {@link SecretKey} of its own that {@link #destroy} zeroes, after re-keying every {@code Cipher} the
+ * engine handed out, so nothing it owns still references the key.
+ * <p>
+ * The binary API ({@code byte[]} / {@link ByteBuffer}) produces {@code [method tag][IV][ciphertext]}
+ * and is what storages persist. The String API (Base64 of {@code [IV][ciphertext]}, no tag) is a thin
+ * wrapper kept for data written before the binary format.
+ * <p>
+ * {@link #encryptAll} / {@link #decryptAll} handle many fields per call: one cipher lookup per range,
+ * exact-size outputs allocated up front, and large batches split across {@link WorkerPool}.
  */
 public final class VaultCipher {
 
@@ -22,87 +45,381 @@ public final class VaultCipher {
     private static final int GCM_TAG_LENGTH = 128;
     private static final int CBC_IV_LENGTH = 16;
     private static final String AES = "AES";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    private static final byte TAG_GCM = 1;
+    private static final byte TAG_CBC = 2;
+    private static final int TAG_LENGTH = 1;
+    /** Below this many fields a batch runs on the calling thread; fan-out would cost more than it saves. */
+    private static final int PARALLEL_MIN_FIELDS = 256;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<NoncePool> NONCES = new ThreadLocal<>();
+
+    /** Engine for the most recently used key; vault code uses one key per unlocked session. Cleared on lock. */
+    private static volatile VaultCipher lastEngine;
+
+    private final EngineKey key;
+    private final ThreadLocal<Cipher> gcmCipher = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> cbcCipher = new ThreadLocal<>();
+    /** Every Cipher this engine initialized, on any thread; re-keyed by {@link #destroy}. */
+    private final List<Cipher> issued = new ArrayList<>();
 
-    private VaultCipher() {
+    private VaultCipher(byte[] key) {
+        this.key = new EngineKey(key);
+    }
+
+    /** Returns an engine for {@code key}, reusing the cached one while the key stays the same. */
+    public static VaultCipher forKey(byte[] key) {
+        VaultCipher engine = lastEngine;
+        if (engine != null && engine.key.matches(key)) return engine;
+        engine = new VaultCipher(key);
+        lastEngine = engine;
+        return engine;
+    }
+
+    /**
+     * Engine that is not cached, for a key used once (the key-encryption key); {@link #destroy} it when done.
+     */
+    static VaultCipher uncached(byte[] key) {
+        return new VaultCipher(key);
+    }
+
+    /** Drops the cached engine and {@link #destroy}s it. Call when the key is no longer needed (lock). */
+    public static void clearCache() {
+        VaultCipher engine = lastEngine;
+        lastEngine = null;
+        if (engine != null) engine.destroy();
+    }
+
+    /**
+     * Re-initializes every Cipher this engine handed out under a throwaway zero key, so none still holds this
+     * key's schedule, then zeroes the engine's key. The engine must not be used afterwards, and no thread may be
+     * using it meanwhile (callers destroy under the lock that serializes storage access). Copies a provider made
+     * of the key bytes during init are its own; they are released with the state that re-keying replaces.
+     */
+    void destroy() {
+        synchronized (issued) {
+            SecretKeySpec zero = new SecretKeySpec(new byte[32], AES);
+            for (Cipher cipher : issued) {
+                try {
+                    byte[] iv = new byte[GCM_IV_LENGTH];
+                    RANDOM.nextBytes(iv);
+                    if (cipher.getAlgorithm().equals(GCM_TRANSFORMATION)) {
+                        cipher.init(Cipher.ENCRYPT_MODE, zero, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+                    } else {
+                        cipher.init(Cipher.ENCRYPT_MODE, zero, new IvParameterSpec(new byte[CBC_IV_LENGTH]));
+                    }
+                } catch (GeneralSecurityException ignored) {
+                    // Init with a valid AES key and parameters does not fail; the cipher is dropped either way.
+                }
+            }
+            issued.clear();
+        }
+        key.destroy();
     }
 
     public static String encrypt(byte[] key, String plainText, EncryptionMethod method) throws Exception {
+        return forKey(key).encrypt(plainText, method);
+    }
+
+    public static String decrypt(byte[] key, String cipherBase64, EncryptionMethod method) throws Exception {
+        return forKey(key).decrypt(cipherBase64, method);
+    }
+
+    public String encrypt(String plainText, EncryptionMethod method) throws GeneralSecurityException {
         if (plainText == null) return null;
         byte[] input = plainText.getBytes(StandardCharsets.UTF_8);
-        if (method == EncryptionMethod.AES_256_GCM) {
-            return encryptGcm(key, input);
-        } else {
-            return encryptCbc(key, input);
-        }
+        ByteBuffer out = ByteBuffer.allocate(maxEncryptedSize(input.length, method));
+        seal(ByteBuffer.wrap(input), out, method);
+        return Base64.encodeToString(out.array(), 0, out.position(), Base64.NO_WRAP);
     }
 
-    public static String decrypt(byte[] key, String cipherBase64, EncryptionMethod method) throws Exception {
+    public String decrypt(String cipherBase64, EncryptionMethod method) throws GeneralSecurityException {
         if (cipherBase64 == null) return null;
         byte[] decoded = Base64.decode(cipherBase64, Base64.NO_WRAP);
+        ByteBuffer out = ByteBuffer.allocate(decoded.length);
+        open(ByteBuffer.wrap(decoded), out, method);
+        return new String(out.array(), 0, out.position(), StandardCharsets.UTF_8);
+    }
+
+    /** Encrypts to {@code [method tag][IV][ciphertext]}. */
+    public byte[] encrypt(byte[] plain, EncryptionMethod method) throws GeneralSecurityException {
+        if (plain == null) return null;
+        byte[] out = new byte[maxEncryptedSize(plain.length, method)];
+        ByteBuffer buffer = ByteBuffer.wrap(out);
+        encrypt(ByteBuffer.wrap(plain), buffer, method);
+        return buffer.position() == out.length ? out : Arrays.copyOf(out, buffer.position());
+    }
+
+    /** Decrypts data produced by {@link #encrypt(byte[], EncryptionMethod)}; the method is read from the tag. */
+    public byte[] decrypt(byte[] data) throws GeneralSecurityException {
+        if (data == null) return null;
+        return decrypt(data, 0, data.length);
+    }
+
+    public byte[] decrypt(byte[] data, int offset, int length) throws GeneralSecurityException {
+        byte[] out = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(out);
+        decrypt(ByteBuffer.wrap(data, offset, length), buffer);
+        return buffer.position() == out.length ? out : Arrays.copyOf(out, buffer.position());
+    }
+
+    /**
+     * Encrypts every field to the tagged format, like {@link #encrypt(byte[], EncryptionMethod)} per element.
+     * Null elements stay null. Results are in input order.
+     */
+    public List<byte[]> encryptAll(List<byte[]> plains, EncryptionMethod method) throws GeneralSecurityException {
+        byte[][] in = plains.toArray(new byte[0][]);
+        byte[][] out = new byte[in.length][];
+        runBatch(in, out, method);
+        return Arrays.asList(out);
+    }
+
+    /**
+     * Decrypts every field produced by {@link #encrypt(byte[], EncryptionMethod)} or {@link #encryptAll}; each
+     * element's method is read from its tag. Null elements stay null. Results are in input order.
+     */
+    public List<byte[]> decryptAll(List<byte[]> data) throws GeneralSecurityException {
+        byte[][] in = data.toArray(new byte[0][]);
+        byte[][] out = new byte[in.length][];
+        runBatch(in, out, null);
+        return Arrays.asList(out);
+    }
+
+    /** Encrypts ({@code method} set) or decrypts ({@code method} null) {@code in} into {@code out}. */
+    private void runBatch(byte[][] in, byte[][] out, EncryptionMethod method) throws GeneralSecurityException {
+        int workers = Math.min(WorkerPool.parallelism(), in.length / (PARALLEL_MIN_FIELDS / 2));
+        if (in.length < PARALLEL_MIN_FIELDS || workers < 2) {
+            processRange(in, out, 0, in.length, method);
+            return;
+        }
+        List<Future<Void>> parts = new ArrayList<>(workers);
+        int chunk = (in.length + workers - 1) / workers;
+        try {
+            for (int from = 0; from < in.length; from += chunk) {
+                final int start = from;
+                final int end = Math.min(in.length, from + chunk);
+                parts.add(WorkerPool.get().submit(() -> {
+                    processRange(in, out, start, end, method);
+                    return null;
+                }));
+            }
+            for (Future<Void> part : parts) part.get();
+        } catch (ExecutionException e) {
+            for (Future<Void> part : parts) part.cancel(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new GeneralSecurityException(cause);
+        } catch (InterruptedException e) {
+            for (Future<Void> part : parts) part.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Batch interrupted", e);
+        }
+    }
+
+    /** One thread's share of a batch; the Cipher is looked up once and outputs are allocated at final size. */
+    private void processRange(byte[][] in, byte[][] out, int from, int to, EncryptionMethod method)
+            throws GeneralSecurityException {
+        if (method != null) {
+            Cipher cipher = cipher(method);
+            NoncePool nonces = nonces();
+            int ivLength = ivLength(method);
+            for (int i = from; i < to; i++) {
+                byte[] plain = in[i];
+                if (plain == null) continue;
+                byte[] sealed = new byte[maxEncryptedSize(plain.length, method)];
+                sealed[0] = tagOf(method);
+                nonces.next(sealed, TAG_LENGTH, ivLength);
+                init(cipher, Cipher.ENCRYPT_MODE, method, sealed, TAG_LENGTH);
+                int n = TAG_LENGTH + ivLength + cipher.doFinal(plain, 0, plain.length, sealed, TAG_LENGTH + ivLength);
+                out[i] = n == sealed.length ? sealed : Arrays.copyOf(sealed, n);
+            }
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            byte[] sealed = in[i];
+            if (sealed == null) continue;
+            if (sealed.length < TAG_LENGTH) throw new IllegalArgumentException("Invalid cipher");
+            EncryptionMethod m = methodOf(sealed[0]);
+            int ivLength = ivLength(m);
+            int bodyOffset = TAG_LENGTH + ivLength;
+            if (sealed.length < bodyOffset) throw new IllegalArgumentException("Invalid cipher");
+            Cipher cipher = cipher(m);
+            init(cipher, Cipher.DECRYPT_MODE, m, sealed, TAG_LENGTH);
+            byte[] plain = new byte[cipher.getOutputSize(sealed.length - bodyOffset)];
+            int n = cipher.doFinal(sealed, bodyOffset, sealed.length - bodyOffset, plain, 0);
+            out[i] = n == plain.length ? plain : Arrays.copyOf(plain, n);
+        }
+    }
+
+    private void init(Cipher cipher, int mode, EncryptionMethod method, byte[] iv, int ivOffset)
+            throws GeneralSecurityException {
         if (method == EncryptionMethod.AES_256_GCM) {
-            return decryptGcm(key, decoded);
+            cipher.init(mode, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv, ivOffset, GCM_IV_LENGTH));
         } else {
-            return decryptCbc(key, decoded);
+            cipher.init(mode, key, new IvParameterSpec(iv, ivOffset, CBC_IV_LENGTH));
         }
     }
 
-    private static String encryptGcm(byte[] key, byte[] input) throws Exception {
-        SecureRandom sr = new SecureRandom();
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        sr.nextBytes(iv);
+    /**
+     * Encrypts the remaining bytes of {@code in} into {@code out} as {@code [method tag][IV][ciphertext]}.
+     * {@code out} needs {@link #maxEncryptedSize} bytes remaining.
+     *
+     * @return number of bytes written
+     */
+    public int encrypt(ByteBuffer in, ByteBuffer out, EncryptionMethod method) throws GeneralSecurityException {
+        int start = out.position();
+        out.put(tagOf(method));
+        seal(in, out, method);
+        return out.position() - start;
+    }
 
-        SecretKeySpec keySpec = new SecretKeySpec(key, AES);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, keySpec, gcmSpec);
-        byte[] encrypted = cipher.doFinal(input);
+    /**
+     * Decrypts the remaining bytes of {@code in} (tagged format) into {@code out}; plaintext is never
+     * larger than the input.
+     *
+     * @return number of bytes written
+     */
+    public int decrypt(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        if (in.remaining() < TAG_LENGTH) throw new IllegalArgumentException("Invalid cipher");
+        int start = out.position();
+        open(in, out, methodOf(in.get()));
+        return out.position() - start;
+    }
 
-        byte[] combined = new byte[iv.length + encrypted.length];
-        System.arraycopy(iv, 0, combined, 0, iv.length);
-        System.arraycopy(encrypted, 0, combined, iv.length, encrypted.length);
-        return Base64.encodeToString(combined, Base64.NO_WRAP);
+    /** Upper bound of {@link #encrypt(ByteBuffer, ByteBuffer, EncryptionMethod)} output for a plaintext length. */
+    public static int maxEncryptedSize(int plainLength, EncryptionMethod method) {
+        if (method == EncryptionMethod.AES_256_GCM) {
+            return TAG_LENGTH + GCM_IV_LENGTH + plainLength + GCM_TAG_LENGTH / 8;
+        }
+        return TAG_LENGTH + CBC_IV_LENGTH + (plainLength / 16 + 1) * 16;
     }
 
-    private static String decryptGcm(byte[] key, byte[] combined) throws Exception {
-        if (combined.length < GCM_IV_LENGTH) throw new IllegalArgumentException("Invalid cipher");
-        byte[] iv = Arrays.copyOfRange(combined, 0, GCM_IV_LENGTH);
-        byte[] encrypted = Arrays.copyOfRange(combined, GCM_IV_LENGTH, combined.length);
+    static byte tagOf(EncryptionMethod method) {
+        return method == EncryptionMethod.AES_256_GCM ? TAG_GCM : TAG_CBC;
+    }
 
-        SecretKeySpec keySpec = new SecretKeySpec(key, AES);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.DECRYPT_MODE, keySpec, gcmSpec);
-        byte[] decrypted = cipher.doFinal(encrypted);
-        return new String(decrypted, StandardCharsets.UTF_8);
+    /** Method recorded in the first byte of binary {@link #encrypt(byte[], EncryptionMethod)} output. */
+    public static EncryptionMethod methodOf(byte tag) {
+        if (tag == TAG_GCM) return EncryptionMethod.AES_256_GCM;
+        if (tag == TAG_CBC) return EncryptionMethod.AES_256_CBC;
+        throw new IllegalArgumentException("Unknown cipher tag " + tag);
     }
 
-    private static String encryptCbc(byte[] key, byte[] input) throws Exception {
-        SecureRandom sr = new SecureRandom();
-        byte[] iv = new byte[CBC_IV_LENGTH];
-        sr.nextBytes(iv);
+    /** Writes {@code [IV][ciphertext]} (untagged) to {@code out}. */
+    private void seal(ByteBuffer in, ByteBuffer out, EncryptionMethod method) throws GeneralSecurityException {
+        int ivLength = ivLength(method);
+        byte[] iv = new byte[ivLength];
+        nonces().next(iv, 0, ivLength);
+        Cipher cipher = cipher(method);
+        init(cipher, Cipher.ENCRYPT_MODE, method, iv, 0);
+        out.put(iv);
+        cipher.doFinal(in, out);
+    }
 
-        SecretKeySpec keySpec = new SecretKeySpec(key, AES);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-        byte[] encrypted = cipher.doFinal(input);
+    /** Reads {@code [IV][ciphertext]} (untagged) from {@code in}. */
+    private void open(ByteBuffer in, ByteBuffer out, EncryptionMethod method) throws GeneralSecurityException {
+        int ivLength = ivLength(method);
+        if (in.remaining() < ivLength) throw new IllegalArgumentException("Invalid cipher");
+        byte[] iv = new byte[ivLength];
+        in.get(iv);
+        Cipher cipher = cipher(method);
+        init(cipher, Cipher.DECRYPT_MODE, method, iv, 0);
+        cipher.doFinal(in, out);
+    }
 
-        byte[] combined = new byte[iv.length + encrypted.length];
-        System.arraycopy(iv, 0, combined, 0, iv.length);
-        System.arraycopy(encrypted, 0, combined, iv.length, encrypted.length);
-        return Base64.encodeToString(combined, Base64.NO_WRAP);
+    private static int ivLength(EncryptionMethod method) {
+        return method == EncryptionMethod.AES_256_GCM ? GCM_IV_LENGTH : CBC_IV_LENGTH;
     }
 
-    private static String decryptCbc(byte[] key, byte[] combined) throws Exception {
-        if (combined.length < CBC_IV_LENGTH) throw new IllegalArgumentException("Invalid cipher");
-        byte[] iv = Arrays.copyOfRange(combined, 0, CBC_IV_LENGTH);
-        byte[] encrypted = Arrays.copyOfRange(combined, CBC_IV_LENGTH, combined.length);
+    private Cipher cipher(EncryptionMethod method) throws GeneralSecurityException {
+        return method == EncryptionMethod.AES_256_GCM
+                ? cipher(gcmCipher, GCM_TRANSFORMATION)
+                : cipher(cbcCipher, CBC_TRANSFORMATION);
+    }
+
+    /** Thread-confined Cipher; re-initialized with a fresh IV on every use. */
+    private Cipher cipher(ThreadLocal<Cipher> cache, String transformation) throws GeneralSecurityException {
+        Cipher cipher = cache.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            synchronized (issued) {
+                issued.add(cipher);
+            }
+            cache.set(cipher);
+        }
+        return cipher;
+    }
+
+    private static NoncePool nonces() {
+        NoncePool pool = NONCES.get();
+        if (pool == null) {
+            pool = new NoncePool();
+            NONCES.set(pool);
+        }
+        return pool;
+    }
 
-        SecretKeySpec keySpec = new SecretKeySpec(key, AES);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
-        byte[] decrypted = cipher.doFinal(encrypted);
-        return new String(decrypted, StandardCharsets.UTF_8);
+    /**
+     * AES key with its own copy of the bytes, which {@link #destroy} zeroes (a {@link SecretKeySpec} keeps a
+     * copy that cannot be cleared). Providers get a fresh copy from {@link #getEncoded} on init.
+     */
+    private static final class EngineKey implements SecretKey {
+        private final byte[] bytes;
+        private volatile boolean destroyed;
+
+        EngineKey(byte[] key) {
+            bytes = key.clone();
+        }
+
+        boolean matches(byte[] key) {
+            return !destroyed && MessageDigest.isEqual(bytes, key);
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return AES;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            if (destroyed) throw new IllegalStateException("Key destroyed");
+            return bytes.clone();
+        }
+
+        @Override
+        public void destroy() {
+            destroyed = true;
+            Arrays.fill(bytes, (byte) 0);
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            return destroyed;
+        }
+    }
+
+    /** Per-thread buffer of random bytes, refilled in bulk from the shared {@link SecureRandom}. */
+    private static final class NoncePool {
+        private final byte[] buffer = new byte[1024];
+        private int position = buffer.length;
+
+        void next(byte[] out, int offset, int length) {
+            if (buffer.length - position < length) {
+                RANDOM.nextBytes(buffer);
+                position = 0;
+            }
+            System.arraycopy(buffer, position, out, offset, length);
+            Arrays.fill(buffer, position, position + length, (byte) 0);
+            position += length;
+        }
     }
 }
@@ -29,6 +29,24 @@ public class AuthEntry {
         this.passwordOrToken = passwordOrToken;
     }
 
+    /** Entry restored from storage; generates no id or timestamps unless {@code id} is missing. */
+    public AuthEntry(String id, String title, String username, String passwordOrToken, long createdAt,
+                     long updatedAt, List<EntryHistoryItem> history) {
+        this.id = id != null ? id : java.util.UUID.randomUUID().toString();
+        this.title = title;
+        this.username = username;
+        this.passwordOrToken = passwordOrToken;
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+        this.history = history != null ? history : new ArrayList<>();
+    }
+
+    /** Copy with its own history list; the history items are shared, as recorded items are not changed. */
+    public AuthEntry copy() {
+        return new AuthEntry(id, title, username, passwordOrToken, createdAt, updatedAt,
+                new ArrayList<>(getHistory()));
+    }
+
     public String getId() {
         return id;
     }
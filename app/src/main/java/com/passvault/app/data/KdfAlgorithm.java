@@ -0,0 +1,19 @@
+package com.passvault.app.data;
+
+/**
+ * Password-based key derivation functions for the master key.
+ */
+public enum KdfAlgorithm {
+    PBKDF2_SHA256("PBKDF2-SHA256"),
+    ARGON2ID("Argon2id");
+
+    private final String displayName;
+
+    KdfAlgorithm(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
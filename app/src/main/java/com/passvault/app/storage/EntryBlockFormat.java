@@ -0,0 +1,302 @@
+package com.passvault.app.storage;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.passvault.app.crypto.SegmentCipher;
+import com.passvault.app.data.AuthEntry;
+import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.util.VaultJson;
+import com.passvault.app.util.WorkerPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Entries grouped into independently sealed blocks: {@code [method tag][salt]([int length][sealed block])*}.
+ * <p>
+ * Each block is an {@link EntryCodec} payload of consecutive entries (about {@link #BLOCK_TARGET_BYTES}), or a
+ * JSON array in files written by earlier releases; the block's first byte tells which. Blocks are compressed
+ * ({@link PayloadCompression}) before sealing. Blocks are sealed by
+ * {@link SegmentCipher} under its index with a last flag on the final block. Reading hands blocks to
+ * {@link WorkerPool} for decrypt + parse as they come off the stream and merges the results in order;
+ * at most a few blocks per worker are in flight. Large files can be read from a memory-mapped buffer instead
+ * of a stream ({@link #read(ByteBuffer, byte[], boolean)}).
+ */
+final class EntryBlockFormat {
+
+    static final int BLOCK_TARGET_BYTES = 64 * 1024;
+    private static final int MAX_BLOCK_BYTES = 64 * 1024 * 1024;
+    private static final int IN_FLIGHT_PER_WORKER = 2;
+
+    private EntryBlockFormat() {
+    }
+
+    static void write(OutputStream out, byte[] key, EncryptionMethod method, List<AuthEntry> entries)
+            throws IOException, GeneralSecurityException {
+        write(out, key, method, entries != null ? entries.iterator() : Collections.emptyIterator());
+    }
+
+    /** Writes entries as {@code entries} yields them; only the block being filled is held. */
+    static void write(OutputStream out, byte[] key, EncryptionMethod method, Iterator<AuthEntry> entries)
+            throws IOException, GeneralSecurityException {
+        SegmentCipher cipher = SegmentCipher.create(key, method);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(cipher.getMethodTag());
+        data.write(cipher.getSalt());
+        ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_TARGET_BYTES + 4096);
+        EntryCodec.Writer writer = new EntryCodec.Writer(block);
+        int index = 0;
+        while (entries.hasNext()) {
+            writer.write(entries.next());
+            boolean lastEntry = !entries.hasNext();
+            if (block.size() >= BLOCK_TARGET_BYTES || lastEntry) {
+                sealBlock(data, cipher, block, index++, lastEntry);
+                block.reset();
+                writer = new EntryCodec.Writer(block);
+            }
+        }
+        if (index == 0) sealBlock(data, cipher, block, 0, true);
+        data.flush();
+    }
+
+    /** Source of sealed blocks in file order; null at the end. */
+    private interface BlockSource {
+        ByteBuffer next() throws IOException;
+    }
+
+    static List<AuthEntry> read(InputStream in, byte[] key, boolean includeHistory) throws Exception {
+        DataInputStream data = new DataInputStream(in);
+        byte tag = data.readByte();
+        byte[] salt = new byte[SegmentCipher.SALT_LENGTH];
+        data.readFully(salt);
+        return read(SegmentCipher.open(key, tag, salt), () -> readBlock(data), includeHistory, true);
+    }
+
+    /**
+     * Reads from a buffer positioned after the file header, typically a memory-mapped file: blocks are
+     * decrypted straight out of the buffer, so no sealed copy of the vault is made on the heap.
+     */
+    static List<AuthEntry> read(ByteBuffer buffer, byte[] key, boolean includeHistory) throws Exception {
+        return read(buffer, key, includeHistory, true);
+    }
+
+    /**
+     * Like {@link #read(ByteBuffer, byte[], boolean)} but opens every block on the calling thread, for callers
+     * that already run on {@link WorkerPool} (waiting there on further pool tasks could starve the pool).
+     */
+    static List<AuthEntry> readSequential(ByteBuffer buffer, byte[] key, boolean includeHistory) throws Exception {
+        return read(buffer, key, includeHistory, false);
+    }
+
+    private static List<AuthEntry> read(ByteBuffer buffer, byte[] key, boolean includeHistory, boolean parallel)
+            throws Exception {
+        ByteBuffer in = buffer.duplicate();
+        try {
+            byte tag = in.get();
+            byte[] salt = new byte[SegmentCipher.SALT_LENGTH];
+            in.get(salt);
+            return read(SegmentCipher.open(key, tag, salt), () -> sliceBlock(in), includeHistory, parallel);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated vault");
+        }
+    }
+
+    private static List<AuthEntry> read(SegmentCipher cipher, BlockSource blocks, boolean includeHistory,
+                                        boolean parallel) throws Exception {
+        List<AuthEntry> result = new ArrayList<>();
+        ByteBuffer current = blocks.next();
+        if (current == null) throw new EOFException("Vault has no blocks");
+        ByteBuffer next = blocks.next();
+        if (!parallel) {
+            for (int index = 0; current != null; index++) {
+                result.addAll(openBlock(cipher, current, index, next == null, includeHistory));
+                current = next;
+                next = current != null ? blocks.next() : null;
+            }
+            return result;
+        }
+        if (next == null) {
+            // Single block: nothing to parallelize.
+            result.addAll(openBlock(cipher, current, 0, true, includeHistory));
+            return result;
+        }
+
+        ExecutorService pool = WorkerPool.get();
+        int maxInFlight = WorkerPool.parallelism() * IN_FLIGHT_PER_WORKER;
+        List<Future<List<AuthEntry>>> pending = new ArrayList<>();
+        int merged = 0;
+        int index = 0;
+        try {
+            while (current != null) {
+                final ByteBuffer sealed = current;
+                final int blockIndex = index++;
+                final boolean last = next == null;
+                pending.add(pool.submit(() -> openBlock(cipher, sealed, blockIndex, last, includeHistory)));
+                while (pending.size() - merged >= maxInFlight) {
+                    result.addAll(pending.get(merged).get());
+                    pending.set(merged++, null);
+                }
+                current = next;
+                next = current != null ? blocks.next() : null;
+            }
+            while (merged < pending.size()) {
+                result.addAll(pending.get(merged).get());
+                pending.set(merged++, null);
+            }
+        } catch (ExecutionException e) {
+            for (Future<List<AuthEntry>> f : pending) {
+                if (f != null) f.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Reads entries with history from a stream positioned after the file header into {@code out}, starting
+     * {@code skip} entries into block {@code firstBlock} and stopping once {@code out} holds {@code limit}. Blocks
+     * before {@code firstBlock} are skipped without being read; at most two blocks are held at a time.
+     *
+     * @return {@code {block, skip}} where the next batch starts, or null once the last block has been read
+     */
+    static int[] readBatch(InputStream in, byte[] key, int firstBlock, int skip, int limit, List<AuthEntry> out)
+            throws Exception {
+        DataInputStream data = new DataInputStream(in);
+        byte tag = data.readByte();
+        byte[] salt = new byte[SegmentCipher.SALT_LENGTH];
+        data.readFully(salt);
+        SegmentCipher cipher = SegmentCipher.open(key, tag, salt);
+        for (int i = 0; i < firstBlock; i++) skipBlock(data);
+        ByteBuffer current = readBlock(data);
+        if (current == null) throw new EOFException("Vault has no block " + firstBlock);
+        for (int index = firstBlock; ; index++) {
+            ByteBuffer next = readBlock(data);
+            List<AuthEntry> entries = openBlock(cipher, current, index, next == null, true);
+            if (skip > entries.size()) throw new IOException("Batch cursor is past the end of block " + index);
+            int take = Math.min(entries.size() - skip, limit - out.size());
+            out.addAll(entries.subList(skip, skip + take));
+            if (skip + take < entries.size()) return new int[]{index, skip + take};
+            if (next == null) return null;
+            if (out.size() >= limit) return new int[]{index + 1, 0};
+            current = next;
+            skip = 0;
+        }
+    }
+
+    /** Parses a JSON array of entries one at a time; history is skipped unparsed when it is not needed. */
+    static List<AuthEntry> readEntries(Reader source, boolean includeHistory) throws IOException {
+        List<AuthEntry> list = new ArrayList<>();
+        JsonReader reader = new JsonReader(source);
+        if (reader.peek() == JsonToken.NULL) return list;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            AuthEntry e = VaultJson.readEntry(reader, includeHistory);
+            if (e != null) list.add(e);
+        }
+        reader.endArray();
+        return list;
+    }
+
+    private static void sealBlock(DataOutputStream data, SegmentCipher cipher, ByteArrayOutputStream block,
+                                  int index, boolean last) throws IOException, GeneralSecurityException {
+        byte[] plain = block.toByteArray();
+        byte[] compressed = PayloadCompression.compress(plain, 0, plain.length);
+        if (compressed != null) {
+            Arrays.fill(plain, (byte) 0);
+            plain = compressed;
+        }
+        byte[] sealed = new byte[cipher.maxSealedSize(plain.length)];
+        int n = cipher.seal(plain, 0, plain.length, index, last, sealed, 0);
+        Arrays.fill(plain, (byte) 0);
+        data.writeInt(n);
+        data.write(sealed, 0, n);
+    }
+
+    private static List<AuthEntry> openBlock(SegmentCipher cipher, ByteBuffer sealed, int index, boolean last,
+                                             boolean includeHistory) throws IOException {
+        byte[] plain = new byte[sealed.remaining()];
+        int n;
+        try {
+            n = cipher.open(sealed, index, last, plain, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Vault block " + index + " failed authentication (modified or truncated)", e);
+        }
+        try {
+            if (PayloadCompression.isCompressed(plain, 0, n)) {
+                byte[] expanded = PayloadCompression.decompress(plain, 0, n);
+                Arrays.fill(plain, (byte) 0);
+                plain = expanded;
+                n = expanded.length;
+            }
+            if (EntryCodec.isEncoded(plain, 0, n)) {
+                List<AuthEntry> list = new ArrayList<>();
+                EntryCodec.Reader reader = new EntryCodec.Reader(ByteBuffer.wrap(plain, 0, n));
+                for (AuthEntry e = reader.next(includeHistory); e != null; e = reader.next(includeHistory)) {
+                    list.add(e);
+                }
+                return list;
+            }
+            Reader reader = new InputStreamReader(new ByteArrayInputStream(plain, 0, n), StandardCharsets.UTF_8);
+            return readEntries(reader, includeHistory);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    /** Next length-prefixed block, or null at end of stream. */
+    private static ByteBuffer readBlock(DataInputStream data) throws IOException {
+        int first = data.read();
+        if (first < 0) return null;
+        int length = (first << 24) | (data.readUnsignedByte() << 16) | (data.readUnsignedByte() << 8)
+                | data.readUnsignedByte();
+        if (length <= 0 || length > MAX_BLOCK_BYTES) throw new IOException("Corrupt vault block length");
+        byte[] sealed = new byte[length];
+        data.readFully(sealed);
+        return ByteBuffer.wrap(sealed);
+    }
+
+    private static void skipBlock(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length <= 0 || length > MAX_BLOCK_BYTES) throw new IOException("Corrupt vault block length");
+        while (length > 0) {
+            int skipped = data.skipBytes(length);
+            if (skipped <= 0) throw new EOFException("Truncated vault block");
+            length -= skipped;
+        }
+    }
+
+    /** Next length-prefixed block as a view into {@code in} (advanced past it), or null at the end. */
+    private static ByteBuffer sliceBlock(ByteBuffer in) throws IOException {
+        if (!in.hasRemaining()) return null;
+        if (in.remaining() < 4) throw new EOFException("Truncated vault block");
+        int length = in.getInt();
+        if (length <= 0 || length > MAX_BLOCK_BYTES) throw new IOException("Corrupt vault block length");
+        if (in.remaining() < length) throw new EOFException("Truncated vault block");
+        ByteBuffer block = in.slice();
+        block.limit(length);
+        in.position(in.position() + length);
+        return block;
+    }
+}
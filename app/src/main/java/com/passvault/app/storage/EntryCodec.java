@@ -0,0 +1,321 @@
+package com.passvault.app.storage;
+
+import com.passvault.app.data.AuthEntry;
+import com.passvault.app.data.EntryHistoryItem;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary encoding of entries for vault payloads (JSON stays the import/export format).
+ * <p>
+ * A payload is {@link #VERSION} followed by length-prefixed records. A record is a sequence of fields
+ * {@code [varint tag][varint length][value]}: strings are UTF-8 (a null string is omitted), numbers are
+ * varints, and each history item is a nested record under {@link #ENTRY_HISTORY}. Readers skip tags they do
+ * not know, so fields can be added without a new version. The version byte is never {@code '['} or
+ * {@code '{'}, which tells it apart from JSON written by earlier releases ({@link #isEncoded}).
+ */
+final class EntryCodec {
+
+    static final byte VERSION = 1;
+
+    private static final int ENTRY_ID = 1;
+    private static final int ENTRY_TITLE = 2;
+    private static final int ENTRY_USERNAME = 3;
+    private static final int ENTRY_PASSWORD = 4;
+    private static final int ENTRY_CREATED_AT = 5;
+    private static final int ENTRY_UPDATED_AT = 6;
+    private static final int ENTRY_HISTORY = 7;
+
+    private static final int ITEM_START = 1;
+    private static final int ITEM_END = 2;
+    private static final int ITEM_PASS_VALUE = 3;
+
+    private EntryCodec() {
+    }
+
+    /** True if {@code plain} starts with a codec payload rather than legacy JSON. */
+    static boolean isEncoded(byte[] plain, int offset, int length) {
+        return length > 0 && plain[offset] == VERSION;
+    }
+
+    /** One entry as a payload, e.g. for a log record. */
+    static byte[] encodeEntry(AuthEntry entry) {
+        Sink out = new Sink(256);
+        out.write(VERSION);
+        Writer.appendRecord(out, entry, new Sink(256), new Sink(64));
+        return out.toByteArrayAndWipe();
+    }
+
+    /** Reads a payload from {@link #encodeEntry}. */
+    static AuthEntry decodeEntry(byte[] plain, int offset, int length, boolean includeHistory) throws IOException {
+        AuthEntry e = new Reader(ByteBuffer.wrap(plain, offset, length)).next(includeHistory);
+        if (e == null) throw new IOException("Empty entry payload");
+        return e;
+    }
+
+    static byte[] encodeHistoryItem(EntryHistoryItem item) {
+        Sink out = new Sink(64);
+        out.write(VERSION);
+        appendItemFields(out, item);
+        return out.toByteArrayAndWipe();
+    }
+
+    static EntryHistoryItem decodeHistoryItem(byte[] plain) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(plain);
+        try {
+            checkVersion(in);
+            return readItem(in);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt history item", e);
+        }
+    }
+
+    /**
+     * Streams entries into a payload. Each entry is encoded into a reusable scratch buffer (wiped after
+     * every record) and written length-prefixed.
+     */
+    static final class Writer {
+        private final OutputStream out;
+        private final Sink record = new Sink(512);
+        private final Sink fields = new Sink(512);
+        private final Sink item = new Sink(64);
+
+        Writer(OutputStream out) throws IOException {
+            this.out = out;
+            out.write(VERSION);
+        }
+
+        void write(AuthEntry entry) throws IOException {
+            appendRecord(record, entry, fields, item);
+            record.writeTo(out);
+            record.wipe();
+        }
+
+        /** Appends {@code [varint length][fields]} of {@code entry} to {@code out}. */
+        private static void appendRecord(Sink out, AuthEntry entry, Sink fields, Sink item) {
+            putString(fields, ENTRY_ID, entry.getId());
+            putString(fields, ENTRY_TITLE, entry.getTitle());
+            putString(fields, ENTRY_USERNAME, entry.getUsername());
+            putString(fields, ENTRY_PASSWORD, entry.getPasswordOrToken());
+            putLong(fields, ENTRY_CREATED_AT, entry.getCreatedAt());
+            putLong(fields, ENTRY_UPDATED_AT, entry.getUpdatedAt());
+            for (EntryHistoryItem h : entry.getHistory()) {
+                appendItemFields(item, h);
+                fields.writeVarint(ENTRY_HISTORY);
+                fields.writeVarint(item.size());
+                fields.write(item);
+                item.wipe();
+            }
+            out.writeVarint(fields.size());
+            out.write(fields);
+            fields.wipe();
+        }
+    }
+
+    /** Reads entries one at a time from a payload. */
+    static final class Reader {
+        private final ByteBuffer in;
+
+        /** @param in positioned at the version byte; read up to its limit */
+        Reader(ByteBuffer in) throws IOException {
+            this.in = in;
+            try {
+                checkVersion(in);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Empty payload", e);
+            }
+        }
+
+        /** Next entry, or null at the end; history is skipped unread unless {@code includeHistory}. */
+        AuthEntry next(boolean includeHistory) throws IOException {
+            if (!in.hasRemaining()) return null;
+            try {
+                int end = limitOf(in);
+                String id = null;
+                String title = null;
+                String username = null;
+                String password = null;
+                long createdAt = 0;
+                long updatedAt = 0;
+                List<EntryHistoryItem> history = new ArrayList<>();
+                while (in.position() < end) {
+                    int tag = (int) readVarint(in);
+                    int fieldEnd = limitOf(in);
+                    if (fieldEnd > end) throw new IOException("Field overruns its record");
+                    switch (tag) {
+                        case ENTRY_ID: id = readString(in, fieldEnd); break;
+                        case ENTRY_TITLE: title = readString(in, fieldEnd); break;
+                        case ENTRY_USERNAME: username = readString(in, fieldEnd); break;
+                        case ENTRY_PASSWORD: password = readString(in, fieldEnd); break;
+                        case ENTRY_CREATED_AT: createdAt = readVarint(in); break;
+                        case ENTRY_UPDATED_AT: updatedAt = readVarint(in); break;
+                        case ENTRY_HISTORY:
+                            if (includeHistory) history.add(readItem(slice(in, fieldEnd)));
+                            break;
+                        default:
+                            break;
+                    }
+                    in.position(fieldEnd);
+                }
+                in.position(end);
+                return new AuthEntry(id, title, username, password, createdAt, updatedAt, history);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Corrupt entry record", e);
+            }
+        }
+    }
+
+    private static void checkVersion(ByteBuffer in) throws IOException {
+        byte version = in.get();
+        if (version != VERSION) throw new IOException("Unsupported entry payload version " + version);
+    }
+
+    private static void appendItemFields(Sink out, EntryHistoryItem item) {
+        putLong(out, ITEM_START, item.getStartDate());
+        putLong(out, ITEM_END, item.getEndDate());
+        putString(out, ITEM_PASS_VALUE, item.getPassValue());
+    }
+
+    /** Reads item fields up to the limit of {@code in}. */
+    private static EntryHistoryItem readItem(ByteBuffer in) throws IOException {
+        EntryHistoryItem item = new EntryHistoryItem();
+        while (in.hasRemaining()) {
+            int tag = (int) readVarint(in);
+            int fieldEnd = limitOf(in);
+            switch (tag) {
+                case ITEM_START: item.setStartDate(readVarint(in)); break;
+                case ITEM_END: item.setEndDate(readVarint(in)); break;
+                case ITEM_PASS_VALUE: item.setPassValue(readString(in, fieldEnd)); break;
+                default: break;
+            }
+            in.position(fieldEnd);
+        }
+        return item;
+    }
+
+    private static void putString(Sink out, int tag, String value) {
+        if (value == null) return;
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeVarint(tag);
+        out.writeVarint(utf8.length);
+        out.write(utf8, 0, utf8.length);
+        Arrays.fill(utf8, (byte) 0);
+    }
+
+    private static void putLong(Sink out, int tag, long value) {
+        out.writeVarint(tag);
+        out.writeVarint(Sink.varintSize(value));
+        out.writeVarint(value);
+    }
+
+    /** Reads a varint length and returns the absolute position it ends at. */
+    private static int limitOf(ByteBuffer in) throws IOException {
+        long length = readVarint(in);
+        if (length < 0 || length > in.remaining()) throw new IOException("Length overruns payload");
+        return in.position() + (int) length;
+    }
+
+    private static ByteBuffer slice(ByteBuffer in, int end) {
+        ByteBuffer view = in.slice();
+        view.limit(end - in.position());
+        return view;
+    }
+
+    private static String readString(ByteBuffer in, int end) {
+        int length = end - in.position();
+        if (in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        }
+        byte[] utf8 = new byte[length];
+        in.get(utf8);
+        String s = new String(utf8, StandardCharsets.UTF_8);
+        Arrays.fill(utf8, (byte) 0);
+        return s;
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /** Growable byte buffer that can be zeroed; plaintext never goes through a ByteArrayOutputStream copy. */
+    private static final class Sink {
+        private byte[] buf;
+        private int count;
+
+        Sink(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        int size() {
+            return count;
+        }
+
+        void write(int b) {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        void write(byte[] b, int offset, int length) {
+            ensure(length);
+            System.arraycopy(b, offset, buf, count, length);
+            count += length;
+        }
+
+        void write(Sink other) {
+            write(other.buf, 0, other.count);
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        static int varintSize(long value) {
+            int n = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                n++;
+            }
+            return n;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, count);
+        }
+
+        byte[] toByteArrayAndWipe() {
+            byte[] copy = Arrays.copyOf(buf, count);
+            wipe();
+            return copy;
+        }
+
+        void wipe() {
+            Arrays.fill(buf, 0, count, (byte) 0);
+            count = 0;
+        }
+
+        private void ensure(int extra) {
+            if (count + extra <= buf.length) return;
+            byte[] grown = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            Arrays.fill(buf, (byte) 0);
+            buf = grown;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.passvault.app.storage;
+
+import com.passvault.app.data.AuthEntry;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * List order and keyset paging shared by the repository cache and the backends that page in memory.
+ * Entries are ordered by (created at, id); a page starts strictly after the last entry of the previous one.
+ */
+final class EntryPages {
+
+    static final Comparator<AuthEntry> ORDER = Comparator.comparingLong(AuthEntry::getCreatedAt)
+            .thenComparing(AuthEntry::getId);
+
+    private EntryPages() {
+    }
+
+    /** Title contains {@code query} (already trimmed and lower-cased); null or empty matches everything. */
+    static boolean matches(AuthEntry e, String query) {
+        if (query == null || query.isEmpty()) return true;
+        String title = e.getTitle();
+        return title != null && title.toLowerCase(Locale.getDefault()).contains(query);
+    }
+
+    /** Sign of the position of {@code e} relative to the key ({@code createdAt}, {@code id}). */
+    static int compareToKey(AuthEntry e, long createdAt, String id) {
+        return e.getCreatedAt() != createdAt ? Long.compare(e.getCreatedAt(), createdAt) : e.getId().compareTo(id);
+    }
+
+    /** Position of the first entry after the key in a list sorted by {@link #ORDER}; 0 for a null id. */
+    static int indexAfter(List<AuthEntry> sorted, long afterCreatedAt, String afterId) {
+        if (afterId == null) return 0;
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareToKey(sorted.get(mid), afterCreatedAt, afterId) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Up to {@code limit} matching entries after the key, from a list sorted by {@link #ORDER}. */
+    static List<AuthEntry> page(List<AuthEntry> sorted, String query, long afterCreatedAt, String afterId, int limit) {
+        List<AuthEntry> page = new ArrayList<>(Math.min(limit, sorted.size()));
+        for (int i = indexAfter(sorted, afterCreatedAt, afterId); i < sorted.size() && page.size() < limit; i++) {
+            AuthEntry e = sorted.get(i);
+            if (matches(e, query)) page.add(e);
+        }
+        return page;
+    }
+
+    static int count(List<AuthEntry> entries, String query) {
+        if (query == null || query.isEmpty()) return entries.size();
+        int n = 0;
+        for (AuthEntry e : entries) {
+            if (matches(e, query)) n++;
+        }
+        return n;
+    }
+}
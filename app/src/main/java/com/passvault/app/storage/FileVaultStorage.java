@@ -2,29 +2,61 @@ package com.passvault.app.storage;
 
 import android.content.Context;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.passvault.app.crypto.SegmentedInputStream;
+import com.passvault.app.crypto.SegmentedOutputStream;
 import com.passvault.app.crypto.VaultCipher;
 import com.passvault.app.data.AuthEntry;
 import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.data.EntryHistoryItem;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Stores all entries as a single encrypted JSON file (vault.dat).
+ * Stores all entries as a single encrypted file (vault.dat).
+ * <p>
+ * Current format: magic with {@link #FORMAT_BLOCKS}, then {@link EntryBlockFormat}: entries grouped into
+ * independently sealed blocks of binary-encoded entries ({@link EntryCodec}), decrypted and parsed in parallel
+ * on load. Files of {@link #MMAP_THRESHOLD_BYTES} and more are memory-mapped and decrypted in place rather
+ * than read onto the heap. Older files are still readable: {@link #FORMAT_JSON_BLOCKS} (the same blocks holding
+ * JSON), {@link #FORMAT_SEGMENTED} (one {@link SegmentedOutputStream} stream of the JSON array),
+ * {@link #FORMAT_WHOLE} (one tagged ciphertext from {@link VaultCipher}) and the original Base64 text without
+ * magic.
  */
 public class FileVaultStorage implements VaultStorage {
 
     private static final String VAULT_FILE = "vault.dat";
+    /** "PV" and a NUL that never occurs in Base64 text, followed by the format version byte. */
+    private static final byte[] MAGIC = {'P', 'V', 0};
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final int FORMAT_LEGACY_BASE64 = 0;
+    private static final int FORMAT_WHOLE = 1;
+    private static final int FORMAT_SEGMENTED = 2;
+    /** {@link EntryBlockFormat} with JSON blocks; read through the same path as {@link #FORMAT_BLOCKS}. */
+    private static final int FORMAT_JSON_BLOCKS = 3;
+    private static final int FORMAT_BLOCKS = 4;
+    /** Block-format files from this size on are memory-mapped for loading instead of streamed. */
+    private static final long MMAP_THRESHOLD_BYTES = 1024 * 1024;
 
     private final Context context;
-    private final Gson gson = new Gson();
 
     public FileVaultStorage(Context context) {
         this.context = context.getApplicationContext();
@@ -34,20 +66,71 @@ public class FileVaultStorage implements VaultStorage {
     public List<AuthEntry> loadEntries(byte[] key, EncryptionMethod method, boolean includeHistory) throws Exception {
         File file = new File(context.getFilesDir(), VAULT_FILE);
         if (!file.exists() || file.length() == 0) return new ArrayList<>();
-        byte[] raw;
-        try (FileInputStream fis = new FileInputStream(file)) {
-            raw = new byte[(int) file.length()];
-            int n = fis.read(raw);
-            if (n != raw.length) throw new IOException("Short read");
+        if (file.length() >= MMAP_THRESHOLD_BYTES) {
+            ByteBuffer mapped = map(file);
+            byte[] head = new byte[HEADER_LENGTH];
+            mapped.get(head);
+            if (isBlockFormat(formatOf(head, head.length))) {
+                return EntryBlockFormat.read(mapped, key, includeHistory);
+            }
         }
-        String json = VaultCipher.decrypt(key, new String(raw, StandardCharsets.UTF_8), method);
-        if (json == null || json.isEmpty()) return new ArrayList<>();
-        List<AuthEntry> list = gson.fromJson(json, new TypeToken<List<AuthEntry>>() {}.getType());
-        if (list == null) return new ArrayList<>();
-        if (!includeHistory) {
-            for (AuthEntry e : list) e.setHistory(new ArrayList<>());
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] head = new byte[HEADER_LENGTH];
+            int headLength = readFully(in, head, head.length);
+            int format = formatOf(head, headLength);
+            if (isBlockFormat(format)) {
+                return EntryBlockFormat.read(in, key, includeHistory);
+            }
+            if (format == FORMAT_SEGMENTED) {
+                Reader reader = new InputStreamReader(new SegmentedInputStream(in, key), StandardCharsets.UTF_8);
+                return EntryBlockFormat.readEntries(reader, includeHistory);
+            }
+            if (format == FORMAT_WHOLE) {
+                byte[] raw = readRemaining(in, (int) file.length() - HEADER_LENGTH);
+                byte[] plain = VaultCipher.forKey(key).decrypt(raw);
+                return EntryBlockFormat.readEntries(
+                        new InputStreamReader(new ByteArrayInputStream(plain), StandardCharsets.UTF_8), includeHistory);
+            }
+            byte[] raw = new byte[(int) file.length()];
+            System.arraycopy(head, 0, raw, 0, headLength);
+            byte[] rest = readRemaining(in, raw.length - headLength);
+            System.arraycopy(rest, 0, raw, headLength, rest.length);
+            String json = VaultCipher.decrypt(key, new String(raw, StandardCharsets.UTF_8), method);
+            if (json == null || json.isEmpty()) return new ArrayList<>();
+            return EntryBlockFormat.readEntries(new StringReader(json), includeHistory);
         }
-        return list;
+    }
+
+    /** vault.dat is sealed as a whole, so secrets are decrypted with the rest of the list. */
+    @Override
+    public List<AuthEntry> loadEntryMetadata(byte[] key, EncryptionMethod method) throws Exception {
+        return loadEntries(key, method, false);
+    }
+
+    /** Not paged natively: every page decrypts the whole file, so the repository pages in memory instead. */
+    @Override
+    public boolean supportsPagedLoading() {
+        return false;
+    }
+
+    @Override
+    public List<AuthEntry> loadEntryPage(byte[] key, EncryptionMethod method, String titleQuery, long afterCreatedAt,
+                                      String afterId, int limit) throws Exception {
+        List<AuthEntry> all = loadEntryMetadata(key, method);
+        all.sort(EntryPages.ORDER);
+        return EntryPages.page(all, titleQuery, afterCreatedAt, afterId, limit);
+    }
+
+    @Override
+    public int countEntries(byte[] key, EncryptionMethod method, String titleQuery) throws Exception {
+        return EntryPages.count(loadEntryMetadata(key, method), titleQuery);
+    }
+
+    @Override
+    public char[] loadSecret(byte[] key, EncryptionMethod method, String entryId) throws Exception {
+        AuthEntry e = getEntryWithHistory(key, method, entryId);
+        if (e == null) return null;
+        return e.getPasswordOrToken() != null ? e.getPasswordOrToken().toCharArray() : new char[0];
     }
 
     @Override
@@ -59,25 +142,187 @@ public class FileVaultStorage implements VaultStorage {
         return null;
     }
 
+    /** Reads the whole entry; its history is sealed with it. */
+    @Override
+    public List<EntryHistoryItem> loadHistoryPage(byte[] key, EncryptionMethod method, String entryId, int skip,
+                                                  int limit) throws Exception {
+        AuthEntry e = getEntryWithHistory(key, method, entryId);
+        return e != null ? VaultStorage.historyPage(e.getHistory(), skip, limit) : new ArrayList<>();
+    }
+
+    /**
+     * Entries in file order; the cursor is {@code "block:skip"}. Blocks before the cursor are skipped unread, so
+     * a batch decrypts only the blocks it returns. Older formats are sealed as one unit and are read whole.
+     */
+    @Override
+    public String readEntryBatch(byte[] key, EncryptionMethod method, String cursor, int limit, List<AuthEntry> out)
+            throws Exception {
+        File file = new File(context.getFilesDir(), VAULT_FILE);
+        if (!file.exists() || file.length() == 0) return null;
+        int block = 0;
+        int skip = 0;
+        if (cursor != null) {
+            int colon = cursor.indexOf(':');
+            block = Integer.parseInt(cursor.substring(0, colon));
+            skip = Integer.parseInt(cursor.substring(colon + 1));
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] head = new byte[HEADER_LENGTH];
+            if (isBlockFormat(formatOf(head, readFully(in, head, head.length)))) {
+                int[] next = EntryBlockFormat.readBatch(in, key, block, skip, limit, out);
+                return next != null ? next[0] + ":" + next[1] : null;
+            }
+        }
+        List<AuthEntry> all = loadEntries(key, method, true);
+        int end = Math.min(skip + limit, all.size());
+        if (skip < end) out.addAll(all.subList(skip, end));
+        return end < all.size() ? "0:" + end : null;
+    }
+
+    /** The cursor is a position, which an upsert or delete shifts. */
+    @Override
+    public boolean batchCursorSurvivesWrites() {
+        return false;
+    }
+
+    /** Atomic: a crash mid-save leaves the previous vault.dat intact ({@link AtomicFileWriter}). */
     @Override
     public void saveEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries) throws Exception {
-        String json = gson.toJson(entries != null ? entries : new ArrayList<AuthEntry>());
-        String encrypted = VaultCipher.encrypt(key, json, method);
+        saveEntries(key, method, entries != null ? entries.iterator() : Collections.emptyIterator());
+    }
+
+    /** Streams entries into the new file block by block; atomic like the list variant. */
+    @Override
+    public void saveEntries(byte[] key, EncryptionMethod method, Iterator<AuthEntry> entries) throws Exception {
+        AtomicFileWriter.write(new File(context.getFilesDir(), VAULT_FILE), out -> {
+            out.write(MAGIC);
+            out.write(FORMAT_BLOCKS);
+            EntryBlockFormat.write(out, key, method, entries);
+        });
+    }
+
+    /** Every upsert rewrites vault.dat. */
+    @Override
+    public boolean writesIncrementally() {
+        return false;
+    }
+
+    @Override
+    public void upsertEntry(byte[] key, EncryptionMethod method, AuthEntry entry) throws Exception {
+        upsertEntries(key, method, Collections.singletonList(entry));
+    }
+
+    @Override
+    public void upsertEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries) throws Exception {
+        if (entries == null || entries.isEmpty()) return;
+        applyChanges(key, method, entries, Collections.emptySet());
+    }
+
+    @Override
+    public void deleteEntry(byte[] key, EncryptionMethod method, String entryId) throws Exception {
+        applyChanges(key, method, Collections.emptyList(), Collections.singleton(entryId));
+    }
+
+    /** vault.dat is sealed as a whole, so row-level changes still rewrite the file, once for all of them. */
+    @Override
+    public void applyChanges(byte[] key, EncryptionMethod method, List<AuthEntry> upserts,
+                             Collection<String> deletedIds) throws Exception {
+        if (upserts.isEmpty() && deletedIds.isEmpty()) return;
+        List<AuthEntry> all = loadEntries(key, method, true);
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < all.size(); i++) positions.put(all.get(i).getId(), i);
+        for (AuthEntry e : upserts) {
+            Integer at = positions.get(e.getId());
+            if (at != null) {
+                all.set(at, e);
+            } else {
+                positions.put(e.getId(), all.size());
+                all.add(e);
+            }
+        }
+        boolean removed = !deletedIds.isEmpty() && all.removeIf(e -> deletedIds.contains(e.getId()));
+        if (removed || !upserts.isEmpty()) saveEntries(key, method, all);
+    }
+
+    @Override
+    public boolean needsFormatUpgrade() throws Exception {
+        File file = new File(context.getFilesDir(), VAULT_FILE);
+        if (!file.exists() || file.length() == 0) return false;
+        byte[] head = new byte[HEADER_LENGTH];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return formatOf(head, readFully(fis, head, head.length)) != FORMAT_BLOCKS;
+        }
+    }
+
+    /** vault.dat is rewritten as a whole, so one batch always covers every entry. */
+    @Override
+    public String reencryptBatch(byte[] key, EncryptionMethod source, EncryptionMethod target, String afterId,
+                                 int maxEntries) throws Exception {
         File file = new File(context.getFilesDir(), VAULT_FILE);
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(encrypted.getBytes(StandardCharsets.UTF_8));
+        if (!file.exists() || file.length() == 0) return null;
+        byte[] head = new byte[HEADER_LENGTH + 1];
+        int headLength;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            headLength = readFully(fis, head, head.length);
+        }
+        if (formatOf(head, headLength) == FORMAT_BLOCKS && headLength > HEADER_LENGTH
+                && VaultCipher.methodOf(head[HEADER_LENGTH]) == target) {
+            return null;
+        }
+        saveEntries(key, target, loadEntries(key, source, true));
+        return null;
+    }
+
+    /** Read-only mapping of the whole file; it stays valid after the channel is closed or the file is replaced. */
+    private static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         }
     }
 
+    private static boolean isBlockFormat(int format) {
+        return format == FORMAT_BLOCKS || format == FORMAT_JSON_BLOCKS;
+    }
+
+    private static int formatOf(byte[] head, int length) {
+        if (length < HEADER_LENGTH) return FORMAT_LEGACY_BASE64;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head[i] != MAGIC[i]) return FORMAT_LEGACY_BASE64;
+        }
+        return head[MAGIC.length];
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int r = in.read(buffer, n, length - n);
+            if (r < 0) break;
+            n += r;
+        }
+        return n;
+    }
+
+    private static byte[] readRemaining(InputStream in, int expected) throws IOException {
+        byte[] raw = new byte[Math.max(expected, 0)];
+        if (readFully(in, raw, raw.length) != raw.length) throw new IOException("Short read");
+        return raw;
+    }
+
     @Override
     public boolean hasData() throws Exception {
         File file = new File(context.getFilesDir(), VAULT_FILE);
         return file.exists() && file.length() > 0;
     }
 
+    @Override
+    public void close() {
+        // Files are opened per call; nothing is held between calls.
+    }
+
     @Override
     public void wipe() throws Exception {
         File file = new File(context.getFilesDir(), VAULT_FILE);
+        AtomicFileWriter.tempFile(file).delete();
         if (file.exists() && !file.delete()) {
             throw new IOException("Failed to delete vault file");
         }
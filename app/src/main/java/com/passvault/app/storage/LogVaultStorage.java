@@ -0,0 +1,498 @@
+package com.passvault.app.storage;
+
+import android.content.Context;
+
+import com.passvault.app.crypto.SegmentCipher;
+import com.passvault.app.data.AuthEntry;
+import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.data.EntryHistoryItem;
+import com.passvault.app.util.VaultJson;
+import com.passvault.app.util.WorkerPool;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Stores entries as an append-only encrypted record log (vault.log).
+ * <p>
+ * Format: {@code ['P','V','L',version][method tag][salt]} then {@code ([int length][sealed record])*}. Each record
+ * is one upsert (entry with history, {@link EntryCodec}, compressed if large enough by {@link PayloadCompression};
+ * JSON in records from earlier releases) or delete (id),
+ * sealed by {@link SegmentCipher} under its position in
+ * the log, so records cannot be reordered or moved. An add, edit or delete appends one record and one fsync.
+ * <p>
+ * Opening replays the log into an id → latest record index; a torn record at the tail (crash mid-append) is
+ * ignored and the log is rewritten before the next append, so record nonces are never reused. Once more than
+ * half of the records are superseded, the log is compacted on {@link WorkerPool}: live entries are written to a
+ * temp file under a fresh salt, which then replaces the log by rename ({@link AtomicFileWriter}).
+ */
+public class LogVaultStorage implements VaultStorage {
+
+    private static final String LOG_FILE = "vault.log";
+    private static final byte[] MAGIC = {'P', 'V', 'L', 1};
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + SegmentCipher.SALT_LENGTH;
+    private static final byte OP_UPSERT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    /** Compaction starts once the log has this many records and more than half of them are superseded. */
+    private static final int COMPACT_MIN_RECORDS = 64;
+
+    private final Context context;
+
+    // Replayed state for stateKey; rebuilt when the key changes or after close().
+    private byte[] stateKey;
+    private SegmentCipher cipher;
+    /** Sorted by id so batch reads can resume after an id, whatever was appended or compacted since. */
+    private final TreeMap<String, Slot> slots = new TreeMap<>();
+    private int recordCount;
+    private long validLength;
+    private boolean rewriteRequired;
+    private boolean compactionScheduled;
+    private int generation;
+
+    /** Position of an entry's latest upsert record. */
+    private static final class Slot {
+        final long offset;
+        final int index;
+
+        Slot(long offset, int index) {
+            this.offset = offset;
+            this.index = index;
+        }
+    }
+
+    public LogVaultStorage(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public synchronized List<AuthEntry> loadEntries(byte[] key, EncryptionMethod method, boolean includeHistory)
+            throws Exception {
+        List<AuthEntry> result = new ArrayList<>(replay(key).values());
+        if (!includeHistory) {
+            for (AuthEntry e : result) e.setHistory(new ArrayList<>());
+        }
+        return result;
+    }
+
+    /** Each record seals a whole entry, so replay decrypts secrets with the rest of the list. */
+    @Override
+    public synchronized List<AuthEntry> loadEntryMetadata(byte[] key, EncryptionMethod method) throws Exception {
+        return loadEntries(key, method, false);
+    }
+
+    /** Not paged natively: every page decrypts the whole log, so the repository pages in memory instead. */
+    @Override
+    public boolean supportsPagedLoading() {
+        return false;
+    }
+
+    @Override
+    public synchronized List<AuthEntry> loadEntryPage(byte[] key, EncryptionMethod method, String titleQuery, long afterCreatedAt,
+                                      String afterId, int limit) throws Exception {
+        List<AuthEntry> all = loadEntryMetadata(key, method);
+        all.sort(EntryPages.ORDER);
+        return EntryPages.page(all, titleQuery, afterCreatedAt, afterId, limit);
+    }
+
+    @Override
+    public synchronized int countEntries(byte[] key, EncryptionMethod method, String titleQuery) throws Exception {
+        return EntryPages.count(loadEntryMetadata(key, method), titleQuery);
+    }
+
+    @Override
+    public synchronized char[] loadSecret(byte[] key, EncryptionMethod method, String entryId) throws Exception {
+        AuthEntry e = getEntryWithHistory(key, method, entryId);
+        if (e == null) return null;
+        return e.getPasswordOrToken() != null ? e.getPasswordOrToken().toCharArray() : new char[0];
+    }
+
+    @Override
+    public synchronized AuthEntry getEntryWithHistory(byte[] key, EncryptionMethod method, String entryId)
+            throws Exception {
+        open(key);
+        Slot slot = slots.get(entryId);
+        if (slot == null) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(logFile(), "r")) {
+            return readRecord(raf, slot);
+        }
+    }
+
+    /**
+     * Entries in id order, each read by seeking to its latest record; the cursor is the last id read, so it stays
+     * valid across appends and compaction.
+     */
+    @Override
+    public synchronized String readEntryBatch(byte[] key, EncryptionMethod method, String cursor, int limit,
+                                              List<AuthEntry> out) throws Exception {
+        open(key);
+        Map<String, Slot> remaining = cursor != null ? slots.tailMap(cursor, false) : slots;
+        if (remaining.isEmpty()) return null;
+        String last = null;
+        int read = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(logFile(), "r")) {
+            for (Map.Entry<String, Slot> slot : remaining.entrySet()) {
+                if (read == limit) return last;
+                out.add(readRecord(raf, slot.getValue()));
+                last = slot.getKey();
+                read++;
+            }
+        }
+        return null;
+    }
+
+    /** Reads the entry's latest record; its history is sealed with it. */
+    @Override
+    public synchronized List<EntryHistoryItem> loadHistoryPage(byte[] key, EncryptionMethod method, String entryId, int skip,
+                                                  int limit) throws Exception {
+        AuthEntry e = getEntryWithHistory(key, method, entryId);
+        return e != null ? VaultStorage.historyPage(e.getHistory(), skip, limit) : new ArrayList<>();
+    }
+
+    /** Replaces the whole log (fresh salt) with {@code entries}. */
+    @Override
+    public synchronized void saveEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries) throws Exception {
+        rewrite(key, method, entries != null ? entries : Collections.emptyList());
+    }
+
+    @Override
+    public void upsertEntry(byte[] key, EncryptionMethod method, AuthEntry entry) throws Exception {
+        upsertEntries(key, method, Collections.singletonList(entry));
+    }
+
+    @Override
+    public void upsertEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries) throws Exception {
+        if (entries == null || entries.isEmpty()) return;
+        applyChanges(key, method, entries, Collections.emptySet());
+    }
+
+    @Override
+    public void deleteEntry(byte[] key, EncryptionMethod method, String entryId) throws Exception {
+        applyChanges(key, method, Collections.emptyList(), Collections.singleton(entryId));
+    }
+
+    /** Upsert records, then delete records for ids that exist, in one append. */
+    @Override
+    public synchronized void applyChanges(byte[] key, EncryptionMethod method, List<AuthEntry> upserts,
+                                          Collection<String> deletedIds) throws Exception {
+        open(key);
+        int capacity = upserts.size() + deletedIds.size();
+        List<String> ids = new ArrayList<>(capacity);
+        List<byte[]> payloads = new ArrayList<>(capacity);
+        for (AuthEntry e : upserts) {
+            ids.add(e.getId());
+            payloads.add(encodeEntry(e));
+        }
+        int upsertCount = ids.size();
+        Set<String> upserted = new HashSet<>(ids);
+        for (String id : deletedIds) {
+            if (!slots.containsKey(id) && !upserted.contains(id)) continue;
+            ids.add(id);
+            payloads.add(id.getBytes(StandardCharsets.UTF_8));
+        }
+        if (ids.isEmpty()) return;
+        byte[] ops = new byte[ids.size()];
+        Arrays.fill(ops, 0, upsertCount, OP_UPSERT);
+        Arrays.fill(ops, upsertCount, ops.length, OP_DELETE);
+        append(key, method, ops, ids, payloads);
+    }
+
+    @Override
+    public boolean needsFormatUpgrade() {
+        return false;
+    }
+
+    /** The log has a single method, so switching methods is one compaction under the target method. */
+    @Override
+    public synchronized String reencryptBatch(byte[] key, EncryptionMethod source, EncryptionMethod target,
+                                              String afterId, int maxEntries) throws Exception {
+        open(key);
+        if (cipher == null || cipher.getMethod() == target) return null;
+        rewrite(key, target, replay(key).values());
+        return null;
+    }
+
+    @Override
+    public boolean hasData() {
+        return logFile().length() > HEADER_LENGTH;
+    }
+
+    @Override
+    public synchronized void wipe() throws Exception {
+        close();
+        AtomicFileWriter.tempFile(logFile()).delete();
+        File file = logFile();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to delete vault log");
+        }
+    }
+
+    /** Drops replayed state and the key copy; a scheduled compaction is skipped. */
+    @Override
+    public synchronized void close() {
+        generation++;
+        resetState();
+    }
+
+    private File logFile() {
+        return new File(context.getFilesDir(), LOG_FILE);
+    }
+
+    private void resetState() {
+        if (stateKey != null) Arrays.fill(stateKey, (byte) 0);
+        stateKey = null;
+        cipher = null;
+        slots.clear();
+        recordCount = 0;
+        validLength = 0;
+        rewriteRequired = false;
+        compactionScheduled = false;
+    }
+
+    /** Replays the log once per key; later calls reuse the index. */
+    private void open(byte[] key) throws IOException, GeneralSecurityException {
+        if (stateKey != null && MessageDigest.isEqual(stateKey, key)) return;
+        replay(key);
+    }
+
+    /** Reads every record, rebuilding the index; returns the live entries in first-insert order. */
+    private Map<String, AuthEntry> replay(byte[] key) throws IOException, GeneralSecurityException {
+        resetState();
+        stateKey = key.clone();
+        Map<String, AuthEntry> live = new LinkedHashMap<>();
+        File file = logFile();
+        long fileLength = file.length();
+        if (fileLength == 0) return live;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a vault log");
+            byte tag = in.readByte();
+            byte[] salt = new byte[SegmentCipher.SALT_LENGTH];
+            in.readFully(salt);
+            cipher = SegmentCipher.open(key, tag, salt);
+            long position = HEADER_LENGTH;
+            while (position < fileLength) {
+                boolean tail;
+                byte[] sealed;
+                try {
+                    int length = in.readInt();
+                    tail = position + 4 + length >= fileLength;
+                    if (length <= 0 || length > MAX_RECORD_BYTES) {
+                        if (tail) break;
+                        throw new IOException("Corrupt log record length");
+                    }
+                    sealed = new byte[length];
+                    in.readFully(sealed);
+                } catch (EOFException torn) {
+                    break;
+                }
+                byte[] plain;
+                try {
+                    plain = openRecord(sealed, recordCount);
+                } catch (GeneralSecurityException e) {
+                    // Only the last record may be incomplete; anything earlier means the log was modified.
+                    if (tail) break;
+                    throw new IOException("Vault log record " + recordCount + " failed authentication", e);
+                }
+                apply(plain, position, live);
+                Arrays.fill(plain, (byte) 0);
+                position += 4 + sealed.length;
+                recordCount++;
+            }
+            validLength = position;
+            rewriteRequired = validLength < fileLength;
+        }
+        return live;
+    }
+
+    /** Decodes the upsert record at {@code slot}. */
+    private AuthEntry readRecord(RandomAccessFile raf, Slot slot) throws IOException, GeneralSecurityException {
+        raf.seek(slot.offset);
+        int length = raf.readInt();
+        if (length <= 0 || length > MAX_RECORD_BYTES) throw new IOException("Corrupt log record length");
+        byte[] sealed = new byte[length];
+        raf.readFully(sealed);
+        byte[] plain = openRecord(sealed, slot.index);
+        if (plain[0] != OP_UPSERT) throw new IOException("Index does not point at an entry");
+        try {
+            return decodeEntry(plain);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    private void apply(byte[] plain, long position, Map<String, AuthEntry> live) throws IOException {
+        if (plain[0] == OP_UPSERT) {
+            AuthEntry e = decodeEntry(plain);
+            live.put(e.getId(), e);
+            slots.put(e.getId(), new Slot(position, recordCount));
+        } else if (plain[0] == OP_DELETE) {
+            String id = new String(plain, 1, plain.length - 1, StandardCharsets.UTF_8);
+            live.remove(id);
+            slots.remove(id);
+        } else {
+            throw new IOException("Unknown log record type " + plain[0]);
+        }
+    }
+
+    /**
+     * Appends one record per payload ({@code ops[i]} is its type) with a single write and fsync. The log is
+     * rewritten first if it does not exist yet or ends in a torn record, so a record index is never sealed twice.
+     */
+    private void append(byte[] key, EncryptionMethod method, byte[] ops, List<String> ids, List<byte[]> payloads)
+            throws Exception {
+        open(key);
+        if (cipher == null || rewriteRequired) rewrite(key, method, replay(key).values());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buffer);
+        List<Slot> written = new ArrayList<>(payloads.size());
+        long position = validLength;
+        int index = recordCount;
+        for (int i = 0; i < payloads.size(); i++) {
+            byte[] payload = payloads.get(i);
+            int n = writeRecord(data, cipher, index, ops[i], payload);
+            Arrays.fill(payload, (byte) 0);
+            written.add(new Slot(position, index));
+            position += 4 + n;
+            index++;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(logFile(), "rw")) {
+            raf.seek(validLength);
+            raf.write(buffer.toByteArray());
+            raf.getFD().sync();
+        } catch (IOException e) {
+            rewriteRequired = true;
+            throw e;
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            if (ops[i] == OP_UPSERT) {
+                slots.put(ids.get(i), written.get(i));
+            } else {
+                slots.remove(ids.get(i));
+            }
+        }
+        recordCount = index;
+        validLength = position;
+        maybeScheduleCompaction(method);
+    }
+
+    /** Writes {@code entries} as a new log under a fresh salt and atomically replaces the old one. */
+    private void rewrite(byte[] key, EncryptionMethod method, Collection<AuthEntry> entries) throws Exception {
+        SegmentCipher fresh = SegmentCipher.create(key, method);
+        Map<String, Slot> freshSlots = new HashMap<>();
+        AtomicFileWriter.write(logFile(), out -> {
+            DataOutputStream data = new DataOutputStream(out);
+            data.write(MAGIC);
+            data.writeByte(fresh.getMethodTag());
+            data.write(fresh.getSalt());
+            int index = 0;
+            for (AuthEntry e : entries) {
+                freshSlots.put(e.getId(), new Slot(data.size(), index));
+                byte[] payload = encodeEntry(e);
+                writeRecord(data, fresh, index++, OP_UPSERT, payload);
+                Arrays.fill(payload, (byte) 0);
+            }
+            data.flush();
+        });
+        if (stateKey == null || !MessageDigest.isEqual(stateKey, key)) {
+            if (stateKey != null) Arrays.fill(stateKey, (byte) 0);
+            stateKey = key.clone();
+        }
+        cipher = fresh;
+        slots.clear();
+        slots.putAll(freshSlots);
+        recordCount = entries.size();
+        validLength = logFile().length();
+        rewriteRequired = false;
+    }
+
+    /** Seals {@code [op][payload]} as record {@code index} and writes it length-prefixed; returns the sealed length. */
+    private static int writeRecord(DataOutputStream data, SegmentCipher cipher, int index, byte op, byte[] payload)
+            throws IOException, GeneralSecurityException {
+        byte[] plain = new byte[1 + payload.length];
+        plain[0] = op;
+        System.arraycopy(payload, 0, plain, 1, payload.length);
+        byte[] sealed = new byte[cipher.maxSealedSize(plain.length)];
+        int n = cipher.seal(plain, 0, plain.length, index, false, sealed, 0);
+        Arrays.fill(plain, (byte) 0);
+        data.writeInt(n);
+        data.write(sealed, 0, n);
+        return n;
+    }
+
+    /** Upsert payload for {@code e}. */
+    private static byte[] encodeEntry(AuthEntry e) {
+        byte[] encoded = EntryCodec.encodeEntry(e);
+        byte[] compressed = PayloadCompression.compress(encoded, 0, encoded.length);
+        if (compressed == null) return encoded;
+        Arrays.fill(encoded, (byte) 0);
+        return compressed;
+    }
+
+    /** Entry of an upsert record {@code [op][payload]}. */
+    private AuthEntry decodeEntry(byte[] plain) throws IOException {
+        if (PayloadCompression.isCompressed(plain, 1, plain.length - 1)) {
+            byte[] expanded = PayloadCompression.decompress(plain, 1, plain.length - 1);
+            try {
+                return EntryCodec.decodeEntry(expanded, 0, expanded.length, true);
+            } finally {
+                Arrays.fill(expanded, (byte) 0);
+            }
+        }
+        if (EntryCodec.isEncoded(plain, 1, plain.length - 1)) {
+            return EntryCodec.decodeEntry(plain, 1, plain.length - 1, true);
+        }
+        return VaultJson.GSON.fromJson(new String(plain, 1, plain.length - 1, StandardCharsets.UTF_8), AuthEntry.class);
+    }
+
+    private byte[] openRecord(byte[] sealed, int index) throws GeneralSecurityException {
+        byte[] plain = new byte[sealed.length];
+        int n = cipher.open(sealed, 0, sealed.length, index, false, plain, 0);
+        if (n < 1) throw new GeneralSecurityException("Empty log record");
+        byte[] exact = Arrays.copyOf(plain, n);
+        Arrays.fill(plain, (byte) 0);
+        return exact;
+    }
+
+    /** Schedules a background compaction once more than half of a large enough log is superseded records. */
+    private void maybeScheduleCompaction(EncryptionMethod method) {
+        if (compactionScheduled || recordCount < COMPACT_MIN_RECORDS || slots.size() * 2 >= recordCount) return;
+        compactionScheduled = true;
+        byte[] key = stateKey.clone();
+        int scheduledGeneration = generation;
+        WorkerPool.get().execute(() -> {
+            try {
+                synchronized (this) {
+                    if (generation != scheduledGeneration || !compactionScheduled) return;
+                    rewrite(key, method, replay(key).values());
+                }
+            } catch (Exception ignored) {
+                // The log itself is still valid; compaction is retried after a later append.
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+        });
+    }
+}
@@ -0,0 +1,232 @@
+package com.passvault.app.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of a plaintext payload before it is sealed: {@code [codec][int original length][body]}.
+ * <p>
+ * The codec is chosen by size: payloads under {@link #MIN_BYTES} are left as they are, mid-sized ones (log
+ * records, long history items) use a fast LZ77 block codec ({@link #LZ}, the LZ4 block layout), and large ones
+ * (vault.dat blocks) use Deflate. A result that is not smaller than the input is discarded. An uncompressed
+ * payload has no header, so {@link #isCompressed} goes by the first byte alone. That is only safe because of
+ * what the payloads this is used for start with: JSON from earlier releases starts with {@code '['} or
+ * {@code '{'} and {@link EntryCodec} payloads with its {@link EntryCodec#VERSION}, none of which is 0xC1 or
+ * 0xC2. It does not hold for text in general (0xC2 is a valid UTF-8 lead byte).
+ * <p>
+ * Compressed sizes are visible after encryption. Vault payloads are written only by the owner, so the size
+ * cannot be probed with chosen plaintext. {@link Deflater}'s internal buffers cannot be zeroed.
+ */
+final class PayloadCompression {
+
+    static final byte DEFLATE = (byte) 0xC1;
+    static final byte LZ = (byte) 0xC2;
+    private static final int HEADER_LENGTH = 5;
+
+    /** Smaller payloads gain too little to pay for the header. */
+    static final int MIN_BYTES = 128;
+    /** From this size on, Deflate's better ratio is worth its slower compression. */
+    static final int DEFLATE_MIN_BYTES = 16 * 1024;
+    private static final int MAX_ORIGINAL_BYTES = 256 * 1024 * 1024;
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+
+    private PayloadCompression() {
+    }
+
+    /**
+     * Compressed payload with header, or null if {@code plain} should be stored as it is (too small, or does
+     * not compress).
+     */
+    static byte[] compress(byte[] plain, int offset, int length) {
+        if (length < MIN_BYTES) return null;
+        byte codec = length >= DEFLATE_MIN_BYTES ? DEFLATE : LZ;
+        byte[] out = new byte[HEADER_LENGTH + (codec == LZ ? lzMaxSize(length) : length)];
+        int n = codec == LZ
+                ? lzCompress(plain, offset, length, out, HEADER_LENGTH)
+                : deflate(plain, offset, length, out, HEADER_LENGTH);
+        if (n < 0 || HEADER_LENGTH + n >= length) {
+            Arrays.fill(out, (byte) 0);
+            return null;
+        }
+        out[0] = codec;
+        out[1] = (byte) (length >>> 24);
+        out[2] = (byte) (length >>> 16);
+        out[3] = (byte) (length >>> 8);
+        out[4] = (byte) length;
+        byte[] exact = Arrays.copyOf(out, HEADER_LENGTH + n);
+        Arrays.fill(out, (byte) 0);
+        return exact;
+    }
+
+    static boolean isCompressed(byte[] payload, int offset, int length) {
+        return length >= HEADER_LENGTH && (payload[offset] == DEFLATE || payload[offset] == LZ);
+    }
+
+    /** Original payload of a {@link #compress} result. */
+    static byte[] decompress(byte[] payload, int offset, int length) throws IOException {
+        if (!isCompressed(payload, offset, length)) throw new IOException("Payload is not compressed");
+        int original = ((payload[offset + 1] & 0xFF) << 24) | ((payload[offset + 2] & 0xFF) << 16)
+                | ((payload[offset + 3] & 0xFF) << 8) | (payload[offset + 4] & 0xFF);
+        if (original < 0 || original > MAX_ORIGINAL_BYTES) throw new IOException("Corrupt compressed length");
+        byte[] out = new byte[original];
+        int bodyOffset = offset + HEADER_LENGTH;
+        int bodyLength = length - HEADER_LENGTH;
+        if (payload[offset] == LZ) {
+            lzDecompress(payload, bodyOffset, bodyLength, out);
+        } else {
+            inflate(payload, bodyOffset, bodyLength, out);
+        }
+        return out;
+    }
+
+    /** Deflates into {@code out}; -1 if the result does not fit (the input does not compress). */
+    private static int deflate(byte[] in, int offset, int length, byte[] out, int outOffset) {
+        // Fastest level: vault.dat is rewritten on every save, and higher levels gain under 10% on vault data.
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(in, offset, length);
+            deflater.finish();
+            int n = 0;
+            int room = out.length - outOffset;
+            while (!deflater.finished()) {
+                if (n == room) return -1;
+                n += deflater.deflate(out, outOffset + n, room - n);
+            }
+            return n;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void inflate(byte[] in, int offset, int length, byte[] out) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(in, offset, length);
+            int n = 0;
+            while (n < out.length) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                n += r;
+            }
+            // All output can be produced before the end of the stream is read, so a cut end marker shows only here.
+            if (n != out.length || !finish(inflater)) throw new IOException("Compressed payload is truncated");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Reads past the last output byte; false if the stream does not end there. */
+    private static boolean finish(Inflater inflater) throws DataFormatException {
+        return inflater.finished() || (inflater.inflate(new byte[1]) == 0 && inflater.finished());
+    }
+
+    private static int lzMaxSize(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Greedy LZ77 with a 4 KiB-entry hash of 4-byte sequences. Output is sequences of
+     * {@code [token][literal length ext][literals][offset LE16][match length ext]}; the token holds the literal
+     * length and match length - 4 in its high and low nibble (15 = more in 255-runs). The last sequence has
+     * literals only.
+     */
+    private static int lzCompress(byte[] in, int offset, int length, byte[] out, int outOffset) {
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int end = offset + length;
+        int anchor = offset;
+        int i = offset;
+        int o = outOffset;
+        while (i + MIN_MATCH <= end) {
+            int sequence = read32(in, i);
+            int h = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > MAX_OFFSET || read32(in, ref) != sequence) {
+                i++;
+                continue;
+            }
+            int match = MIN_MATCH;
+            while (i + match < end && in[ref + match] == in[i + match]) match++;
+            int token = o;
+            o = writeSequence(in, anchor, i - anchor, out, o);
+            out[o++] = (byte) (i - ref);
+            out[o++] = (byte) ((i - ref) >>> 8);
+            int extra = match - MIN_MATCH;
+            out[token] |= (byte) Math.min(extra, 15);
+            if (extra >= 15) o = writeLengthExt(out, o, extra - 15);
+            i += match;
+            anchor = i;
+        }
+        return writeSequence(in, anchor, end - anchor, out, o) - outOffset;
+    }
+
+    /** Token (match nibble 0), literal length extension and literals; returns the new output position. */
+    private static int writeSequence(byte[] in, int from, int literals, byte[] out, int o) {
+        out[o++] = (byte) (Math.min(literals, 15) << 4);
+        if (literals >= 15) o = writeLengthExt(out, o, literals - 15);
+        System.arraycopy(in, from, out, o, literals);
+        return o + literals;
+    }
+
+    private static int writeLengthExt(byte[] out, int o, int remaining) {
+        while (remaining >= 255) {
+            out[o++] = (byte) 255;
+            remaining -= 255;
+        }
+        out[o++] = (byte) remaining;
+        return o;
+    }
+
+    private static void lzDecompress(byte[] in, int offset, int length, byte[] out) throws IOException {
+        int end = offset + length;
+        int i = offset;
+        int o = 0;
+        try {
+            while (true) {
+                int token = in[i++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = in[i++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > end - i || literals > out.length - o) throw new IOException("Corrupt LZ literals");
+                System.arraycopy(in, i, out, o, literals);
+                i += literals;
+                o += literals;
+                if (i == end) break;
+                int distance = (in[i] & 0xFF) | ((in[i + 1] & 0xFF) << 8);
+                i += 2;
+                int match = (token & 0x0F);
+                if (match == 15) {
+                    int b;
+                    do {
+                        b = in[i++] & 0xFF;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                if (distance == 0 || distance > o || match > out.length - o) throw new IOException("Corrupt LZ match");
+                for (int k = 0; k < match; k++, o++) out[o] = out[o - distance];
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated LZ payload", e);
+        }
+        if (o != out.length) throw new IOException("LZ payload has the wrong length");
+    }
+
+    private static int read32(byte[] b, int i) {
+        return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+    }
+}
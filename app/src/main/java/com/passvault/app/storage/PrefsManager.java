@@ -4,19 +4,45 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Base64;
 
+import com.passvault.app.crypto.KdfParams;
+import com.passvault.app.crypto.KeyDerivation;
 import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.data.KdfAlgorithm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
- * Stores salt, master password hash, encryption method, and storage type.
+ * Stores salt, master password hash, wrapped data key, key derivation version and parameters, encryption method,
+ * and storage type, with the progress of a pending re-encryption or storage switch.
  */
 public class PrefsManager {
 
     private static final String PREFS_NAME = "passvault_prefs";
     private static final String KEY_SALT = "salt";
     private static final String KEY_MASTER_HASH = "master_hash";
+    private static final String KEY_WRAPPED_DATA_KEY = "wrapped_data_key";
+    private static final String KEY_KDF_VERSION = "kdf_version";
+    private static final String KEY_KDF_ALGORITHM = "kdf_algorithm";
+    private static final String KEY_KDF_ITERATIONS = "kdf_iterations";
+    private static final String KEY_KDF_MEMORY_KIB = "kdf_memory_kib";
+    private static final String KEY_KDF_LANES = "kdf_lanes";
+    private static final String KEY_KDF_PREFERRED_ALGORITHM = "kdf_preferred_algorithm";
+    private static final String KEY_KDF_TARGET_MS = "kdf_target_ms";
+    private static final String KEY_KDF_RECALIBRATE = "kdf_recalibrate";
     private static final String KEY_ENCRYPTION_METHOD = "encryption_method";
+    private static final String KEY_MIGRATION_SOURCE = "method_migration_source";
+    private static final String KEY_MIGRATION_CURSOR = "method_migration_cursor";
+    private static final String KEY_MIGRATION_DONE = "method_migration_done";
     private static final String KEY_VAULT_EXISTS = "vault_exists";
     private static final String KEY_STORAGE_TYPE = "storage_type";
+    private static final String KEY_STORAGE_MIGRATION_TARGET = "storage_migration_target";
+    private static final String KEY_STORAGE_MIGRATION_CURSOR = "storage_migration_cursor";
+    private static final String KEY_STORAGE_MIGRATION_DONE = "storage_migration_done";
+    private static final String KEY_STORAGE_MIGRATION_CHECKSUM = "storage_migration_checksum";
+    private static final String KEY_STORAGE_MIGRATION_CHANGED = "storage_migration_changed";
     private static final String KEY_REUSE_CHECK_COUNT = "reuse_check_count";
     private static final String KEY_ENFORCE_REUSE_CHECK = "enforce_reuse_check";
     private static final String KEY_WIPE_AFTER_ATTEMPTS = "wipe_after_attempts";
@@ -24,6 +50,9 @@ public class PrefsManager {
 
     private static final int DEFAULT_REUSE_CHECK_COUNT = 3;
     private static final int DEFAULT_WIPE_AFTER_ATTEMPTS = 2;
+    private static final int DEFAULT_KDF_TARGET_MS = 500;
+    public static final int MIN_KDF_TARGET_MS = 100;
+    public static final int MAX_KDF_TARGET_MS = 5000;
 
     private final SharedPreferences prefs;
 
@@ -37,19 +66,98 @@ public class PrefsManager {
         return Base64.decode(b64, Base64.NO_WRAP);
     }
 
-    public void setSalt(byte[] salt) {
-        prefs.edit()
+    public String getMasterHash() {
+        return prefs.getString(KEY_MASTER_HASH, null);
+    }
+
+    /** Key derivation scheme of the stored hash; vaults created before versioning are legacy. */
+    public int getKdfVersion() {
+        return prefs.getInt(KEY_KDF_VERSION, KeyDerivation.VERSION_LEGACY);
+    }
+
+    /**
+     * Key derivation algorithm and cost for this vault; vaults created before calibration use PBKDF2
+     * with the old fixed count.
+     */
+    public KdfParams getKdfParams() {
+        int iterations = prefs.getInt(KEY_KDF_ITERATIONS, KdfParams.DEFAULT_PBKDF2_ITERATIONS);
+        if (readKdfAlgorithm(KEY_KDF_ALGORITHM) == KdfAlgorithm.ARGON2ID) {
+            return KdfParams.argon2id(iterations,
+                    prefs.getInt(KEY_KDF_MEMORY_KIB, KdfParams.DEFAULT_ARGON2_MEMORY_KIB),
+                    prefs.getInt(KEY_KDF_LANES, 1));
+        }
+        return new KdfParams(iterations);
+    }
+
+    /** Data key wrapped by the password-derived key (envelope scheme), or null for older vaults. */
+    public byte[] getWrappedDataKey() {
+        String b64 = prefs.getString(KEY_WRAPPED_DATA_KEY, null);
+        if (b64 == null) return null;
+        return Base64.decode(b64, Base64.NO_WRAP);
+    }
+
+    /**
+     * Stores salt, master hash, derivation version and parameters and the wrapped data key together, and
+     * clears a pending recalibration. Committed synchronously as one edit so a password change or migration
+     * never leaves a hash paired with the wrong salt, parameters or wrapped key.
+     *
+     * @param wrappedDataKey null for schemes before {@link KeyDerivation#VERSION_ENVELOPE}
+     */
+    public void setKeyMaterial(byte[] salt, String hash, int kdfVersion, KdfParams params, byte[] wrappedDataKey) {
+        SharedPreferences.Editor editor = prefs.edit()
                 .putString(KEY_SALT, Base64.encodeToString(salt, Base64.NO_WRAP))
-                .putBoolean(KEY_VAULT_EXISTS, true)
-                .apply();
+                .putString(KEY_MASTER_HASH, hash)
+                .putInt(KEY_KDF_VERSION, kdfVersion)
+                .putString(KEY_KDF_ALGORITHM, params.getAlgorithm().name())
+                .putInt(KEY_KDF_ITERATIONS, params.getIterations())
+                .putInt(KEY_KDF_MEMORY_KIB, params.getMemoryKib())
+                .putInt(KEY_KDF_LANES, params.getParallelism())
+                .putBoolean(KEY_KDF_RECALIBRATE, false)
+                .putBoolean(KEY_VAULT_EXISTS, true);
+        if (wrappedDataKey != null) {
+            editor.putString(KEY_WRAPPED_DATA_KEY, Base64.encodeToString(wrappedDataKey, Base64.NO_WRAP));
+        } else {
+            editor.remove(KEY_WRAPPED_DATA_KEY);
+        }
+        editor.commit();
     }
 
-    public String getMasterHash() {
-        return prefs.getString(KEY_MASTER_HASH, null);
+    /** Target unlock (key derivation) time used for calibration. Default 500 ms. */
+    public int getKdfTargetMillis() {
+        int v = prefs.getInt(KEY_KDF_TARGET_MS, DEFAULT_KDF_TARGET_MS);
+        return v < MIN_KDF_TARGET_MS ? MIN_KDF_TARGET_MS : (v > MAX_KDF_TARGET_MS ? MAX_KDF_TARGET_MS : v);
+    }
+
+    /** Changing the target schedules recalibration; it is applied at the next unlock (needs the password). */
+    public void setKdfTargetMillis(int millis) {
+        int v = millis < MIN_KDF_TARGET_MS ? MIN_KDF_TARGET_MS : (millis > MAX_KDF_TARGET_MS ? MAX_KDF_TARGET_MS : millis);
+        if (v == getKdfTargetMillis()) return;
+        prefs.edit().putInt(KEY_KDF_TARGET_MS, v).putBoolean(KEY_KDF_RECALIBRATE, true).apply();
     }
 
-    public void setMasterHash(String hash) {
-        prefs.edit().putString(KEY_MASTER_HASH, hash).apply();
+    /** Algorithm used when the vault is (re)calibrated. Default PBKDF2. */
+    public KdfAlgorithm getPreferredKdfAlgorithm() {
+        return readKdfAlgorithm(KEY_KDF_PREFERRED_ALGORITHM);
+    }
+
+    /** Like the target time, a new algorithm is applied by recalibrating at the next unlock. */
+    public void setPreferredKdfAlgorithm(KdfAlgorithm algorithm) {
+        if (algorithm == getPreferredKdfAlgorithm()) return;
+        prefs.edit().putString(KEY_KDF_PREFERRED_ALGORITHM, algorithm.name())
+                .putBoolean(KEY_KDF_RECALIBRATE, true).apply();
+    }
+
+    private KdfAlgorithm readKdfAlgorithm(String key) {
+        String name = prefs.getString(key, KdfAlgorithm.PBKDF2_SHA256.name());
+        try {
+            return KdfAlgorithm.valueOf(name);
+        } catch (Exception e) {
+            return KdfAlgorithm.PBKDF2_SHA256;
+        }
+    }
+
+    public boolean isKdfRecalibrationPending() {
+        return prefs.getBoolean(KEY_KDF_RECALIBRATE, false);
     }
 
     public EncryptionMethod getEncryptionMethod() {
@@ -65,6 +173,50 @@ public class PrefsManager {
         prefs.edit().putString(KEY_ENCRYPTION_METHOD, method.name()).apply();
     }
 
+    /** Method being migrated away from, or null when no re-encryption is pending. */
+    public EncryptionMethod getMethodMigrationSource() {
+        String name = prefs.getString(KEY_MIGRATION_SOURCE, null);
+        if (name == null) return null;
+        try {
+            return EncryptionMethod.valueOf(name);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** Id after which re-encryption continues; null to start from the first entry. */
+    public String getMethodMigrationCursor() {
+        return prefs.getString(KEY_MIGRATION_CURSOR, null);
+    }
+
+    /** Entries visited so far by the pending re-encryption (progress only). */
+    public int getMethodMigrationDone() {
+        return prefs.getInt(KEY_MIGRATION_DONE, 0);
+    }
+
+    /**
+     * Sets the method for new data and (re)starts re-encryption of existing data from the first entry.
+     * A migration that is already pending keeps its source, since untagged data can only be in that method.
+     */
+    public void beginMethodMigration(EncryptionMethod from, EncryptionMethod to) {
+        EncryptionMethod pending = getMethodMigrationSource();
+        prefs.edit()
+                .putString(KEY_ENCRYPTION_METHOD, to.name())
+                .putString(KEY_MIGRATION_SOURCE, (pending != null ? pending : from).name())
+                .remove(KEY_MIGRATION_CURSOR)
+                .putInt(KEY_MIGRATION_DONE, 0)
+                .commit();
+    }
+
+    /** Committed synchronously: the cursor must never run ahead of data that is actually re-encrypted. */
+    public void setMethodMigrationProgress(String cursor, int done) {
+        prefs.edit().putString(KEY_MIGRATION_CURSOR, cursor).putInt(KEY_MIGRATION_DONE, done).commit();
+    }
+
+    public void finishMethodMigration() {
+        prefs.edit().remove(KEY_MIGRATION_SOURCE).remove(KEY_MIGRATION_CURSOR).remove(KEY_MIGRATION_DONE).commit();
+    }
+
     public StorageType getStorageType() {
         String name = prefs.getString(KEY_STORAGE_TYPE, StorageType.FILE.name());
         try {
@@ -78,12 +230,126 @@ public class PrefsManager {
         prefs.edit().putString(KEY_STORAGE_TYPE, type.name()).apply();
     }
 
+    /** Storage type the vault is being copied to, or null when no switch is pending. */
+    public StorageType getStorageMigrationTarget() {
+        String name = prefs.getString(KEY_STORAGE_MIGRATION_TARGET, null);
+        if (name == null) return null;
+        try {
+            return StorageType.valueOf(name);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** Source cursor after the last copied batch; null before the first batch and once all are copied. */
+    public String getStorageMigrationCursor() {
+        return prefs.getString(KEY_STORAGE_MIGRATION_CURSOR, null);
+    }
+
+    /** Entries copied so far by the pending switch. */
+    public int getStorageMigrationDone() {
+        return prefs.getInt(KEY_STORAGE_MIGRATION_DONE, 0);
+    }
+
+    /** Checksum state of the entries copied so far, or null before the first batch. */
+    public byte[] getStorageMigrationChecksum() {
+        String b64 = prefs.getString(KEY_STORAGE_MIGRATION_CHECKSUM, null);
+        return b64 != null ? Base64.decode(b64, Base64.NO_WRAP) : null;
+    }
+
+    /** Ids written to the source since the pending switch started and not yet copied again. */
+    public synchronized Set<String> getStorageMigrationChanged() {
+        return new HashSet<>(prefs.getStringSet(KEY_STORAGE_MIGRATION_CHANGED, Collections.emptySet()));
+    }
+
+    /**
+     * Records ids about to be written while a switch is pending, so the copy picks up their new state. Committed
+     * synchronously and before the write, so a crash in between cannot leave a changed entry unrecorded.
+     */
+    public synchronized void addStorageMigrationChanged(Collection<String> ids) {
+        if (ids.isEmpty() || getStorageMigrationTarget() == null) return;
+        Set<String> changed = getStorageMigrationChanged();
+        if (!changed.addAll(ids)) return;
+        prefs.edit().putStringSet(KEY_STORAGE_MIGRATION_CHANGED, changed).commit();
+    }
+
+    /** Starts a copy to {@code target} from the first entry, replacing any pending switch. */
+    public synchronized void beginStorageMigration(StorageType target) {
+        prefs.edit()
+                .putString(KEY_STORAGE_MIGRATION_TARGET, target.name())
+                .remove(KEY_STORAGE_MIGRATION_CURSOR)
+                .remove(KEY_STORAGE_MIGRATION_DONE)
+                .remove(KEY_STORAGE_MIGRATION_CHECKSUM)
+                .remove(KEY_STORAGE_MIGRATION_CHANGED)
+                .commit();
+    }
+
+    /**
+     * Committed synchronously, and only while {@code target} is still the pending switch, so progress never runs
+     * ahead of copied data or lands on a newer switch. {@code recopied} ids leave the changed set in the same
+     * commit.
+     *
+     * @return false if the switch to {@code target} was replaced or cancelled meanwhile
+     */
+    public synchronized boolean setStorageMigrationProgress(StorageType target, String cursor, int done,
+                                                            byte[] checksum, Collection<String> recopied) {
+        if (target != getStorageMigrationTarget()) return false;
+        SharedPreferences.Editor editor = prefs.edit()
+                .putString(KEY_STORAGE_MIGRATION_CURSOR, cursor)
+                .putInt(KEY_STORAGE_MIGRATION_DONE, done)
+                .putString(KEY_STORAGE_MIGRATION_CHECKSUM, Base64.encodeToString(checksum, Base64.NO_WRAP));
+        if (!recopied.isEmpty()) {
+            Set<String> changed = getStorageMigrationChanged();
+            if (changed.removeAll(recopied)) editor.putStringSet(KEY_STORAGE_MIGRATION_CHANGED, changed);
+        }
+        editor.commit();
+        return true;
+    }
+
+    /** Drops copy progress but keeps the pending switch, which then starts over (the method has changed). */
+    public synchronized void restartStorageMigration() {
+        if (!prefs.contains(KEY_STORAGE_MIGRATION_DONE)) return;
+        prefs.edit()
+                .remove(KEY_STORAGE_MIGRATION_CURSOR)
+                .remove(KEY_STORAGE_MIGRATION_DONE)
+                .remove(KEY_STORAGE_MIGRATION_CHECKSUM)
+                .remove(KEY_STORAGE_MIGRATION_CHANGED)
+                .commit();
+    }
+
+    /** Makes {@code target} the storage type and ends the switch in one commit. */
+    public synchronized void finishStorageMigration(StorageType target) {
+        prefs.edit()
+                .putString(KEY_STORAGE_TYPE, target.name())
+                .remove(KEY_STORAGE_MIGRATION_TARGET)
+                .remove(KEY_STORAGE_MIGRATION_CURSOR)
+                .remove(KEY_STORAGE_MIGRATION_DONE)
+                .remove(KEY_STORAGE_MIGRATION_CHECKSUM)
+                .remove(KEY_STORAGE_MIGRATION_CHANGED)
+                .commit();
+    }
+
+    public synchronized void cancelStorageMigration() {
+        prefs.edit()
+                .remove(KEY_STORAGE_MIGRATION_TARGET)
+                .remove(KEY_STORAGE_MIGRATION_CURSOR)
+                .remove(KEY_STORAGE_MIGRATION_DONE)
+                .remove(KEY_STORAGE_MIGRATION_CHECKSUM)
+                .remove(KEY_STORAGE_MIGRATION_CHANGED)
+                .commit();
+    }
+
     public boolean isVaultCreated() {
         return prefs.getBoolean(KEY_VAULT_EXISTS, false);
     }
 
     public void clearVaultFlag() {
-        prefs.edit().remove(KEY_SALT).remove(KEY_MASTER_HASH).remove(KEY_VAULT_EXISTS).apply();
+        prefs.edit().remove(KEY_SALT).remove(KEY_MASTER_HASH).remove(KEY_WRAPPED_DATA_KEY).remove(KEY_KDF_VERSION)
+                .remove(KEY_KDF_ALGORITHM).remove(KEY_KDF_ITERATIONS).remove(KEY_KDF_MEMORY_KIB).remove(KEY_KDF_LANES)
+                .remove(KEY_KDF_RECALIBRATE).remove(KEY_MIGRATION_SOURCE).remove(KEY_MIGRATION_CURSOR)
+                .remove(KEY_MIGRATION_DONE).remove(KEY_STORAGE_MIGRATION_TARGET).remove(KEY_STORAGE_MIGRATION_CURSOR)
+                .remove(KEY_STORAGE_MIGRATION_DONE).remove(KEY_STORAGE_MIGRATION_CHECKSUM)
+                .remove(KEY_STORAGE_MIGRATION_CHANGED).remove(KEY_VAULT_EXISTS).apply();
     }
 
     /** Number of recent passwords to check for reuse (default 3). */
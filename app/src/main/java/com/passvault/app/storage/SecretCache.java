@@ -0,0 +1,47 @@
+package com.passvault.app.storage;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU of decrypted secrets by entry id. Stored arrays are zeroed when they are evicted, replaced,
+ * invalidated or cleared; callers always get their own copy.
+ */
+final class SecretCache {
+
+    private final LinkedHashMap<String, char[]> secrets;
+
+    SecretCache(int capacity) {
+        secrets = new LinkedHashMap<String, char[]>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, char[]> eldest) {
+                if (size() <= capacity) return false;
+                Arrays.fill(eldest.getValue(), '\0');
+                return true;
+            }
+        };
+    }
+
+    /** Copy of the cached secret, or null if it is not cached. */
+    synchronized char[] get(String id) {
+        char[] secret = secrets.get(id);
+        return secret != null ? secret.clone() : null;
+    }
+
+    /** Takes ownership of {@code secret}. */
+    synchronized void put(String id, char[] secret) {
+        char[] previous = secrets.put(id, secret);
+        if (previous != null && previous != secret) Arrays.fill(previous, '\0');
+    }
+
+    synchronized void invalidate(String id) {
+        char[] previous = secrets.remove(id);
+        if (previous != null) Arrays.fill(previous, '\0');
+    }
+
+    synchronized void clear() {
+        for (char[] secret : secrets.values()) Arrays.fill(secret, '\0');
+        secrets.clear();
+    }
+}
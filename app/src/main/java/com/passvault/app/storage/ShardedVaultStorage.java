@@ -0,0 +1,614 @@
+package com.passvault.app.storage;
+
+import android.content.Context;
+
+import com.passvault.app.crypto.VaultCipher;
+import com.passvault.app.data.AuthEntry;
+import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.data.EntryHistoryItem;
+import com.passvault.app.util.WorkerPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Stores entries spread over encrypted shard files (vault_shards/), so an edit rewrites one shard of at most
+ * {@link #MAX_SHARD_ENTRIES} entries instead of the whole vault.
+ * <p>
+ * Entries are placed by the first 32 bits of SHA-256 of their id (extendible hashing): a shard of depth d holds
+ * the ids whose hash starts with its d-bit prefix. A shard that grows past {@link #MAX_SHARD_ENTRIES} splits
+ * into its two halves; once a shard and its sibling together hold at most {@link #MERGE_MAX_ENTRIES}, a delete
+ * merges them again. A shard file is {@link #SHARD_MAGIC} followed by {@link EntryBlockFormat}. The manifest
+ * lists the shards and is sealed as a whole by {@link VaultCipher}, so a shard file that goes missing fails the
+ * load instead of silently dropping its entries. Loading decrypts the shards in parallel on {@link WorkerPool}.
+ * <p>
+ * An edit within one shard replaces that file ({@link AtomicFileWriter}). Anything that changes the shard set
+ * or several shards at once (a batch, split, merge or full save) writes new files under a fresh generation and
+ * commits by replacing the manifest, so a crash leaves either the old or the new set; files the manifest does
+ * not list are deleted the next time it is read.
+ */
+public class ShardedVaultStorage implements VaultStorage {
+
+    private static final String SHARD_DIR = "vault_shards";
+    private static final String MANIFEST_FILE = "manifest";
+    private static final String SHARD_SUFFIX = ".shard";
+    private static final byte[] MANIFEST_MAGIC = {'P', 'V', 'M', 1};
+    private static final byte[] SHARD_MAGIC = {'P', 'V', 'S', 1};
+    private static final int MANIFEST_VERSION = 1;
+    private static final int HASH_BITS = 32;
+    /** A shard splits when a write would leave more entries than this in it. */
+    static final int MAX_SHARD_ENTRIES = 256;
+    /** Sibling shards merge when a delete leaves at most this many entries in both together. */
+    static final int MERGE_MAX_ENTRIES = MAX_SHARD_ENTRIES / 4;
+
+    private final Context context;
+
+    // Manifest for stateKey; re-read when the key changes or after close().
+    private byte[] stateKey;
+    /** Shards by the first hash they cover; together they cover every hash exactly once. */
+    private final TreeMap<Long, Shard> shards = new TreeMap<>();
+    private boolean manifestStored;
+    private EncryptionMethod manifestMethod;
+
+    /** Covers the hashes whose first {@code depth} bits equal {@code prefix}. */
+    private static final class Shard {
+        final int depth;
+        final long prefix;
+        final long generation;
+
+        Shard(int depth, long prefix, long generation) {
+            this.depth = depth;
+            this.prefix = prefix;
+            this.generation = generation;
+        }
+
+        long start() {
+            return prefix << (HASH_BITS - depth);
+        }
+
+        String fileName() {
+            return String.format(Locale.ROOT, "%02d-%08x-%d%s", depth, prefix, generation, SHARD_SUFFIX);
+        }
+    }
+
+    /** Entry with its placement hash, for splitting a hash-sorted list at shard boundaries. */
+    private static final class Placed {
+        final long hash;
+        final AuthEntry entry;
+
+        Placed(long hash, AuthEntry entry) {
+            this.hash = hash;
+            this.entry = entry;
+        }
+    }
+
+    public ShardedVaultStorage(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /** Shards are read and decrypted in parallel, one task per shard. */
+    @Override
+    public synchronized List<AuthEntry> loadEntries(byte[] key, EncryptionMethod method, boolean includeHistory)
+            throws Exception {
+        open(key);
+        List<Shard> all = new ArrayList<>(shards.values());
+        if (all.size() == 1) return readShard(key, all.get(0), includeHistory);
+        ExecutorService pool = WorkerPool.get();
+        List<Future<List<AuthEntry>>> pending = new ArrayList<>(all.size());
+        List<AuthEntry> result = new ArrayList<>();
+        try {
+            for (Shard shard : all) {
+                pending.add(pool.submit(() -> readShard(key, shard, includeHistory)));
+            }
+            for (Future<List<AuthEntry>> f : pending) result.addAll(f.get());
+        } catch (ExecutionException e) {
+            for (Future<List<AuthEntry>> f : pending) f.cancel(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+        return result;
+    }
+
+    /** Each shard is sealed as a whole, so secrets are decrypted with the rest of the list. */
+    @Override
+    public synchronized List<AuthEntry> loadEntryMetadata(byte[] key, EncryptionMethod method) throws Exception {
+        return loadEntries(key, method, false);
+    }
+
+    /** Not paged natively: entries are spread by hash, so a page in list order needs every shard. */
+    @Override
+    public boolean supportsPagedLoading() {
+        return false;
+    }
+
+    @Override
+    public synchronized List<AuthEntry> loadEntryPage(byte[] key, EncryptionMethod method, String titleQuery,
+                                                      long afterCreatedAt, String afterId, int limit) throws Exception {
+        List<AuthEntry> all = loadEntryMetadata(key, method);
+        all.sort(EntryPages.ORDER);
+        return EntryPages.page(all, titleQuery, afterCreatedAt, afterId, limit);
+    }
+
+    @Override
+    public synchronized int countEntries(byte[] key, EncryptionMethod method, String titleQuery) throws Exception {
+        return EntryPages.count(loadEntryMetadata(key, method), titleQuery);
+    }
+
+    @Override
+    public synchronized char[] loadSecret(byte[] key, EncryptionMethod method, String entryId) throws Exception {
+        AuthEntry e = getEntryWithHistory(key, method, entryId);
+        if (e == null) return null;
+        return e.getPasswordOrToken() != null ? e.getPasswordOrToken().toCharArray() : new char[0];
+    }
+
+    /** Reads only the entry's shard. */
+    @Override
+    public synchronized AuthEntry getEntryWithHistory(byte[] key, EncryptionMethod method, String entryId)
+            throws Exception {
+        open(key);
+        for (AuthEntry e : readShard(key, shardFor(hashOf(entryId)), true)) {
+            if (entryId.equals(e.getId())) return e;
+        }
+        return null;
+    }
+
+    /** Reads the entry's shard; its history is sealed with it. */
+    @Override
+    public synchronized List<EntryHistoryItem> loadHistoryPage(byte[] key, EncryptionMethod method, String entryId,
+                                                               int skip, int limit) throws Exception {
+        AuthEntry e = getEntryWithHistory(key, method, entryId);
+        return e != null ? VaultStorage.historyPage(e.getHistory(), skip, limit) : new ArrayList<>();
+    }
+
+    /**
+     * Entries in (hash, id) order, one shard at a time; the cursor is the last id returned, which also locates
+     * the shard to continue in.
+     */
+    @Override
+    public synchronized String readEntryBatch(byte[] key, EncryptionMethod method, String cursor, int limit,
+                                              List<AuthEntry> out) throws Exception {
+        open(key);
+        long afterHash = cursor != null ? hashOf(cursor) : -1;
+        Map.Entry<Long, Shard> at = cursor != null ? shards.floorEntry(afterHash) : shards.firstEntry();
+        String last = cursor;
+        for (; at != null; at = shards.higherEntry(at.getKey())) {
+            for (Placed p : place(readShard(key, at.getValue(), true))) {
+                if (cursor != null && compare(p.hash, p.entry.getId(), afterHash, cursor) <= 0) continue;
+                if (out.size() >= limit) return last;
+                out.add(p.entry);
+                last = p.entry.getId();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces all data with a fresh shard set sized for {@code entries}. The current manifest is not read, so
+     * this also works when the data is re-sealed under a new key.
+     */
+    @Override
+    public synchronized void saveEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries)
+            throws Exception {
+        resetState();
+        Map<Shard, List<AuthEntry>> layout = new LinkedHashMap<>();
+        List<Placed> placed = place(entries != null ? entries : Collections.emptyList());
+        layout(placed, 0, placed.size(), 0, 0, nextGeneration(), layout);
+        for (Map.Entry<Shard, List<AuthEntry>> e : layout.entrySet()) writeShard(key, method, e.getKey(), e.getValue());
+        TreeMap<Long, Shard> next = new TreeMap<>();
+        for (Shard shard : layout.keySet()) next.put(shard.start(), shard);
+        writeManifest(key, method, next);
+        stateKey = key.clone();
+    }
+
+    @Override
+    public void upsertEntry(byte[] key, EncryptionMethod method, AuthEntry entry) throws Exception {
+        upsertEntries(key, method, Collections.singletonList(entry));
+    }
+
+    @Override
+    public void upsertEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries) throws Exception {
+        if (entries == null || entries.isEmpty()) return;
+        applyChanges(key, method, entries, Collections.emptySet());
+    }
+
+    @Override
+    public void deleteEntry(byte[] key, EncryptionMethod method, String entryId) throws Exception {
+        applyChanges(key, method, Collections.emptyList(), Collections.singleton(entryId));
+    }
+
+    /**
+     * Reads and rewrites only the shards the changes fall into; one shard is replaced in place. A shard left
+     * with at most {@link #MERGE_MAX_ENTRIES} entries is merged with its sibling when both fit in one.
+     */
+    @Override
+    public synchronized void applyChanges(byte[] key, EncryptionMethod method, List<AuthEntry> upserts,
+                                          Collection<String> deletedIds) throws Exception {
+        if (upserts.isEmpty() && deletedIds.isEmpty()) return;
+        open(key);
+        Map<Shard, Map<String, AuthEntry>> updates = new LinkedHashMap<>();
+        Map<Shard, Set<String>> removals = new HashMap<>();
+        for (AuthEntry e : upserts) {
+            updates.computeIfAbsent(shardFor(hashOf(e.getId())), s -> new LinkedHashMap<>()).put(e.getId(), e);
+        }
+        for (String id : deletedIds) {
+            Shard shard = shardFor(hashOf(id));
+            updates.computeIfAbsent(shard, s -> new LinkedHashMap<>());
+            removals.computeIfAbsent(shard, s -> new HashSet<>()).add(id);
+        }
+        Map<Shard, List<AuthEntry>> rewritten = new LinkedHashMap<>();
+        for (Map.Entry<Shard, Map<String, AuthEntry>> change : updates.entrySet()) {
+            List<AuthEntry> content = readShard(key, change.getKey(), true);
+            Map<String, AuthEntry> pending = change.getValue();
+            Set<String> removed = removals.getOrDefault(change.getKey(), Collections.emptySet());
+            boolean changed = !pending.isEmpty();
+            List<AuthEntry> next = new ArrayList<>(content.size() + pending.size());
+            for (AuthEntry e : content) {
+                AuthEntry updated = pending.remove(e.getId());
+                if (removed.contains(e.getId())) {
+                    changed = true;
+                } else {
+                    next.add(updated != null ? updated : e);
+                }
+            }
+            for (AuthEntry e : pending.values()) {
+                if (!removed.contains(e.getId())) next.add(e);
+            }
+            if (changed) rewritten.put(change.getKey(), next);
+        }
+        if (rewritten.isEmpty()) return;
+        mergeUnderfull(key, rewritten);
+        commit(key, method, rewritten);
+    }
+
+    /**
+     * Replaces each rewritten shard of at most {@link #MERGE_MAX_ENTRIES} entries and its sibling by their
+     * parent when the two fit in one. One level per commit.
+     */
+    private void mergeUnderfull(byte[] key, Map<Shard, List<AuthEntry>> rewritten) throws Exception {
+        for (Shard shard : new ArrayList<>(rewritten.keySet())) {
+            List<AuthEntry> content = rewritten.get(shard);
+            if (content == null || content.size() > MERGE_MAX_ENTRIES) continue;
+            Shard sibling = siblingOf(shard);
+            if (sibling == null) continue;
+            List<AuthEntry> siblingContent = rewritten.containsKey(sibling)
+                    ? rewritten.get(sibling)
+                    : readShard(key, sibling, true);
+            if (content.size() + siblingContent.size() > MERGE_MAX_ENTRIES) continue;
+            List<AuthEntry> merged = new ArrayList<>(content);
+            merged.addAll(siblingContent);
+            rewritten.remove(shard);
+            rewritten.remove(sibling);
+            rewritten.put(new Shard(shard.depth - 1, shard.prefix >>> 1, 0), merged);
+        }
+    }
+
+    @Override
+    public boolean needsFormatUpgrade() {
+        return false;
+    }
+
+    /**
+     * Rewrites shards not yet under {@code target} in hash order, stopping after a shard once at least
+     * {@code maxEntries} entries were rewritten; the cursor is the first hash of that shard. The manifest is
+     * re-sealed last.
+     */
+    @Override
+    public synchronized String reencryptBatch(byte[] key, EncryptionMethod source, EncryptionMethod target,
+                                              String afterId, int maxEntries) throws Exception {
+        open(key);
+        if (!manifestStored) return null;
+        int rewritten = 0;
+        for (Shard shard : shards.tailMap(cursorOf(afterId), false).values()) {
+            if (methodOf(shard) != target) {
+                List<AuthEntry> content = readShard(key, shard, true);
+                writeShard(key, target, shard, content);
+                rewritten += content.size();
+            }
+            if (rewritten >= maxEntries) return Long.toString(shard.start());
+        }
+        if (manifestMethod != target) writeManifest(key, target, new TreeMap<>(shards));
+        return null;
+    }
+
+    @Override
+    public boolean hasData() {
+        return manifestFile().length() > 0;
+    }
+
+    @Override
+    public synchronized void wipe() throws Exception {
+        resetState();
+        File[] files = shardDir().listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (!f.delete()) throw new IOException("Failed to delete " + f.getName());
+        }
+        shardDir().delete();
+    }
+
+    /** Drops the manifest and the key copy. */
+    @Override
+    public synchronized void close() {
+        resetState();
+    }
+
+    private File shardDir() {
+        return new File(context.getFilesDir(), SHARD_DIR);
+    }
+
+    private File manifestFile() {
+        return new File(shardDir(), MANIFEST_FILE);
+    }
+
+    private void resetState() {
+        if (stateKey != null) Arrays.fill(stateKey, (byte) 0);
+        stateKey = null;
+        shards.clear();
+        manifestStored = false;
+        manifestMethod = null;
+    }
+
+    /**
+     * Reads the manifest once per key; later calls reuse it. Without a manifest the vault is one empty root
+     * shard that is written on the first change.
+     */
+    private void open(byte[] key) throws Exception {
+        if (stateKey != null && MessageDigest.isEqual(stateKey, key)) return;
+        resetState();
+        File file = manifestFile();
+        if (file.length() == 0) {
+            Shard root = new Shard(0, 0, 0);
+            shards.put(root.start(), root);
+            stateKey = key.clone();
+            return;
+        }
+        byte[] raw = readFile(file);
+        if (!startsWith(raw, MANIFEST_MAGIC) || raw.length == MANIFEST_MAGIC.length) {
+            throw new IOException("Not a shard manifest");
+        }
+        EncryptionMethod method = VaultCipher.methodOf(raw[MANIFEST_MAGIC.length]);
+        byte[] plain = VaultCipher.forKey(key).decrypt(raw, MANIFEST_MAGIC.length, raw.length - MANIFEST_MAGIC.length);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+        if (in.readInt() != MANIFEST_VERSION) throw new IOException("Unsupported shard manifest version");
+        int count = in.readInt();
+        if (count <= 0) throw new IOException("Corrupt shard manifest");
+        TreeMap<Long, Shard> loaded = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            int depth = in.readUnsignedByte();
+            long prefix = in.readInt() & 0xFFFFFFFFL;
+            long generation = in.readLong();
+            if (depth > HASH_BITS || prefix >>> depth != 0) throw new IOException("Corrupt shard manifest");
+            Shard shard = new Shard(depth, prefix, generation);
+            loaded.put(shard.start(), shard);
+        }
+        long expected = 0;
+        for (Shard shard : loaded.values()) {
+            if (shard.start() != expected) throw new IOException("Shard manifest does not cover every id");
+            expected = shard.start() + (1L << (HASH_BITS - shard.depth));
+        }
+        if (expected != 1L << HASH_BITS) throw new IOException("Shard manifest does not cover every id");
+        shards.putAll(loaded);
+        manifestStored = true;
+        manifestMethod = method;
+        stateKey = key.clone();
+        deleteUnlisted();
+    }
+
+    /**
+     * Writes the shards that replace the hash ranges of the keys of {@code replaced} (listed shards, or the parent
+     * of two merged ones). A single listed shard that stays within bounds is replaced in place; otherwise the new
+     * shards are written under a fresh generation (oversized ones split) and the manifest commits them together.
+     */
+    private void commit(byte[] key, EncryptionMethod method, Map<Shard, List<AuthEntry>> replaced) throws Exception {
+        if (replaced.size() == 1 && manifestStored) {
+            Map.Entry<Shard, List<AuthEntry>> only = replaced.entrySet().iterator().next();
+            if (shards.get(only.getKey().start()) == only.getKey() && only.getValue().size() <= MAX_SHARD_ENTRIES) {
+                writeShard(key, method, only.getKey(), only.getValue());
+                return;
+            }
+        }
+        long generation = nextGeneration();
+        TreeMap<Long, Shard> next = new TreeMap<>(shards);
+        for (Map.Entry<Shard, List<AuthEntry>> e : replaced.entrySet()) {
+            Shard old = e.getKey();
+            Map<Shard, List<AuthEntry>> layout = new LinkedHashMap<>();
+            List<Placed> placed = place(e.getValue());
+            layout(placed, 0, placed.size(), old.depth, old.prefix, generation, layout);
+            next.subMap(old.start(), old.start() + (1L << (HASH_BITS - old.depth))).clear();
+            for (Map.Entry<Shard, List<AuthEntry>> part : layout.entrySet()) {
+                writeShard(key, method, part.getKey(), part.getValue());
+                next.put(part.getKey().start(), part.getKey());
+            }
+        }
+        writeManifest(key, method, next);
+    }
+
+    /** Seals {@code next} as the manifest, adopts it and deletes the files it no longer lists. */
+    private void writeManifest(byte[] key, EncryptionMethod method, TreeMap<Long, Shard> next) throws Exception {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(16 + next.size() * 13);
+        DataOutputStream data = new DataOutputStream(plain);
+        data.writeInt(MANIFEST_VERSION);
+        data.writeInt(next.size());
+        for (Shard shard : next.values()) {
+            data.writeByte(shard.depth);
+            data.writeInt((int) shard.prefix);
+            data.writeLong(shard.generation);
+        }
+        byte[] sealed = VaultCipher.forKey(key).encrypt(plain.toByteArray(), method);
+        AtomicFileWriter.write(manifestFile(), out -> {
+            out.write(MANIFEST_MAGIC);
+            out.write(sealed);
+        });
+        shards.clear();
+        shards.putAll(next);
+        manifestStored = true;
+        manifestMethod = method;
+        deleteUnlisted();
+    }
+
+    /** Removes shard files (and stale temp files) left behind by an earlier commit or an interrupted one. */
+    private void deleteUnlisted() {
+        Set<String> listed = new HashSet<>();
+        listed.add(MANIFEST_FILE);
+        for (Shard shard : shards.values()) listed.add(shard.fileName());
+        File[] files = shardDir().listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (!listed.contains(f.getName())) f.delete();
+        }
+    }
+
+    /** A generation above every shard file on disk, so new files never overwrite listed ones. */
+    private long nextGeneration() {
+        long max = 0;
+        String[] names = shardDir().list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(SHARD_SUFFIX)) continue;
+                int dash = name.lastIndexOf('-');
+                try {
+                    max = Math.max(max, Long.parseLong(name.substring(dash + 1, name.length() - SHARD_SUFFIX.length())));
+                } catch (NumberFormatException | IndexOutOfBoundsException ignored) {
+                    // Not one of ours; deleteUnlisted() removes it.
+                }
+            }
+        }
+        return max + 1;
+    }
+
+    private Shard shardFor(long hash) {
+        return shards.floorEntry(hash).getValue();
+    }
+
+    /** The other half of {@code shard}'s parent, if it is a single shard of the same depth. */
+    private Shard siblingOf(Shard shard) {
+        if (shard.depth == 0) return null;
+        Shard sibling = shards.get((shard.prefix ^ 1) << (HASH_BITS - shard.depth));
+        return sibling != null && sibling.depth == shard.depth ? sibling : null;
+    }
+
+    private List<AuthEntry> readShard(byte[] key, Shard shard, boolean includeHistory) throws Exception {
+        File file = new File(shardDir(), shard.fileName());
+        if (!file.exists()) {
+            if (!manifestStored) return new ArrayList<>();
+            throw new IOException("Vault shard " + shard.fileName() + " is missing");
+        }
+        byte[] raw = readFile(file);
+        if (!startsWith(raw, SHARD_MAGIC)) throw new IOException("Not a vault shard");
+        ByteBuffer body = ByteBuffer.wrap(raw, SHARD_MAGIC.length, raw.length - SHARD_MAGIC.length);
+        return EntryBlockFormat.readSequential(body, key, includeHistory);
+    }
+
+    private void writeShard(byte[] key, EncryptionMethod method, Shard shard, List<AuthEntry> entries)
+            throws Exception {
+        File dir = shardDir();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Failed to create " + SHARD_DIR);
+        AtomicFileWriter.write(new File(dir, shard.fileName()), out -> {
+            out.write(SHARD_MAGIC);
+            EntryBlockFormat.write(out, key, method, entries);
+        });
+    }
+
+    /** Method of a shard from the tag after its magic. */
+    private EncryptionMethod methodOf(Shard shard) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(shardDir(), shard.fileName()), "r")) {
+            raf.seek(SHARD_MAGIC.length);
+            return VaultCipher.methodOf(raf.readByte());
+        }
+    }
+
+    /**
+     * Splits entries {@code [from, to)} of a hash-sorted list, all under {@code (depth, prefix)}, into shards of at
+     * most {@link #MAX_SHARD_ENTRIES}.
+     */
+    private static void layout(List<Placed> placed, int from, int to, int depth, long prefix, long generation,
+                               Map<Shard, List<AuthEntry>> out) {
+        if (to - from <= MAX_SHARD_ENTRIES || depth == HASH_BITS) {
+            List<AuthEntry> entries = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) entries.add(placed.get(i).entry);
+            out.put(new Shard(depth, prefix, generation), entries);
+            return;
+        }
+        long upper = ((prefix << 1) | 1) << (HASH_BITS - depth - 1);
+        int split = from;
+        while (split < to && placed.get(split).hash < upper) split++;
+        layout(placed, from, split, depth + 1, prefix << 1, generation, out);
+        layout(placed, split, to, depth + 1, (prefix << 1) | 1, generation, out);
+    }
+
+    private static List<Placed> place(Collection<AuthEntry> entries) {
+        List<Placed> placed = new ArrayList<>(entries.size());
+        for (AuthEntry e : entries) placed.add(new Placed(hashOf(e.getId()), e));
+        placed.sort((a, b) -> compare(a.hash, a.entry.getId(), b.hash, b.entry.getId()));
+        return placed;
+    }
+
+    private static int compare(long hash, String id, long otherHash, String otherId) {
+        int c = Long.compare(hash, otherHash);
+        return c != 0 ? c : id.compareTo(otherId);
+    }
+
+    /** First 32 bits of SHA-256 of the id, unsigned. */
+    private static long hashOf(String id) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+            return ((digest[0] & 0xFFL) << 24) | ((digest[1] & 0xFFL) << 16) | ((digest[2] & 0xFFL) << 8)
+                    | (digest[3] & 0xFFL);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Hash after which a re-encryption batch resumes; -1 (before every shard) for no or a foreign cursor. */
+    private static long cursorOf(String afterId) {
+        if (afterId == null) return -1;
+        try {
+            return Long.parseLong(afterId);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean startsWith(byte[] raw, byte[] magic) {
+        if (raw.length < magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (raw[i] != magic[i]) return false;
+        }
+        return true;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) throw new IOException("File too large: " + file.getName());
+            byte[] raw = new byte[(int) length];
+            raf.readFully(raw);
+            return raw;
+        }
+    }
+}
@@ -5,24 +5,49 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.passvault.app.crypto.VaultCipher;
 import com.passvault.app.data.AuthEntry;
 import com.passvault.app.data.EncryptionMethod;
 import com.passvault.app.data.EntryHistoryItem;
+import com.passvault.app.util.VaultJson;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Stores entries in SQLite with proper schema. Sensitive columns (password, history) are encrypted.
+ * Stores entries in SQLite with proper schema. Sensitive columns (password, history items) are encrypted
+ * and stored as BLOBs in {@link VaultCipher}'s tagged binary format; rows written before that hold
+ * Base64 TEXT in the same columns (SQLite column types are not enforced) and are still readable.
+ * Password history is one encrypted row per item ({@link EntryCodec}, compressed when long enough by
+ * {@link PayloadCompression}; JSON in rows from earlier releases), keyed by entry id and position
+ * ({@code seq}); it is append-only, so saving an entry encrypts only the items that are not stored yet.
+ * Upserts and deletes go through compiled statements and touch only the affected rows. The list view reads
+ * only plain columns ({@link #loadEntryMetadata}); a password is decrypted when it is revealed.
+ * <p>
+ * One connection (WAL, tuned page/cache size, incremental auto-vacuum for databases created since it was
+ * added) is opened on first use and kept until {@link #close()}, which the repository calls when the vault
+ * is locked.
  */
 public class SqlVaultStorage implements VaultStorage {
 
     private static final String DB_NAME = "passvault.db";
-    private static final int VERSION = 1;
+    /**
+     * 2: password history moved from one JSON blob per entry to one row per item in {@link #TABLE_HISTORY}.
+     * 3: index on (created_at, id) for keyset-paged list loading.
+     */
+    private static final int VERSION = 3;
 
     private static final String TABLE_ENTRIES = "entries";
     private static final String COL_ID = "id";
@@ -31,62 +56,254 @@ public class SqlVaultStorage implements VaultStorage {
     private static final String COL_PASSWORD_ENCRYPTED = "password_encrypted";
     private static final String COL_CREATED_AT = "created_at";
     private static final String COL_UPDATED_AT = "updated_at";
+    /** Version 1 history blob; empty once the entry's history is in {@link #TABLE_HISTORY}. */
     private static final String COL_HISTORY_ENCRYPTED = "history_encrypted";
 
+    private static final String TABLE_HISTORY = "history";
+    private static final String COL_ENTRY_ID = "entry_id";
+    private static final String COL_SEQ = "seq";
+    private static final String COL_ITEM_ENCRYPTED = "item_encrypted";
+    private static final String INDEX_ENTRIES_ORDER = "entries_created_id";
+
+    /** List order; served by {@link #INDEX_ENTRIES_ORDER}, so a page is an index range scan. */
+    private static final String ORDER_ENTRIES = COL_CREATED_AT + " ASC, " + COL_ID + " ASC";
+    private static final String[] METADATA_COLUMNS = {COL_ID, COL_TITLE, COL_USERNAME, COL_CREATED_AT, COL_UPDATED_AT};
+
+    private static final String SQL_UPSERT = "INSERT OR REPLACE INTO " + TABLE_ENTRIES + " (" + COL_ID + ", "
+            + COL_TITLE + ", " + COL_USERNAME + ", " + COL_PASSWORD_ENCRYPTED + ", " + COL_CREATED_AT + ", "
+            + COL_UPDATED_AT + ", " + COL_HISTORY_ENCRYPTED + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_DELETE = "DELETE FROM " + TABLE_ENTRIES + " WHERE " + COL_ID + " = ?";
+    private static final String SQL_INSERT_HISTORY = "INSERT OR REPLACE INTO " + TABLE_HISTORY + " (" + COL_ENTRY_ID
+            + ", " + COL_SEQ + ", " + COL_ITEM_ENCRYPTED + ") VALUES (?, ?, ?)";
+    private static final String SQL_COUNT_HISTORY = "SELECT COUNT(*) FROM " + TABLE_HISTORY + " WHERE "
+            + COL_ENTRY_ID + " = ?";
+    private static final String SQL_DELETE_HISTORY = "DELETE FROM " + TABLE_HISTORY + " WHERE " + COL_ENTRY_ID + " = ?";
+
+    /** SQLite page size for new databases; matches the flash page size on most devices. */
+    private static final int PAGE_SIZE = 4096;
+    /** Page cache per connection, in KiB (negative pragma value). */
+    private static final int CACHE_SIZE_KIB = 2048;
+
     private final Context context;
-    private final Gson gson = new Gson();
+    private SqlHelper helper;
+    private SQLiteStatement upsertStatement;
+    private SQLiteStatement deleteStatement;
+    private SQLiteStatement insertHistoryStatement;
+    private SQLiteStatement countHistoryStatement;
+    private SQLiteStatement deleteHistoryStatement;
 
     public SqlVaultStorage(Context context) {
         this.context = context.getApplicationContext();
     }
 
+    /** The long-lived connection, opened on first use and kept until {@link #close()}. */
+    private synchronized SQLiteDatabase database() {
+        if (helper == null) helper = new SqlHelper(context);
+        return helper.getWritableDatabase();
+    }
+
     @Override
     public List<AuthEntry> loadEntries(byte[] key, EncryptionMethod method, boolean includeHistory) throws Exception {
-        SqlHelper helper = new SqlHelper(context);
-        SQLiteDatabase db = helper.getReadableDatabase();
-        List<AuthEntry> result = new ArrayList<>();
+        SQLiteDatabase db = database();
+        VaultCipher cipher = VaultCipher.forKey(key);
+        List<AuthEntry> result;
         String[] columns = includeHistory
                 ? null
                 : new String[]{COL_ID, COL_TITLE, COL_USERNAME, COL_PASSWORD_ENCRYPTED, COL_CREATED_AT, COL_UPDATED_AT};
         try (Cursor c = db.query(TABLE_ENTRIES, columns, null, null, null, null, COL_CREATED_AT + " ASC")) {
-            int idxId = c.getColumnIndexOrThrow(COL_ID);
-            int idxTitle = c.getColumnIndexOrThrow(COL_TITLE);
-            int idxUsername = c.getColumnIndexOrThrow(COL_USERNAME);
-            int idxPassword = c.getColumnIndexOrThrow(COL_PASSWORD_ENCRYPTED);
-            int idxCreated = c.getColumnIndexOrThrow(COL_CREATED_AT);
-            int idxUpdated = c.getColumnIndexOrThrow(COL_UPDATED_AT);
-            int idxHistory = includeHistory ? c.getColumnIndexOrThrow(COL_HISTORY_ENCRYPTED) : -1;
-            while (c.moveToNext()) {
-                AuthEntry e = new AuthEntry();
-                e.setId(c.getString(idxId));
-                e.setTitle(c.getString(idxTitle));
-                e.setUsername(c.getString(idxUsername));
-                String passEnc = c.getString(idxPassword);
-                e.setPasswordOrToken(passEnc != null && !passEnc.isEmpty()
-                        ? VaultCipher.decrypt(key, passEnc, method) : "");
-                e.setCreatedAt(c.getLong(idxCreated));
-                e.setUpdatedAt(c.getLong(idxUpdated));
-                if (includeHistory && idxHistory >= 0) {
-                    String histEnc = c.getString(idxHistory);
-                    if (histEnc != null && !histEnc.isEmpty()) {
-                        String histJson = VaultCipher.decrypt(key, histEnc, method);
-                        if (histJson != null && !histJson.isEmpty()) {
-                            List<EntryHistoryItem> history = gson.fromJson(histJson,
-                                    new TypeToken<List<EntryHistoryItem>>() {}.getType());
-                            e.setHistory(history != null ? history : new ArrayList<>());
-                        }
-                    }
+            result = readRows(c, cipher, method, includeHistory);
+        }
+        if (includeHistory) {
+            Map<String, List<EntryHistoryItem>> histories = readHistory(db, cipher, null, null, null, null);
+            for (AuthEntry e : result) {
+                List<EntryHistoryItem> items = histories.get(e.getId());
+                if (items != null) e.setHistory(items);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Entries of the rows under {@code c}, with secrets; BLOB columns are collected and decrypted in one batch
+     * per column after the scan. History from the legacy column only; rows of the history table are added by the
+     * caller.
+     */
+    private List<AuthEntry> readRows(Cursor c, VaultCipher cipher, EncryptionMethod method, boolean includeHistory)
+            throws GeneralSecurityException {
+        List<AuthEntry> result = new ArrayList<>();
+        int idxId = c.getColumnIndexOrThrow(COL_ID);
+        int idxTitle = c.getColumnIndexOrThrow(COL_TITLE);
+        int idxUsername = c.getColumnIndexOrThrow(COL_USERNAME);
+        int idxPassword = c.getColumnIndexOrThrow(COL_PASSWORD_ENCRYPTED);
+        int idxCreated = c.getColumnIndexOrThrow(COL_CREATED_AT);
+        int idxUpdated = c.getColumnIndexOrThrow(COL_UPDATED_AT);
+        int idxHistory = includeHistory ? c.getColumnIndexOrThrow(COL_HISTORY_ENCRYPTED) : -1;
+        List<byte[]> sealedPasswords = new ArrayList<>();
+        List<AuthEntry> passwordOwners = new ArrayList<>();
+        List<byte[]> sealedHistories = new ArrayList<>();
+        List<AuthEntry> historyOwners = new ArrayList<>();
+        while (c.moveToNext()) {
+            AuthEntry e = new AuthEntry();
+            e.setId(c.getString(idxId));
+            e.setTitle(c.getString(idxTitle));
+            e.setUsername(c.getString(idxUsername));
+            e.setPasswordOrToken("");
+            if (c.getType(idxPassword) == Cursor.FIELD_TYPE_BLOB) {
+                sealedPasswords.add(c.getBlob(idxPassword));
+                passwordOwners.add(e);
+            } else {
+                String pass = decryptColumn(c, idxPassword, cipher, method);
+                if (pass != null) e.setPasswordOrToken(pass);
+            }
+            e.setCreatedAt(c.getLong(idxCreated));
+            e.setUpdatedAt(c.getLong(idxUpdated));
+            if (includeHistory && idxHistory >= 0) {
+                if (c.getType(idxHistory) == Cursor.FIELD_TYPE_BLOB) {
+                    sealedHistories.add(c.getBlob(idxHistory));
+                    historyOwners.add(e);
+                } else {
+                    setHistory(e, decryptColumn(c, idxHistory, cipher, method));
                 }
-                result.add(e);
             }
+            result.add(e);
+        }
+        List<byte[]> passwords = cipher.decryptAll(sealedPasswords);
+        for (int i = 0; i < passwords.size(); i++) {
+            passwordOwners.get(i).setPasswordOrToken(new String(passwords.get(i), StandardCharsets.UTF_8));
+        }
+        List<byte[]> histories = cipher.decryptAll(sealedHistories);
+        for (int i = 0; i < histories.size(); i++) {
+            setHistory(historyOwners.get(i), new String(histories.get(i), StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    /** Keyset batches in id order (primary key); the cursor is the last id returned. */
+    @Override
+    public String readEntryBatch(byte[] key, EncryptionMethod method, String cursor, int limit, List<AuthEntry> out)
+            throws Exception {
+        SQLiteDatabase db = database();
+        VaultCipher cipher = VaultCipher.forKey(key);
+        List<AuthEntry> batch;
+        try (Cursor c = db.query(TABLE_ENTRIES, null, cursor != null ? COL_ID + " > ?" : null,
+                cursor != null ? new String[]{cursor} : null, null, null, COL_ID + " ASC", String.valueOf(limit))) {
+            batch = readRows(c, cipher, method, true);
+        }
+        if (batch.isEmpty()) return null;
+        String last = batch.get(batch.size() - 1).getId();
+        Map<String, List<EntryHistoryItem>> histories = cursor != null
+                ? readHistory(db, cipher, COL_ENTRY_ID + " > ? AND " + COL_ENTRY_ID + " <= ?",
+                        new String[]{cursor, last}, null, null)
+                : readHistory(db, cipher, COL_ENTRY_ID + " <= ?", new String[]{last}, null, null);
+        for (AuthEntry e : batch) {
+            List<EntryHistoryItem> items = histories.get(e.getId());
+            if (items != null) e.setHistory(items);
+        }
+        out.addAll(batch);
+        return batch.size() < limit ? null : last;
+    }
+
+    /** Reads only the plain columns; no row is decrypted until its secret is asked for. */
+    @Override
+    public List<AuthEntry> loadEntryMetadata(byte[] key, EncryptionMethod method) throws Exception {
+        SQLiteDatabase db = database();
+        try (Cursor c = db.query(TABLE_ENTRIES, METADATA_COLUMNS, null, null, null, null, ORDER_ENTRIES)) {
+            return readMetadata(c);
+        }
+    }
+
+    @Override
+    public boolean supportsPagedLoading() {
+        return true;
+    }
+
+    /**
+     * Keyset page: seeks the (created_at, id) index past the last row shown instead of counting an OFFSET,
+     * so every page costs the same however deep the list is scrolled. The title filter is a LIKE, which
+     * SQLite compares case-insensitively for ASCII letters only.
+     */
+    @Override
+    public List<AuthEntry> loadEntryPage(byte[] key, EncryptionMethod method, String titleQuery, long afterCreatedAt,
+                                         String afterId, int limit) throws Exception {
+        SQLiteDatabase db = database();
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<>();
+        if (afterId != null) {
+            where.append("(").append(COL_CREATED_AT).append(" > ? OR (").append(COL_CREATED_AT).append(" = ? AND ")
+                    .append(COL_ID).append(" > ?))");
+            args.add(String.valueOf(afterCreatedAt));
+            args.add(String.valueOf(afterCreatedAt));
+            args.add(afterId);
+        }
+        appendTitleFilter(where, args, titleQuery);
+        try (Cursor c = db.query(TABLE_ENTRIES, METADATA_COLUMNS, where.length() > 0 ? where.toString() : null,
+                args.toArray(new String[0]), null, null, ORDER_ENTRIES, String.valueOf(limit))) {
+            return readMetadata(c);
+        }
+    }
+
+    @Override
+    public int countEntries(byte[] key, EncryptionMethod method, String titleQuery) throws Exception {
+        SQLiteDatabase db = database();
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<>();
+        appendTitleFilter(where, args, titleQuery);
+        String sql = "SELECT COUNT(*) FROM " + TABLE_ENTRIES + (where.length() > 0 ? " WHERE " + where : "");
+        try (Cursor c = db.rawQuery(sql, args.toArray(new String[0]))) {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        }
+    }
+
+    private static void appendTitleFilter(StringBuilder where, List<String> args, String titleQuery) {
+        if (titleQuery == null || titleQuery.isEmpty()) return;
+        if (where.length() > 0) where.append(" AND ");
+        where.append(COL_TITLE).append(" LIKE ? ESCAPE '\\'");
+        args.add("%" + titleQuery.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+    }
+
+    /** Rows of {@link #METADATA_COLUMNS} as entries without secret or history. */
+    private static List<AuthEntry> readMetadata(Cursor c) {
+        List<AuthEntry> result = new ArrayList<>(c.getCount());
+        while (c.moveToNext()) {
+            AuthEntry e = new AuthEntry();
+            e.setId(c.getString(0));
+            e.setTitle(c.getString(1));
+            e.setUsername(c.getString(2));
+            e.setPasswordOrToken(null);
+            e.setCreatedAt(c.getLong(3));
+            e.setUpdatedAt(c.getLong(4));
+            e.setHistory(new ArrayList<>());
+            result.add(e);
         }
         return result;
     }
 
+    /** Decrypts the password column of one row straight into chars; no String copy is made for BLOB rows. */
+    @Override
+    public char[] loadSecret(byte[] key, EncryptionMethod method, String entryId) throws Exception {
+        SQLiteDatabase db = database();
+        VaultCipher cipher = VaultCipher.forKey(key);
+        try (Cursor c = db.query(TABLE_ENTRIES, new String[]{COL_PASSWORD_ENCRYPTED}, COL_ID + "=?",
+                new String[]{entryId}, null, null, null)) {
+            if (!c.moveToFirst()) return null;
+            if (c.getType(0) != Cursor.FIELD_TYPE_BLOB) {
+                String legacy = decryptColumn(c, 0, cipher, method);
+                return legacy != null ? legacy.toCharArray() : new char[0];
+            }
+            byte[] plain = cipher.decrypt(c.getBlob(0));
+            CharBuffer chars = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(plain));
+            char[] secret = new char[chars.remaining()];
+            chars.get(secret);
+            Arrays.fill(plain, (byte) 0);
+            if (chars.hasArray()) Arrays.fill(chars.array(), '\0');
+            return secret;
+        }
+    }
+
     @Override
     public AuthEntry getEntryWithHistory(byte[] key, EncryptionMethod method, String entryId) throws Exception {
-        SqlHelper helper = new SqlHelper(context);
-        SQLiteDatabase db = helper.getReadableDatabase();
+        SQLiteDatabase db = database();
+        VaultCipher cipher = VaultCipher.forKey(key);
         try (Cursor c = db.query(TABLE_ENTRIES, null, COL_ID + "=?", new String[]{entryId}, null, null, null)) {
             if (!c.moveToFirst()) return null;
             int idxId = c.getColumnIndexOrThrow(COL_ID);
@@ -100,58 +317,259 @@ public class SqlVaultStorage implements VaultStorage {
             e.setId(c.getString(idxId));
             e.setTitle(c.getString(idxTitle));
             e.setUsername(c.getString(idxUsername));
-            String passEnc = c.getString(idxPassword);
-            e.setPasswordOrToken(passEnc != null && !passEnc.isEmpty()
-                    ? VaultCipher.decrypt(key, passEnc, method) : "");
+            String pass = decryptColumn(c, idxPassword, cipher, method);
+            e.setPasswordOrToken(pass != null ? pass : "");
             e.setCreatedAt(c.getLong(idxCreated));
             e.setUpdatedAt(c.getLong(idxUpdated));
-            String histEnc = c.getString(idxHistory);
-            if (histEnc != null && !histEnc.isEmpty()) {
-                String histJson = VaultCipher.decrypt(key, histEnc, method);
-                if (histJson != null && !histJson.isEmpty()) {
-                    List<EntryHistoryItem> history = gson.fromJson(histJson,
-                            new TypeToken<List<EntryHistoryItem>>() {}.getType());
-                    e.setHistory(history != null ? history : new ArrayList<>());
-                }
-            }
+            setHistory(e, decryptColumn(c, idxHistory, cipher, method));
+            List<EntryHistoryItem> items = readHistory(db, cipher, COL_ENTRY_ID + "=?", new String[]{entryId},
+                    COL_SEQ + " ASC", null).get(entryId);
+            if (items != null) e.setHistory(items);
             return e;
         }
     }
 
+    /** Skipped rows are only walked in the primary-key index, not read or decrypted. */
+    @Override
+    public List<EntryHistoryItem> loadHistoryPage(byte[] key, EncryptionMethod method, String entryId, int skip,
+                                                  int limit) throws Exception {
+        SQLiteDatabase db = database();
+        List<EntryHistoryItem> items = readHistory(db, VaultCipher.forKey(key), COL_ENTRY_ID + "=?",
+                new String[]{entryId}, COL_SEQ + " DESC", skip + "," + limit).get(entryId);
+        return items != null ? items : new ArrayList<>();
+    }
+
     @Override
     public void saveEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries) throws Exception {
-        SqlHelper helper = new SqlHelper(context);
-        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteDatabase db = database();
+        writeRows(db, key, method, entries != null ? entries : new ArrayList<>(), Collections.emptySet(), true);
+    }
+
+    @Override
+    public void upsertEntry(byte[] key, EncryptionMethod method, AuthEntry entry) throws Exception {
+        upsertEntries(key, method, Collections.singletonList(entry));
+    }
+
+    @Override
+    public void upsertEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries) throws Exception {
+        if (entries == null || entries.isEmpty()) return;
+        SQLiteDatabase db = database();
+        writeRows(db, key, method, entries, Collections.emptySet(), false);
+    }
+
+    @Override
+    public void deleteEntry(byte[] key, EncryptionMethod method, String entryId) throws Exception {
+        applyChanges(key, method, Collections.emptyList(), Collections.singleton(entryId));
+    }
+
+    /** One transaction for every upsert and delete. */
+    @Override
+    public void applyChanges(byte[] key, EncryptionMethod method, List<AuthEntry> upserts,
+                             Collection<String> deletedIds) throws Exception {
+        if (upserts.isEmpty() && deletedIds.isEmpty()) return;
+        SQLiteDatabase db = database();
+        writeRows(db, key, method, upserts, deletedIds, false);
+    }
+
+    /**
+     * Encrypts only the given entries and their not yet stored history items (one batch per column, outside
+     * the transaction) and writes them with compiled statements; {@code replaceAll} first clears both tables.
+     * An entry whose history is shorter than what is stored gets its history rows rewritten. {@code deletedIds}
+     * are removed last, in the same transaction.
+     */
+    private synchronized void writeRows(SQLiteDatabase db, byte[] key, EncryptionMethod method, List<AuthEntry> entries,
+                           Collection<String> deletedIds, boolean replaceAll) throws GeneralSecurityException {
+        VaultCipher cipher = VaultCipher.forKey(key);
+        int count = entries.size();
+        if (countHistoryStatement == null) countHistoryStatement = db.compileStatement(SQL_COUNT_HISTORY);
+        int[] storedItems = new int[count];
+        List<byte[]> passwordPlains = new ArrayList<>(count);
+        List<byte[]> itemPlains = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            AuthEntry e = entries.get(i);
+            passwordPlains.add(utf8OrNull(e.getPasswordOrToken()));
+            List<EntryHistoryItem> history = e.getHistory();
+            int stored = replaceAll ? 0 : storedHistoryCount(e.getId());
+            if (stored > history.size()) stored = -1;
+            storedItems[i] = stored;
+            for (int j = Math.max(stored, 0); j < history.size(); j++) {
+                byte[] item = EntryCodec.encodeHistoryItem(history.get(j));
+                byte[] compressed = PayloadCompression.compress(item, 0, item.length);
+                if (compressed != null) Arrays.fill(item, (byte) 0);
+                itemPlains.add(compressed != null ? compressed : item);
+            }
+        }
+        List<byte[]> passwords = cipher.encryptAll(passwordPlains, method);
+        List<byte[]> items = cipher.encryptAll(itemPlains, method);
+        if (upsertStatement == null) upsertStatement = db.compileStatement(SQL_UPSERT);
+        if (insertHistoryStatement == null) insertHistoryStatement = db.compileStatement(SQL_INSERT_HISTORY);
+        if (deleteHistoryStatement == null) deleteHistoryStatement = db.compileStatement(SQL_DELETE_HISTORY);
+        if (deleteStatement == null) deleteStatement = db.compileStatement(SQL_DELETE);
+        SQLiteStatement upsert = upsertStatement;
+        SQLiteStatement insertItem = insertHistoryStatement;
+        db.beginTransaction();
+        try {
+            if (replaceAll) {
+                db.delete(TABLE_ENTRIES, null, null);
+                db.delete(TABLE_HISTORY, null, null);
+            }
+            int item = 0;
+            for (int i = 0; i < count; i++) {
+                AuthEntry e = entries.get(i);
+                upsert.bindString(1, e.getId());
+                upsert.bindString(2, e.getTitle() != null ? e.getTitle() : "");
+                upsert.bindString(3, e.getUsername() != null ? e.getUsername() : "");
+                bindSealed(upsert, 4, passwords.get(i));
+                upsert.bindLong(5, e.getCreatedAt());
+                upsert.bindLong(6, e.getUpdatedAt());
+                upsert.bindString(7, "");
+                upsert.executeInsert();
+                int from = storedItems[i];
+                if (from < 0) {
+                    deleteHistoryStatement.bindString(1, e.getId());
+                    deleteHistoryStatement.executeUpdateDelete();
+                    from = 0;
+                }
+                int historySize = e.getHistory().size();
+                for (int seq = from; seq < historySize; seq++) {
+                    insertItem.bindString(1, e.getId());
+                    insertItem.bindLong(2, seq);
+                    insertItem.bindBlob(3, items.get(item++));
+                    insertItem.executeInsert();
+                }
+            }
+            for (String id : deletedIds) {
+                deleteStatement.bindString(1, id);
+                deleteStatement.executeUpdateDelete();
+                deleteHistoryStatement.bindString(1, id);
+                deleteHistoryStatement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            upsert.clearBindings();
+            insertItem.clearBindings();
+            deleteStatement.clearBindings();
+            deleteHistoryStatement.clearBindings();
+            db.endTransaction();
+        }
+    }
+
+    private int storedHistoryCount(String entryId) {
+        countHistoryStatement.bindString(1, entryId);
+        try {
+            return (int) countHistoryStatement.simpleQueryForLong();
+        } finally {
+            countHistoryStatement.clearBindings();
+        }
+    }
+
+    /** Decrypts history rows matching {@code selection} (one batch) and groups them by entry id in query order. */
+    private Map<String, List<EntryHistoryItem>> readHistory(SQLiteDatabase db, VaultCipher cipher, String selection,
+                                                            String[] args, String orderBy, String limit)
+            throws GeneralSecurityException, IOException {
+        List<String> owners = new ArrayList<>();
+        List<byte[]> sealed = new ArrayList<>();
+        try (Cursor c = db.query(TABLE_HISTORY, new String[]{COL_ENTRY_ID, COL_ITEM_ENCRYPTED}, selection, args,
+                null, null, orderBy != null ? orderBy : COL_ENTRY_ID + " ASC, " + COL_SEQ + " ASC", limit)) {
+            while (c.moveToNext()) {
+                owners.add(c.getString(0));
+                sealed.add(c.getBlob(1));
+            }
+        }
+        List<byte[]> plains = cipher.decryptAll(sealed);
+        Map<String, List<EntryHistoryItem>> result = new HashMap<>();
+        for (int i = 0; i < plains.size(); i++) {
+            byte[] plain = plains.get(i);
+            if (PayloadCompression.isCompressed(plain, 0, plain.length)) {
+                byte[] expanded = PayloadCompression.decompress(plain, 0, plain.length);
+                Arrays.fill(plain, (byte) 0);
+                plain = expanded;
+            }
+            EntryHistoryItem item = EntryCodec.isEncoded(plain, 0, plain.length)
+                    ? EntryCodec.decodeHistoryItem(plain)
+                    : VaultJson.GSON.fromJson(new String(plain, StandardCharsets.UTF_8), EntryHistoryItem.class);
+            Arrays.fill(plain, (byte) 0);
+            result.computeIfAbsent(owners.get(i), k -> new ArrayList<>()).add(item);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean needsFormatUpgrade() throws Exception {
+        SQLiteDatabase db = database();
+        // Untagged Base64 passwords, or history still in the version 1 blob column.
+        try (Cursor c = db.rawQuery("SELECT 1 FROM " + TABLE_ENTRIES + " WHERE (typeof(" + COL_PASSWORD_ENCRYPTED
+                + ") = 'text' AND " + COL_PASSWORD_ENCRYPTED + " != '') OR length(" + COL_HISTORY_ENCRYPTED
+                + ") > 0 LIMIT 1", null)) {
+            return c.getCount() > 0;
+        }
+    }
+
+    @Override
+    public String reencryptBatch(byte[] key, EncryptionMethod source, EncryptionMethod target, String afterId,
+                                 int maxEntries) throws Exception {
+        SQLiteDatabase db = database();
+        VaultCipher cipher = VaultCipher.forKey(key);
+        String selection = afterId != null ? COL_ID + ">?" : null;
+        String[] args = afterId != null ? new String[]{afterId} : null;
+        String lastId = null;
+        int visited = 0;
         db.beginTransaction();
         try {
-            db.delete(TABLE_ENTRIES, null, null);
-            if (entries != null) {
-                for (AuthEntry e : entries) {
+            List<String> ids = new ArrayList<>();
+            List<ContentValues> updates = new ArrayList<>();
+            try (Cursor c = db.query(TABLE_ENTRIES, new String[]{COL_ID, COL_PASSWORD_ENCRYPTED, COL_HISTORY_ENCRYPTED},
+                    selection, args, null, null, COL_ID + " ASC", String.valueOf(maxEntries))) {
+                while (c.moveToNext()) {
+                    lastId = c.getString(0);
+                    visited++;
                     ContentValues cv = new ContentValues();
-                    cv.put(COL_ID, e.getId());
-                    cv.put(COL_TITLE, e.getTitle() != null ? e.getTitle() : "");
-                    cv.put(COL_USERNAME, e.getUsername() != null ? e.getUsername() : "");
-                    String pass = e.getPasswordOrToken();
-                    cv.put(COL_PASSWORD_ENCRYPTED, pass != null && !pass.isEmpty()
-                            ? VaultCipher.encrypt(key, pass, method) : "");
-                    cv.put(COL_CREATED_AT, e.getCreatedAt());
-                    cv.put(COL_UPDATED_AT, e.getUpdatedAt());
-                    String historyJson = gson.toJson(e.getHistory());
-                    cv.put(COL_HISTORY_ENCRYPTED, historyJson != null && !historyJson.isEmpty()
-                            ? VaultCipher.encrypt(key, historyJson, method) : "");
-                    db.insert(TABLE_ENTRIES, null, cv);
+                    reencryptColumn(cv, c, 1, COL_PASSWORD_ENCRYPTED, cipher, source, target);
+                    reencryptColumn(cv, c, 2, COL_HISTORY_ENCRYPTED, cipher, source, target);
+                    if (cv.size() > 0) {
+                        ids.add(lastId);
+                        updates.add(cv);
+                    }
                 }
             }
+            for (int i = 0; i < ids.size(); i++) {
+                db.update(TABLE_ENTRIES, updates.get(i), COL_ID + "=?", new String[]{ids.get(i)});
+            }
+            if (lastId != null) reencryptHistory(db, cipher, target, afterId, lastId);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
+        return visited < maxEntries ? null : lastId;
+    }
+
+    /** Re-encrypts the history rows of entries with ids in {@code (afterId, lastId]} that are not under {@code target}. */
+    private static void reencryptHistory(SQLiteDatabase db, VaultCipher cipher, EncryptionMethod target, String afterId,
+                                         String lastId) throws GeneralSecurityException {
+        String selection = (afterId != null ? COL_ENTRY_ID + ">? AND " : "") + COL_ENTRY_ID + "<=?";
+        String[] args = afterId != null ? new String[]{afterId, lastId} : new String[]{lastId};
+        List<String[]> keys = new ArrayList<>();
+        List<byte[]> stale = new ArrayList<>();
+        try (Cursor c = db.query(TABLE_HISTORY, new String[]{COL_ENTRY_ID, COL_SEQ, COL_ITEM_ENCRYPTED}, selection, args,
+                null, null, null)) {
+            while (c.moveToNext()) {
+                byte[] blob = c.getBlob(2);
+                if (blob.length > 0 && VaultCipher.methodOf(blob[0]) == target) continue;
+                keys.add(new String[]{c.getString(0), c.getString(1)});
+                stale.add(blob);
+            }
+        }
+        List<byte[]> resealed = cipher.encryptAll(cipher.decryptAll(stale), target);
+        for (int i = 0; i < resealed.size(); i++) {
+            ContentValues cv = new ContentValues();
+            cv.put(COL_ITEM_ENCRYPTED, resealed.get(i));
+            db.update(TABLE_HISTORY, cv, COL_ENTRY_ID + "=? AND " + COL_SEQ + "=?", keys.get(i));
+        }
     }
 
     @Override
     public boolean hasData() throws Exception {
-        SqlHelper helper = new SqlHelper(context);
-        SQLiteDatabase db = helper.getReadableDatabase();
+        SQLiteDatabase db = database();
         try (Cursor c = db.query(TABLE_ENTRIES, new String[]{COL_ID}, null, null, null, null, null, "1")) {
             return c.getCount() > 0;
         }
@@ -159,12 +577,106 @@ public class SqlVaultStorage implements VaultStorage {
 
     @Override
     public void wipe() throws Exception {
+        close();
         context.deleteDatabase(DB_NAME);
     }
 
+    /** Returns free pages to the file system, then closes cached statements and the connection. */
+    @Override
+    public synchronized void close() {
+        if (helper == null) return;
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            if (upsertStatement != null) upsertStatement.close();
+            if (deleteStatement != null) deleteStatement.close();
+            if (insertHistoryStatement != null) insertHistoryStatement.close();
+            if (countHistoryStatement != null) countHistoryStatement.close();
+            if (deleteHistoryStatement != null) deleteHistoryStatement.close();
+            db.execSQL("PRAGMA incremental_vacuum");
+        } catch (RuntimeException ignored) {
+            // Closing must not fail lock/wipe; free pages are reclaimed on a later close.
+        } finally {
+            upsertStatement = null;
+            deleteStatement = null;
+            insertHistoryStatement = null;
+            countHistoryStatement = null;
+            deleteHistoryStatement = null;
+            helper.close();
+            helper = null;
+        }
+    }
+
+    /** Encrypts a non-empty value into a BLOB; empty values are stored as empty TEXT. */
+    private static void putEncrypted(ContentValues cv, String column, String value, VaultCipher cipher,
+                                     EncryptionMethod method) throws GeneralSecurityException {
+        if (value == null || value.isEmpty()) {
+            cv.put(column, "");
+        } else {
+            cv.put(column, cipher.encrypt(value.getBytes(StandardCharsets.UTF_8), method));
+        }
+    }
+
+    /** Adds {@code column} re-encrypted under {@code target} to {@code cv}, unless it already is or is empty. */
+    private static void reencryptColumn(ContentValues cv, Cursor c, int index, String column, VaultCipher cipher,
+                                        EncryptionMethod source, EncryptionMethod target) throws GeneralSecurityException {
+        if (c.getType(index) == Cursor.FIELD_TYPE_BLOB) {
+            byte[] blob = c.getBlob(index);
+            if (blob.length > 0 && VaultCipher.methodOf(blob[0]) == target) return;
+        }
+        String value = decryptColumn(c, index, cipher, source);
+        if (value == null) return;
+        putEncrypted(cv, column, value, cipher, target);
+    }
+
+    /** Binds an {@link VaultCipher#encryptAll} result; null (empty value) is stored as empty TEXT. */
+    private static void bindSealed(SQLiteStatement statement, int index, byte[] sealed) {
+        if (sealed == null) {
+            statement.bindString(index, "");
+        } else {
+            statement.bindBlob(index, sealed);
+        }
+    }
+
+    private static byte[] utf8OrNull(String value) {
+        return value == null || value.isEmpty() ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void setHistory(AuthEntry e, String historyJson) {
+        if (historyJson == null || historyJson.isEmpty()) return;
+        List<EntryHistoryItem> history = VaultJson.GSON.fromJson(historyJson, VaultJson.HISTORY_LIST_TYPE);
+        e.setHistory(history != null ? history : new ArrayList<>());
+    }
+
+    /** Decrypts a BLOB (tagged binary) or legacy Base64 TEXT column; null when the column is empty. */
+    private static String decryptColumn(Cursor c, int index, VaultCipher cipher, EncryptionMethod method)
+            throws GeneralSecurityException {
+        if (c.getType(index) == Cursor.FIELD_TYPE_BLOB) {
+            return new String(cipher.decrypt(c.getBlob(index)), StandardCharsets.UTF_8);
+        }
+        String legacy = c.getString(index);
+        if (legacy == null || legacy.isEmpty()) return null;
+        return cipher.decrypt(legacy, method);
+    }
+
     private static final class SqlHelper extends SQLiteOpenHelper {
         SqlHelper(Context context) {
             super(context, DB_NAME, null, VERSION);
+            // WAL: commits append to the log instead of rewriting pages and fsync'ing the journal.
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        /**
+         * Runs before onCreate, so page size and auto-vacuum apply to new databases from the first table.
+         * Databases created before this keep auto_vacuum off (switching needs a full VACUUM, too slow for
+         * unlock); {@code incremental_vacuum} is a no-op on them.
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.setPageSize(PAGE_SIZE);
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("PRAGMA cache_size = -" + CACHE_SIZE_KIB);
+            // Durable at checkpoints; a crash can lose only the last commits, never corrupt the database.
+            db.execSQL("PRAGMA synchronous = NORMAL");
         }
 
         @Override
@@ -177,9 +689,31 @@ public class SqlVaultStorage implements VaultStorage {
                     + COL_CREATED_AT + " INTEGER NOT NULL, "
                     + COL_UPDATED_AT + " INTEGER NOT NULL, "
                     + COL_HISTORY_ENCRYPTED + " TEXT NOT NULL)");
+            createHistoryTable(db);
+            createOrderIndex(db);
         }
 
+        /**
+         * 1 → 2 only adds the history table; moving existing history needs the key, so it happens at the next
+         * unlock through {@link #needsFormatUpgrade()}. 2 → 3 adds the list-order index.
+         */
         @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 2) createHistoryTable(db);
+            if (oldVersion < 3) createOrderIndex(db);
+        }
+
+        private static void createOrderIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_ENTRIES_ORDER + " ON " + TABLE_ENTRIES + " ("
+                    + COL_CREATED_AT + ", " + COL_ID + ")");
+        }
+
+        private static void createHistoryTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_HISTORY + " ("
+                    + COL_ENTRY_ID + " TEXT NOT NULL, "
+                    + COL_SEQ + " INTEGER NOT NULL, "
+                    + COL_ITEM_ENCRYPTED + " BLOB NOT NULL, "
+                    + "PRIMARY KEY (" + COL_ENTRY_ID + ", " + COL_SEQ + "))");
+        }
     }
 }
@@ -0,0 +1,364 @@
+package com.passvault.app.storage;
+
+import com.passvault.app.data.AuthEntry;
+import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.data.EntryHistoryItem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Copies the vault from one backend to another in batches of {@link #BATCH_SIZE} entries and verifies the copy,
+ * so memory use does not grow with the vault.
+ * <p>
+ * Every step (one batch read and written, one batch verified) runs under the caller's lock after
+ * {@link Progress#canContinue()}, so edits reach the source between steps rather than waiting for the whole copy.
+ * Batches are read with {@link VaultStorage#readEntryBatch} and upserted into the target. After each batch the
+ * caller persists the source cursor, the count and the {@link Checksum} so far ({@link Progress}), and a copy
+ * stopped by lock or process death resumes from there. A target sealed as a whole
+ * ({@link VaultStorage#writesIncrementally()} false) is written in one streamed
+ * {@link VaultStorage#saveEntries(byte[], EncryptionMethod, Iterator)} instead, and starts over when resumed.
+ * <p>
+ * Ids written to the source meanwhile are recorded by the caller ({@link Progress#changedIds()}) and copied again
+ * before verification ({@link #catchUp()}): the target's version leaves the count and checksum and the source's
+ * current one enters them. A source whose cursor is a position
+ * ({@link VaultStorage#batchCursorSurvivesWrites()} false) starts over instead if it changed mid-copy.
+ * <p>
+ * Verification reads the target back in batches and compares its count and checksum with those of the copied
+ * entries. On a mismatch (e.g. the key or data changed between a pause and its resumption) the target is wiped
+ * and copied once more from the start.
+ */
+final class StorageMigrator {
+
+    static final int BATCH_SIZE = 200;
+
+    private static final int COPIED = 0;
+    private static final int STOPPED = 1;
+    private static final int SOURCE_MOVED = 2;
+    private static final int MISMATCH = 3;
+
+    /** Decides whether to go on and receives the state to persist; called under the lock. */
+    interface Progress {
+        /** Checked before each step; false stops the copy, which can resume from the last state saved. */
+        boolean canContinue();
+
+        /** Ids written to the source since the copy started and not yet copied again. */
+        Set<String> changedIds();
+
+        /**
+         * Saves the state after a step; {@code recopied} ids leave the changed set with it.
+         *
+         * @return false to stop; the copy can resume from this state later
+         */
+        boolean onBatch(String cursor, int copied, byte[] checksum, Collection<String> recopied) throws Exception;
+    }
+
+    private final Object lock;
+    private final VaultStorage source;
+    private final VaultStorage target;
+    private final byte[] key;
+    private final EncryptionMethod method;
+    private final Progress progress;
+    private int copied;
+    private Checksum sum = new Checksum();
+
+    StorageMigrator(Object lock, VaultStorage source, VaultStorage target, byte[] key, EncryptionMethod method,
+                    Progress progress) {
+        this.lock = lock;
+        this.source = source;
+        this.target = target;
+        this.key = key;
+        this.method = method;
+        this.progress = progress;
+    }
+
+    /**
+     * Copies from a state last passed to {@link Progress#onBatch} (null cursor, 0 and null checksum for a new
+     * copy; a null cursor with entries copied means only the catch-up and verification are left), then verifies.
+     *
+     * @return true once the target holds a verified copy; false if {@code progress} asked to stop
+     * @throws IOException if the copy does not match even after starting over
+     */
+    boolean run(String cursor, int copied, byte[] checksum) throws Exception {
+        boolean fresh = checksum == null || (cursor == null && copied == 0) || !target.writesIncrementally();
+        if (!fresh) {
+            this.copied = copied;
+            sum = Checksum.restore(checksum);
+        }
+        int mismatches = 0;
+        while (true) {
+            if (fresh) {
+                if (!startOver()) return false;
+                cursor = null;
+            }
+            if (fresh || cursor != null) {
+                int result = target.writesIncrementally() ? copyBatches(cursor) : copyOnePass();
+                if (result == STOPPED) return false;
+                if (result == SOURCE_MOVED) {
+                    fresh = true;
+                    continue;
+                }
+            }
+            if (!catchUp()) return false;
+            int result = verify();
+            if (result == STOPPED) return false;
+            if (result == COPIED) return true;
+            if (++mismatches == 2) throw new IOException("Copied vault does not match the original");
+            fresh = true;
+        }
+    }
+
+    /**
+     * Copies the ids in {@link Progress#changedIds()} again, a batch per step, until none are left. A caller that
+     * holds the lock across this call and the switch to the target knows nothing is missed in between.
+     *
+     * @return false if {@code progress} asked to stop
+     */
+    boolean catchUp() throws Exception {
+        while (true) {
+            synchronized (lock) {
+                if (!progress.canContinue()) return false;
+                Set<String> changed = progress.changedIds();
+                if (changed.isEmpty()) return true;
+                List<String> ids = new ArrayList<>(Math.min(changed.size(), BATCH_SIZE));
+                for (String id : changed) {
+                    if (ids.size() == BATCH_SIZE) break;
+                    ids.add(id);
+                }
+                List<AuthEntry> upserts = new ArrayList<>(ids.size());
+                List<String> deleted = new ArrayList<>();
+                for (String id : ids) {
+                    AuthEntry stale = target.getEntryWithHistory(key, method, id);
+                    if (stale != null) {
+                        sum.remove(stale);
+                        copied--;
+                    }
+                    AuthEntry current = source.getEntryWithHistory(key, method, id);
+                    if (current != null) {
+                        sum.add(current);
+                        copied++;
+                        upserts.add(current);
+                    } else if (stale != null) {
+                        deleted.add(id);
+                    }
+                }
+                target.applyChanges(key, method, upserts, deleted);
+                if (!progress.onBatch(null, copied, sum.toBytes(), ids)) return false;
+            }
+        }
+    }
+
+    /** Wipes the target and saves an empty state; earlier changes are in the source the new copy reads. */
+    private boolean startOver() throws Exception {
+        synchronized (lock) {
+            if (!progress.canContinue()) return false;
+            target.wipe();
+            copied = 0;
+            sum = new Checksum();
+            return progress.onBatch(null, 0, sum.toBytes(), progress.changedIds());
+        }
+    }
+
+    /** True if the source changed under a cursor that does not survive writes. Caller holds the lock. */
+    private boolean sourceMoved() {
+        return !source.batchCursorSurvivesWrites() && !progress.changedIds().isEmpty();
+    }
+
+    private int copyBatches(String cursor) throws Exception {
+        List<AuthEntry> batch = new ArrayList<>(BATCH_SIZE);
+        do {
+            synchronized (lock) {
+                if (!progress.canContinue()) return STOPPED;
+                if (sourceMoved()) return SOURCE_MOVED;
+                batch.clear();
+                cursor = source.readEntryBatch(key, method, cursor, BATCH_SIZE, batch);
+                target.upsertEntries(key, method, batch);
+                for (AuthEntry e : batch) sum.add(e);
+                copied += batch.size();
+                if (!progress.onBatch(cursor, copied, sum.toBytes(), Collections.emptySet())) return STOPPED;
+            }
+        } while (cursor != null);
+        return COPIED;
+    }
+
+    /** The target is left as it was unless this returns {@link #COPIED}. */
+    private int copyOnePass() throws Exception {
+        try {
+            target.saveEntries(key, method, new SourceIterator());
+        } catch (Halt h) {
+            if (h.failure != null) throw h.failure;
+            return h.result;
+        }
+        return COPIED;
+    }
+
+    /** @return {@link #COPIED} if the target matches what was copied, else {@link #MISMATCH} or {@link #STOPPED} */
+    private int verify() throws Exception {
+        Checksum actual = new Checksum();
+        int count = 0;
+        List<AuthEntry> batch = new ArrayList<>(BATCH_SIZE);
+        String cursor = null;
+        do {
+            synchronized (lock) {
+                if (!progress.canContinue()) return STOPPED;
+                batch.clear();
+                cursor = target.readEntryBatch(key, method, cursor, BATCH_SIZE, batch);
+            }
+            for (AuthEntry e : batch) actual.add(e);
+            count += batch.size();
+        } while (cursor != null);
+        return count == copied && actual.equals(sum) ? COPIED : MISMATCH;
+    }
+
+    /** Carries a source failure or a stop out of {@link SourceIterator}, which cannot throw checked ones. */
+    private static final class Halt extends RuntimeException {
+        final Exception failure;
+        final int result;
+
+        Halt(Exception failure, int result) {
+            super(failure);
+            this.failure = failure;
+            this.result = result;
+        }
+    }
+
+    /** Source entries batch by batch for a one-pass write; consumed entries are released. */
+    private final class SourceIterator implements Iterator<AuthEntry> {
+        private final List<AuthEntry> batch = new ArrayList<>(BATCH_SIZE);
+        private int position;
+        private String cursor;
+        private boolean started;
+
+        @Override
+        public boolean hasNext() {
+            while (position == batch.size()) {
+                if (started && cursor == null) return false;
+                fill();
+            }
+            return true;
+        }
+
+        @Override
+        public AuthEntry next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            AuthEntry e = batch.get(position);
+            batch.set(position++, null);
+            return e;
+        }
+
+        private void fill() {
+            batch.clear();
+            position = 0;
+            try {
+                synchronized (lock) {
+                    if (!progress.canContinue()) throw new Halt(null, STOPPED);
+                    if (sourceMoved()) throw new Halt(null, SOURCE_MOVED);
+                    cursor = source.readEntryBatch(key, method, cursor, BATCH_SIZE, batch);
+                    started = true;
+                    for (AuthEntry e : batch) sum.add(e);
+                    copied += batch.size();
+                    if (!progress.onBatch(cursor, copied, sum.toBytes(), Collections.emptySet())) {
+                        throw new Halt(null, STOPPED);
+                    }
+                }
+            } catch (Halt h) {
+                throw h;
+            } catch (Exception e) {
+                throw new Halt(e, STOPPED);
+            }
+        }
+    }
+
+    /**
+     * Order-independent digest of a set of entries: SHA-256 over each entry's fields, summed per 64-bit lane, so
+     * backends that return entries in different orders agree. A null string counts as empty, as some backends
+     * store one as the other.
+     */
+    static final class Checksum {
+        private static final int LANES = 4;
+        private final long[] lanes = new long[LANES];
+        private final MessageDigest digest;
+
+        Checksum() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static Checksum restore(byte[] state) throws IOException {
+            if (state.length != LANES * 8) throw new IOException("Corrupt checksum state");
+            Checksum c = new Checksum();
+            ByteBuffer in = ByteBuffer.wrap(state);
+            for (int i = 0; i < LANES; i++) c.lanes[i] = in.getLong();
+            return c;
+        }
+
+        void add(AuthEntry e) {
+            ByteBuffer hash = hash(e);
+            for (int i = 0; i < LANES; i++) lanes[i] += hash.getLong();
+        }
+
+        /** Takes out an entry added before, e.g. when a copied entry is replaced by its newer version. */
+        void remove(AuthEntry e) {
+            ByteBuffer hash = hash(e);
+            for (int i = 0; i < LANES; i++) lanes[i] -= hash.getLong();
+        }
+
+        private ByteBuffer hash(AuthEntry e) {
+            putString(e.getId());
+            putString(e.getTitle());
+            putString(e.getUsername());
+            putString(e.getPasswordOrToken());
+            putLong(e.getCreatedAt());
+            putLong(e.getUpdatedAt());
+            List<EntryHistoryItem> history = e.getHistory();
+            putLong(history.size());
+            for (EntryHistoryItem h : history) {
+                putLong(h.getStartDate());
+                putLong(h.getEndDate());
+                putString(h.getPassValue());
+            }
+            return ByteBuffer.wrap(digest.digest());
+        }
+
+        byte[] toBytes() {
+            ByteBuffer out = ByteBuffer.allocate(LANES * 8);
+            for (long lane : lanes) out.putLong(lane);
+            return out.array();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Checksum && Arrays.equals(lanes, ((Checksum) o).lanes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(lanes);
+        }
+
+        private void putString(String value) {
+            byte[] utf8 = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            putLong(utf8.length);
+            digest.update(utf8);
+            Arrays.fill(utf8, (byte) 0);
+        }
+
+        private void putLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) digest.update((byte) (value >>> shift));
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package com.passvault.app.storage;
 
 /**
- * Where vault data is stored: single file (.dat) or SQLite database.
+ * Where vault data is stored: single file (.dat), SQLite database, append-only record log or sharded files.
  */
 public enum StorageType {
     FILE("File (.dat)"),
-    SQL("SQL database");
+    SQL("SQL database"),
+    LOG("Append-only log"),
+    SHARDED("Sharded files");
 
     private final String displayName;
 
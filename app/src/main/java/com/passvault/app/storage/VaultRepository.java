@@ -2,77 +2,352 @@ package com.passvault.app.storage;
 
 import android.content.Context;
 
+import com.passvault.app.crypto.KdfParams;
 import com.passvault.app.crypto.KeyDerivation;
+import com.passvault.app.crypto.VaultCipher;
 import com.passvault.app.data.AuthEntry;
 import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.data.EntryHistoryItem;
+import com.passvault.app.data.KdfAlgorithm;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Encrypted local storage for auth entries. All data encrypted with master key.
- * Persistence is delegated to {@link VaultStorage} (file or SQL), chosen in settings.
+ * Persistence is delegated to {@link VaultStorage} (file, SQL or log), chosen in settings.
+ * <p>
+ * Entry changes are write-behind: they update the in-memory cache at once and are persisted by a single
+ * background writer, which folds everything queued while it was busy into one commit. A failed write is
+ * retried with backoff and reported to the {@link WriteListener}. {@link #flush()} waits for the writer;
+ * {@link #lock(boolean)} calls it before dropping the key.
+ * <p>
+ * The list is loaded without history, and backends that can do so leave secrets encrypted until
+ * {@link #getSecret} asks for one (reveal, copy); edit and details load the full entry.
+ * <p>
+ * The list is read in pages ({@link #getEntriesPage}) in (created at, id) order. Backends that page natively
+ * (SQL) load nothing at unlock; the cache then holds only the prefix scrolled so far and grows a page at a time.
+ * Other backends decrypt as a whole anyway, so their list is loaded once at unlock and paged in memory.
  */
 public class VaultRepository {
 
+    /** Entries re-encrypted per committed batch when the encryption method changes. */
+    private static final int MIGRATION_BATCH_SIZE = 50;
+    /** Decrypted secrets kept for entries whose list copy has none (lazily loading backends). */
+    private static final int SECRET_CACHE_SIZE = 16;
+    /** Rows per storage query when the whole list is needed at once. */
+    private static final int LOAD_ALL_PAGE_SIZE = 500;
+    /** Delay before retrying a failed write; doubled per consecutive failure up to the maximum. */
+    private static final long WRITE_RETRY_DELAY_MS = 1000;
+    private static final long WRITE_RETRY_MAX_DELAY_MS = 60_000;
+
     private final Context context;
     private final PrefsManager prefs;
+    /** Serializes storage writes with the background re-encryption and guards key zeroing on lock. */
+    private final Object storageLock = new Object();
+    private final ExecutorService migrationExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "vault-reencrypt");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "vault-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    /** Guards entriesCache and the change sets, which callers mutate while the writer snapshots them. */
+    private final Object cacheLock = new Object();
+    /** A write is queued that has not taken its snapshot yet, so further changes need no new task. */
+    private boolean flushQueued;
+    private volatile Exception writeFailure;
+    // Writer thread only: consecutive failed writes, and whether a retry is already scheduled.
+    private int failedWrites;
+    private boolean retryScheduled;
+    private volatile WriteListener writeListener;
+    private volatile boolean migrationCancelled;
+    private volatile MigrationListener migrationListener;
+    private volatile StorageSwitchListener storageSwitchListener;
+    private VaultStorage activeStorage;
+    private StorageType activeStorageType;
     private byte[] currentKey;
+    /** Entries in list order: all of them once {@link #entriesComplete}, else the prefix loaded so far. */
     private List<AuthEntry> entriesCache;
+    private boolean entriesComplete;
+    /**
+     * Added or edited entries and deleted ids not yet persisted (kept until their write succeeds, so reads from
+     * storage can be corrected for them), and ids whose cached copy has history.
+     */
+    private final Map<String, AuthEntry> dirtyEntries = new LinkedHashMap<>();
+    private final Set<String> deletedIds = new LinkedHashSet<>();
+    private final Set<String> fullIds = new HashSet<>();
+    private final SecretCache secretCache = new SecretCache(SECRET_CACHE_SIZE);
+
+    /** Progress of the background re-encryption after an encryption method change; called on its thread. */
+    public interface MigrationListener {
+        void onMigrationProgress(int done, int total);
+
+        /** @param complete false if the migration stopped early (locked or failed); it resumes at next unlock */
+        void onMigrationFinished(boolean complete);
+    }
+
+    /**
+     * Progress of a storage type switch; called on the migration thread, which holds the storage while it copies
+     * (so not {@link #flush()} from here).
+     */
+    public interface StorageSwitchListener {
+        void onStorageSwitchProgress(int copied, int total);
+
+        /**
+         * @param switched false if the switch failed (the current backend stays in use) or stopped on lock (it
+         *                 resumes at next unlock)
+         */
+        void onStorageSwitchFinished(boolean switched);
+    }
+
+    /** Outcome of background writes; called on the writer thread. */
+    public interface WriteListener {
+        /** A write failed; its changes are kept and retried after a delay that grows with each failure. */
+        void onWriteFailed(Exception failure);
+
+        /** Changes were written after one or more failed attempts. */
+        void onWriteRecovered();
+    }
 
     public VaultRepository(Context context) {
         this.context = context.getApplicationContext();
         this.prefs = new PrefsManager(context);
     }
 
+    /**
+     * Storage for the current type, created once and kept for the session (the SQL backend holds its
+     * connection); replaced when the type changes and closed on lock.
+     */
     private VaultStorage getStorage() {
-        return prefs.getStorageType() == StorageType.SQL
-                ? new SqlVaultStorage(context)
-                : new FileVaultStorage(context);
+        synchronized (storageLock) {
+            StorageType type = prefs.getStorageType();
+            if (activeStorage == null || activeStorageType != type) {
+                if (activeStorage != null) activeStorage.close();
+                activeStorage = createStorage(type);
+                activeStorageType = type;
+            }
+            return activeStorage;
+        }
     }
 
-    public void unlock(char[] masterPassword) throws Exception {
-        byte[] salt = prefs.getSalt();
-        if (salt == null) throw new IllegalStateException("No salt");
-        currentKey = KeyDerivation.deriveKey(masterPassword, salt);
-        entriesCache = getStorage().loadEntries(currentKey, prefs.getEncryptionMethod(), false);
-        if (entriesCache == null) entriesCache = new ArrayList<>();
+    private VaultStorage createStorage(StorageType type) {
+        switch (type) {
+            case SQL:
+                return new SqlVaultStorage(context);
+            case LOG:
+                return new LogVaultStorage(context);
+            case SHARDED:
+                return new ShardedVaultStorage(context);
+            default:
+                return new FileVaultStorage(context);
+        }
     }
 
-    public void createVault(char[] masterPassword) throws Exception {
-        byte[] salt = KeyDerivation.generateSalt();
-        String hash = KeyDerivation.deriveHashForVerification(masterPassword, salt);
-        prefs.setSalt(salt);
-        prefs.setMasterHash(hash);
-        currentKey = KeyDerivation.deriveKey(masterPassword, salt);
-        entriesCache = new ArrayList<>();
-        saveEntries();
+    private void closeStorage() {
+        synchronized (storageLock) {
+            if (activeStorage != null) activeStorage.close();
+            activeStorage = null;
+            activeStorageType = null;
+        }
     }
 
-    public boolean verifyPassword(char[] masterPassword) {
+    /**
+     * Derives the key once, verifies it against the stored hash, unwraps the data key and loads entries.
+     * Older vaults are migrated to the envelope scheme and current on-disk format on first unlock,
+     * and a pending KDF recalibration (target unlock time or algorithm changed) is applied here, where the
+     * password is known.
+     *
+     * @return false if the password is wrong (vault stays locked)
+     */
+    public boolean unlock(char[] masterPassword) throws Exception {
         byte[] salt = prefs.getSalt();
         String hash = prefs.getMasterHash();
-        return salt != null && hash != null && KeyDerivation.verifyPassword(masterPassword, salt, hash);
+        if (salt == null || hash == null) throw new IllegalStateException("No salt");
+        int version = prefs.getKdfVersion();
+        KeyDerivation.DerivedKeys keys = KeyDerivation.derive(masterPassword, salt, version, prefs.getKdfParams());
+        if (!keys.matches(hash)) return false;
+        if (version == KeyDerivation.VERSION_ENVELOPE) {
+            byte[] wrapped = prefs.getWrappedDataKey();
+            if (wrapped == null) throw new IllegalStateException("No data key");
+            currentKey = KeyDerivation.unwrapDataKey(keys.getWrappingKey(), wrapped);
+            Arrays.fill(keys.getEncryptionKey(), (byte) 0);
+            Arrays.fill(keys.getWrappingKey(), (byte) 0);
+        } else if (version == KeyDerivation.VERSION_SPLIT) {
+            currentKey = adoptAsDataKey(keys, salt, prefs.getKdfParams());
+        } else {
+            currentKey = migrateLegacyKeys(keys, salt);
+        }
+        EncryptionMethod method = prefs.getEncryptionMethod();
+        EncryptionMethod pendingSource = prefs.getMethodMigrationSource();
+        VaultStorage storage = getStorage();
+        if (storage.needsFormatUpgrade()) {
+            // Untagged data predates any pending method switch, so it is still in the source method.
+            EncryptionMethod untagged = pendingSource != null ? pendingSource : method;
+            storage.saveEntries(currentKey, method, storage.loadEntries(currentKey, untagged, true));
+        }
+        if (prefs.isKdfRecalibrationPending()) {
+            recalibrateKdf(masterPassword);
+        }
+        synchronized (cacheLock) {
+            entriesCache = new ArrayList<>();
+            entriesComplete = !storage.supportsPagedLoading();
+            if (entriesComplete) {
+                List<AuthEntry> all = storage.loadEntryMetadata(currentKey, method);
+                if (all != null) entriesCache.addAll(all);
+                entriesCache.sort(EntryPages.ORDER);
+            }
+        }
+        resumeMethodMigration();
+        resumeStorageMigration();
+        return true;
     }
 
+    /**
+     * Re-encrypts data written with the legacy key under the split-derivation key, which then becomes the
+     * data key. If a previous migration was interrupted after writing data, only the prefs step remains.
+     */
+    private byte[] migrateLegacyKeys(KeyDerivation.DerivedKeys legacy, byte[] salt) throws Exception {
+        KeyDerivation.DerivedKeys upgraded = KeyDerivation.upgradeLegacy(legacy);
+        EncryptionMethod method = prefs.getEncryptionMethod();
+        VaultStorage storage = getStorage();
+        List<AuthEntry> full;
+        try {
+            full = storage.loadEntries(legacy.getEncryptionKey(), method, true);
+        } catch (Exception e) {
+            storage.loadEntries(upgraded.getEncryptionKey(), method, false);
+            full = null;
+        }
+        if (full != null) {
+            storage.saveEntries(upgraded.getEncryptionKey(), method, full);
+        }
+        return adoptAsDataKey(upgraded, salt, prefs.getKdfParams());
+    }
+
+    /**
+     * Moves a split-scheme vault to the envelope scheme without touching data: the key its data is already
+     * encrypted with becomes the data key, wrapped by the (independent) key-encryption key.
+     */
+    private byte[] adoptAsDataKey(KeyDerivation.DerivedKeys keys, byte[] salt, KdfParams params) throws Exception {
+        byte[] dataKey = keys.getEncryptionKey();
+        byte[] wrapped = KeyDerivation.wrapDataKey(keys.getWrappingKey(), dataKey);
+        Arrays.fill(keys.getWrappingKey(), (byte) 0);
+        prefs.setKeyMaterial(salt, keys.getVerifier(), KeyDerivation.VERSION_ENVELOPE, params, wrapped);
+        return dataKey;
+    }
+
+    public void createVault(char[] masterPassword) throws Exception {
+        currentKey = KeyDerivation.generateDataKey();
+        wrapCurrentKey(masterPassword, KeyDerivation.calibrate(prefs.getPreferredKdfAlgorithm(), prefs.getKdfTargetMillis()));
+        entriesCache = new ArrayList<>();
+        entriesComplete = true;
+        synchronized (storageLock) {
+            getStorage().saveEntries(currentKey, prefs.getEncryptionMethod(), entriesCache);
+        }
+    }
+
+    /** Only re-wraps the data key under the new password; vault data is not re-encrypted. */
     public void changeMasterPassword(char[] oldPassword, char[] newPassword) throws Exception {
-        if (currentKey == null) unlock(oldPassword);
-        List<AuthEntry> full = getStorage().loadEntries(currentKey, prefs.getEncryptionMethod(), true);
+        if (currentKey == null && !unlock(oldPassword)) throw new IllegalArgumentException("Wrong password");
+        wrapCurrentKey(newPassword, KeyDerivation.calibrate(prefs.getPreferredKdfAlgorithm(), prefs.getKdfTargetMillis()));
+    }
+
+    /**
+     * Re-measures this device and re-wraps the data key for the preferred algorithm and current target unlock time.
+     * Call when unlocked; {@code masterPassword} must be the current password.
+     */
+    public void recalibrateKdf(char[] masterPassword) throws Exception {
+        if (currentKey == null) throw new IllegalStateException("Vault locked");
+        wrapCurrentKey(masterPassword, KeyDerivation.calibrate(prefs.getPreferredKdfAlgorithm(), prefs.getKdfTargetMillis()));
+    }
+
+    /** Derives a new key-encryption key (fresh salt) for {@code password} and stores the data key wrapped by it. */
+    private void wrapCurrentKey(char[] password, KdfParams params) throws Exception {
         byte[] newSalt = KeyDerivation.generateSalt();
-        String newHash = KeyDerivation.deriveHashForVerification(newPassword, newSalt);
-        byte[] newKey = KeyDerivation.deriveKey(newPassword, newSalt);
-        prefs.setSalt(newSalt);
-        prefs.setMasterHash(newHash);
-        currentKey = newKey;
-        entriesCache = new ArrayList<>(full);
-        saveEntriesDirect();
+        KeyDerivation.DerivedKeys keys = KeyDerivation.derive(password, newSalt, KeyDerivation.VERSION_ENVELOPE, params);
+        byte[] wrapped = KeyDerivation.wrapDataKey(keys.getWrappingKey(), currentKey);
+        Arrays.fill(keys.getEncryptionKey(), (byte) 0);
+        Arrays.fill(keys.getWrappingKey(), (byte) 0);
+        prefs.setKeyMaterial(newSalt, keys.getVerifier(), KeyDerivation.VERSION_ENVELOPE, params, wrapped);
     }
 
+    /** Locks even if pending changes cannot be written; see {@link #lock(boolean)}. */
     public void lock() {
-        currentKey = null;
-        entriesCache = null;
+        try {
+            lock(true);
+        } catch (Exception ignored) {
+            // Not thrown when discarding.
+        }
+    }
+
+    /**
+     * Writes pending changes, stops a running re-encryption after its current batch (it resumes at next unlock),
+     * then drops the key and closes the storage connection.
+     *
+     * @param discardUnsaved whether to lock anyway if the changes cannot be written; they are then lost
+     * @throws Exception the write failure, if not {@code discardUnsaved}; the vault then stays unlocked with the
+     *                   changes kept (and retried), so the caller can warn before locking anyway
+     */
+    public void lock(boolean discardUnsaved) throws Exception {
+        migrationCancelled = true;
+        try {
+            flush();
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            if (!discardUnsaved) {
+                resumeMigrations();
+                throw e;
+            }
+            // Dropping the key anyway, as asked; there is nowhere left to keep the changes.
+        }
+        synchronized (storageLock) {
+            if (currentKey != null) Arrays.fill(currentKey, (byte) 0);
+            currentKey = null;
+            VaultCipher.clearCache();
+            secretCache.clear();
+            synchronized (cacheLock) {
+                entriesCache = null;
+                entriesComplete = false;
+                dirtyEntries.clear();
+                deletedIds.clear();
+                fullIds.clear();
+            }
+            closeStorage();
+        }
+    }
+
+    /**
+     * Blocks until every change made so far has been written. Call before lock/logout or anything that
+     * needs the stored state to be current; not from a {@link MigrationListener} callback.
+     *
+     * @throws Exception the write failure if changes could not be persisted (they are retried with the next write)
+     */
+    public void flush() throws Exception {
+        Future<?> done = writeExecutor.submit(this::writeBehind);
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Save failed", e.getCause());
+        }
+        Exception failure = writeFailure;
+        if (failure != null) throw failure;
     }
 
     public boolean isUnlocked() {
@@ -84,65 +359,412 @@ public class VaultRepository {
         return prefs.isVaultCreated();
     }
 
+    /** Every entry in list order; loads whatever has not been paged in yet. Prefer {@link #getEntriesPage}. */
     public List<AuthEntry> getAllEntries() {
-        if (entriesCache == null) throw new IllegalStateException("Vault locked");
-        return new ArrayList<>(entriesCache);
+        synchronized (cacheLock) {
+            if (entriesCache == null) throw new IllegalStateException("Vault locked");
+            if (entriesComplete) return new ArrayList<>(entriesCache);
+        }
+        try {
+            synchronized (storageLock) {
+                if (currentKey == null) throw new IllegalStateException("Vault locked");
+                synchronized (cacheLock) {
+                    if (entriesCache == null) throw new IllegalStateException("Vault locked");
+                    while (!entriesComplete) extendCache(LOAD_ALL_PAGE_SIZE);
+                    return new ArrayList<>(entriesCache);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load entries", e);
+        }
+    }
+
+    /**
+     * Up to {@code limit} entries in list order after {@code after} (null for the first page), as list copies
+     * without history. With a non-empty {@code titleQuery} (trimmed, lower case) only titles containing it are
+     * returned. A page shorter than {@code limit} is the last one. Unsaved changes are included.
+     */
+    public List<AuthEntry> getEntriesPage(String titleQuery, AuthEntry after, int limit) throws Exception {
+        long afterCreatedAt = after != null ? after.getCreatedAt() : 0;
+        String afterId = after != null ? after.getId() : null;
+        boolean filtered = titleQuery != null && !titleQuery.isEmpty();
+        synchronized (cacheLock) {
+            if (entriesCache == null) throw new IllegalStateException("Vault locked");
+            if (entriesComplete) return EntryPages.page(entriesCache, titleQuery, afterCreatedAt, afterId, limit);
+            int from = EntryPages.indexAfter(entriesCache, afterCreatedAt, afterId);
+            if (!filtered && entriesCache.size() - from >= limit) {
+                return new ArrayList<>(entriesCache.subList(from, from + limit));
+            }
+        }
+        synchronized (storageLock) {
+            if (currentKey == null) throw new IllegalStateException("Vault locked");
+            synchronized (cacheLock) {
+                if (entriesCache == null) throw new IllegalStateException("Vault locked");
+                if (filtered && !entriesComplete) return loadFilteredPage(titleQuery, afterCreatedAt, afterId, limit);
+                int from = EntryPages.indexAfter(entriesCache, afterCreatedAt, afterId);
+                while (!entriesComplete && entriesCache.size() - from < limit) extendCache(limit);
+                return EntryPages.page(entriesCache, titleQuery, afterCreatedAt, afterId, limit);
+            }
+        }
+    }
+
+    /**
+     * Number of entries, or of entries whose title contains {@code titleQuery}. Unless the whole list is cached,
+     * pending changes are written first, so this can wait on disk: call it off the main thread.
+     */
+    public int getEntryCount(String titleQuery) throws Exception {
+        synchronized (cacheLock) {
+            if (entriesCache == null) throw new IllegalStateException("Vault locked");
+            if (entriesComplete) return EntryPages.count(entriesCache, titleQuery);
+        }
+        flush();
+        synchronized (storageLock) {
+            if (currentKey == null) throw new IllegalStateException("Vault locked");
+            return getStorage().countEntries(currentKey, prefs.getEncryptionMethod(), titleQuery);
+        }
+    }
+
+    /** Appends the next stored page to the cached prefix. Caller holds storageLock and cacheLock. */
+    private void extendCache(int limit) throws Exception {
+        AuthEntry last = entriesCache.isEmpty() ? null : entriesCache.get(entriesCache.size() - 1);
+        long afterCreatedAt = last != null ? last.getCreatedAt() : 0;
+        String afterId = last != null ? last.getId() : null;
+        List<AuthEntry> stored = getStorage().loadEntryPage(currentKey, prefs.getEncryptionMethod(), null,
+                afterCreatedAt, afterId, limit);
+        boolean exhausted = stored.size() < limit;
+        entriesCache.addAll(withPendingChanges(stored, null, afterCreatedAt, afterId, exhausted));
+        if (exhausted) entriesComplete = true;
+    }
+
+    /** Filtered page straight from storage; not cached. Caller holds storageLock and cacheLock. */
+    private List<AuthEntry> loadFilteredPage(String titleQuery, long afterCreatedAt, String afterId, int limit)
+            throws Exception {
+        List<AuthEntry> page = new ArrayList<>();
+        boolean exhausted = false;
+        while (page.size() < limit && !exhausted) {
+            List<AuthEntry> stored = getStorage().loadEntryPage(currentKey, prefs.getEncryptionMethod(), titleQuery,
+                    afterCreatedAt, afterId, limit);
+            exhausted = stored.size() < limit;
+            page.addAll(withPendingChanges(stored, titleQuery, afterCreatedAt, afterId, exhausted));
+            if (!stored.isEmpty()) {
+                AuthEntry last = stored.get(stored.size() - 1);
+                afterCreatedAt = last.getCreatedAt();
+                afterId = last.getId();
+            }
+        }
+        return page.size() > limit ? new ArrayList<>(page.subList(0, limit)) : page;
+    }
+
+    /**
+     * A stored page as it will be once pending changes are written: deleted entries dropped, edited ones
+     * replaced, and unsaved entries falling in the page's key range added. Caller holds cacheLock.
+     */
+    private List<AuthEntry> withPendingChanges(List<AuthEntry> stored, String titleQuery, long afterCreatedAt,
+                                               String afterId, boolean exhausted) {
+        if (dirtyEntries.isEmpty() && deletedIds.isEmpty()) return stored;
+        List<AuthEntry> page = new ArrayList<>(stored.size());
+        Set<String> storedIds = new HashSet<>();
+        for (AuthEntry e : stored) {
+            storedIds.add(e.getId());
+            if (deletedIds.contains(e.getId())) continue;
+            AuthEntry pending = dirtyEntries.get(e.getId());
+            if (pending == null) {
+                page.add(e);
+            } else if (EntryPages.matches(pending, titleQuery)) {
+                page.add(pending);
+            }
+        }
+        AuthEntry last = stored.isEmpty() ? null : stored.get(stored.size() - 1);
+        for (AuthEntry pending : dirtyEntries.values()) {
+            if (storedIds.contains(pending.getId()) || !EntryPages.matches(pending, titleQuery)) continue;
+            if (afterId != null && EntryPages.compareToKey(pending, afterCreatedAt, afterId) <= 0) continue;
+            if (!exhausted && (last == null
+                    || EntryPages.compareToKey(pending, last.getCreatedAt(), last.getId()) > 0)) {
+                continue;
+            }
+            page.add(pending);
+        }
+        page.sort(EntryPages.ORDER);
+        return page;
+    }
+
+    /**
+     * Export copy of all entries with their secrets (no history); pending changes are written first.
+     */
+    public List<AuthEntry> getEntriesForExport() throws Exception {
+        if (currentKey == null) throw new IllegalStateException("Vault locked");
+        flush();
+        synchronized (storageLock) {
+            if (currentKey == null) throw new IllegalStateException("Vault locked");
+            return getStorage().loadEntries(currentKey, prefs.getEncryptionMethod(), false);
+        }
+    }
+
+    /**
+     * The entry's password as a new array the caller may zero; null if there is no such entry. A secret the
+     * list copy does not hold is decrypted on first use and then served from a small LRU that is zeroed on
+     * eviction and on lock.
+     */
+    public char[] getSecret(String id) throws Exception {
+        synchronized (cacheLock) {
+            if (entriesCache == null || deletedIds.contains(id)) return null;
+            AuthEntry cached = cachedEntry(id);
+            if (cached == null && entriesComplete) return null;
+            String loaded = cached != null ? cached.getPasswordOrToken() : null;
+            if (loaded != null) return loaded.toCharArray();
+        }
+        char[] secret = secretCache.get(id);
+        if (secret != null) return secret;
+        synchronized (storageLock) {
+            if (currentKey == null) return null;
+            secret = getStorage().loadSecret(currentKey, prefs.getEncryptionMethod(), id);
+            if (secret == null) return null;
+            secretCache.put(id, secret);
+            return secret.clone();
+        }
     }
 
     public void addEntry(AuthEntry entry) {
-        if (entriesCache == null) throw new IllegalStateException("Vault locked");
-        entriesCache.add(entry);
-        saveEntries();
+        addEntries(Collections.singletonList(entry));
     }
 
-    public void updateEntry(AuthEntry entry) {
-        if (entriesCache == null) throw new IllegalStateException("Vault locked");
-        for (int i = 0; i < entriesCache.size(); i++) {
-            if (entriesCache.get(i).getId().equals(entry.getId())) {
-                entriesCache.set(i, entry);
-                saveEntries();
+    /**
+     * Adds several entries with a single write (e.g. import). Copies are kept, so the caller may go on changing
+     * its objects while the writer serializes them.
+     */
+    public void addEntries(List<AuthEntry> entries) {
+        synchronized (cacheLock) {
+            if (entriesCache == null) throw new IllegalStateException("Vault locked");
+            for (AuthEntry added : entries) {
+                AuthEntry entry = added.copy();
+                insertIntoCache(entry);
+                fullIds.add(entry.getId());
+                // Re-added before its deletion was written: the upsert must not be followed by that delete.
+                deletedIds.remove(entry.getId());
+                dirtyEntries.put(entry.getId(), entry);
+            }
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Also accepts an entry the list has not paged in yet (e.g. one opened from search results). A copy is kept,
+     * so a write of an earlier edit still running never sees this one half applied, nor mistakes it for itself.
+     */
+    public void updateEntry(AuthEntry edited) {
+        AuthEntry entry = edited.copy();
+        synchronized (cacheLock) {
+            if (entriesCache == null) throw new IllegalStateException("Vault locked");
+            int i = indexInCache(entry.getId());
+            if (i >= 0) {
+                entriesCache.remove(i);
+                insertIntoCache(entry);
+            } else if (entriesComplete || deletedIds.contains(entry.getId())) {
                 return;
             }
+            secretCache.invalidate(entry.getId());
+            dirtyEntries.put(entry.getId(), entry);
+            scheduleFlush();
         }
     }
 
     public void deleteEntry(String id) {
-        if (entriesCache == null) throw new IllegalStateException("Vault locked");
-        entriesCache.removeIf(e -> e.getId().equals(id));
-        saveEntries();
+        synchronized (cacheLock) {
+            if (entriesCache == null) throw new IllegalStateException("Vault locked");
+            boolean cached = entriesCache.removeIf(e -> e.getId().equals(id));
+            boolean pending = dirtyEntries.remove(id) != null;
+            if (!cached && !pending && entriesComplete) return;
+            secretCache.invalidate(id);
+            fullIds.remove(id);
+            deletedIds.add(id);
+            scheduleFlush();
+        }
     }
 
+    /**
+     * A copy of the list entry, which the caller may change; one not paged in yet is read from storage (with
+     * history).
+     */
     public AuthEntry getEntryById(String id) {
-        if (entriesCache == null) return null;
-        for (AuthEntry e : entriesCache) {
-            if (e.getId().equals(id)) return e;
+        synchronized (cacheLock) {
+            if (entriesCache == null || deletedIds.contains(id)) return null;
+            AuthEntry cached = cachedEntry(id);
+            if (cached != null) return cached.copy();
+            if (entriesComplete) return null;
+        }
+        try {
+            synchronized (storageLock) {
+                if (currentKey == null) return null;
+                return getStorage().getEntryWithHistory(currentKey, prefs.getEncryptionMethod(), id);
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** Cached or unsaved copy of an entry, or null. Caller holds cacheLock. */
+    private AuthEntry cachedEntry(String id) {
+        int i = indexInCache(id);
+        return i >= 0 ? entriesCache.get(i) : dirtyEntries.get(id);
+    }
+
+    /** Caller holds cacheLock. */
+    private int indexInCache(String id) {
+        for (int i = 0; i < entriesCache.size(); i++) {
+            if (entriesCache.get(i).getId().equals(id)) return i;
         }
-        return null;
+        return -1;
+    }
+
+    /**
+     * Inserts at the entry's list position. One that sorts after a partly loaded prefix is left out; it is
+     * merged in from {@link #dirtyEntries} when that part of the list is paged in. Caller holds cacheLock.
+     */
+    private void insertIntoCache(AuthEntry entry) {
+        int at = EntryPages.indexAfter(entriesCache, entry.getCreatedAt(), entry.getId());
+        if (at < entriesCache.size() || entriesComplete) entriesCache.add(at, entry);
     }
 
     /**
-     * Load a single entry with history from storage (e.g. for More Info or Edit).
-     * Updates the entry in cache so subsequent getEntryById returns the full entry.
+     * Load a single entry with history (e.g. for More Info or Edit), including unsaved changes; nothing is
+     * flushed. Updates the entry in cache so subsequent getEntryById returns the full entry. Reads storage
+     * unless the unsaved copy already carries the full history, so call it off the main thread. Returns a copy
+     * the caller may change; pass it to {@link #updateEntry} to save the changes.
      */
     public AuthEntry getEntryWithHistory(String id) throws Exception {
-        if (currentKey == null || entriesCache == null) return null;
-        AuthEntry full = getStorage().getEntryWithHistory(currentKey, prefs.getEncryptionMethod(), id);
+        AuthEntry pending;
+        synchronized (cacheLock) {
+            if (currentKey == null || entriesCache == null || deletedIds.contains(id)) return null;
+            pending = dirtyEntries.get(id);
+            if (pending != null && fullIds.contains(id)) return pending.copy();
+        }
+        AuthEntry full;
+        synchronized (storageLock) {
+            if (currentKey == null) return null;
+            full = getStorage().getEntryWithHistory(currentKey, prefs.getEncryptionMethod(), id);
+        }
+        if (pending != null) full = full != null ? withPendingEdit(full, pending) : pending;
         if (full == null) return null;
-        for (int i = 0; i < entriesCache.size(); i++) {
-            if (entriesCache.get(i).getId().equals(id)) {
-                entriesCache.set(i, full);
-                break;
+        synchronized (cacheLock) {
+            if (entriesCache == null) return null;
+            // Cache it only if no edit arrived meanwhile; a merged copy also replaces the unsaved one it came from.
+            if (dirtyEntries.get(id) != pending) return full.copy();
+            if (pending != null) dirtyEntries.put(id, full);
+            int i = indexInCache(id);
+            if (i >= 0) entriesCache.set(i, full);
+            if (i >= 0 || pending != null) {
+                fullIds.add(id);
+                secretCache.invalidate(id);
+            }
+        }
+        return full.copy();
+    }
+
+    /**
+     * One page of an entry's history, newest first, after the {@code skip} newest items. An unsaved edit's
+     * history is served from memory; otherwise storage is read (nothing is flushed), so call it off the main
+     * thread.
+     */
+    public List<EntryHistoryItem> getHistoryPage(String id, int skip, int limit) throws Exception {
+        synchronized (cacheLock) {
+            if (currentKey == null || entriesCache == null) throw new IllegalStateException("Vault locked");
+            if (deletedIds.contains(id)) return new ArrayList<>();
+            AuthEntry pending = dirtyEntries.get(id);
+            // A partial edit without history keeps the stored history when written (see withPendingEdit).
+            if (pending != null && (fullIds.contains(id) || !pending.getHistory().isEmpty())) {
+                return VaultStorage.historyPage(pending.getHistory(), skip, limit);
             }
         }
-        return full;
+        synchronized (storageLock) {
+            if (currentKey == null) throw new IllegalStateException("Vault locked");
+            return getStorage().loadHistoryPage(currentKey, prefs.getEncryptionMethod(), id, skip, limit);
+        }
     }
 
     public EncryptionMethod getEncryptionMethod() {
         return prefs.getEncryptionMethod();
     }
 
+    /**
+     * New data is written with {@code method} right away; existing data is re-encrypted in batches on a background
+     * thread, with a durable cursor so the work resumes after a crash or lock. Per-record method tags keep
+     * both old and new data readable meanwhile.
+     */
     public void setEncryptionMethod(EncryptionMethod method) {
-        prefs.setEncryptionMethod(method);
+        synchronized (storageLock) {
+            EncryptionMethod current = prefs.getEncryptionMethod();
+            if (method == current) return;
+            prefs.beginMethodMigration(current, method);
+            // A pending storage switch copied earlier batches under the old method.
+            prefs.restartStorageMigration();
+        }
+        resumeMethodMigration();
+    }
+
+    public boolean isMethodMigrationPending() {
+        return prefs.getMethodMigrationSource() != null;
+    }
+
+    public void setMigrationListener(MigrationListener listener) {
+        migrationListener = listener;
+    }
+
+    /** Restarts the background work {@link #lock(boolean)} stopped when it ends up not locking. */
+    private void resumeMigrations() {
+        resumeMethodMigration();
+        resumeStorageMigration();
+    }
+
+    private void resumeMethodMigration() {
+        if (currentKey == null || prefs.getMethodMigrationSource() == null) return;
+        migrationCancelled = false;
+        migrationExecutor.execute(this::runMethodMigration);
+    }
+
+    /** Runs batches until done or cancelled; prefs are re-read per batch so a newer method switch restarts cleanly. */
+    private void runMethodMigration() {
+        boolean complete = false;
+        try {
+            while (!migrationCancelled) {
+                int done;
+                int total;
+                synchronized (storageLock) {
+                    EncryptionMethod source = prefs.getMethodMigrationSource();
+                    if (source == null) {
+                        complete = true;
+                        break;
+                    }
+                    if (currentKey == null) break;
+                    total = entryCount();
+                    String next = getStorage().reencryptBatch(currentKey, source, prefs.getEncryptionMethod(),
+                            prefs.getMethodMigrationCursor(), MIGRATION_BATCH_SIZE);
+                    if (next == null) {
+                        prefs.finishMethodMigration();
+                        done = total;
+                    } else {
+                        done = Math.min(prefs.getMethodMigrationDone() + MIGRATION_BATCH_SIZE, total);
+                        prefs.setMethodMigrationProgress(next, done);
+                    }
+                }
+                MigrationListener listener = migrationListener;
+                if (listener != null) listener.onMigrationProgress(done, total);
+            }
+        } catch (Exception e) {
+            complete = false;
+        }
+        MigrationListener listener = migrationListener;
+        if (listener != null) listener.onMigrationFinished(complete);
+    }
+
+    /** Caller holds storageLock. */
+    private int entryCount() throws Exception {
+        synchronized (cacheLock) {
+            if (entriesCache == null) return 0;
+            if (entriesComplete) return entriesCache.size();
+        }
+        return getStorage().countEntries(currentKey, prefs.getEncryptionMethod(), null);
     }
 
     public StorageType getStorageType() {
@@ -165,6 +787,24 @@ public class VaultRepository {
         prefs.setEnforceReuseCheck(enforce);
     }
 
+    public int getKdfTargetMillis() {
+        return prefs.getKdfTargetMillis();
+    }
+
+    /** New target takes effect at the next unlock, which recalibrates and re-derives the key. */
+    public void setKdfTargetMillis(int millis) {
+        prefs.setKdfTargetMillis(millis);
+    }
+
+    public KdfAlgorithm getKdfAlgorithm() {
+        return prefs.getPreferredKdfAlgorithm();
+    }
+
+    /** New algorithm takes effect at the next unlock, like a new target time. */
+    public void setKdfAlgorithm(KdfAlgorithm algorithm) {
+        prefs.setPreferredKdfAlgorithm(algorithm);
+    }
+
     public int getWipeAfterAttempts() {
         return prefs.getWipeAfterAttempts();
     }
@@ -189,61 +829,261 @@ public class VaultRepository {
     public void wipeAllData() throws Exception {
         lock();
         getStorage().wipe();
+        closeStorage();
+        StorageType pending = prefs.getStorageMigrationTarget();
+        if (pending != null) {
+            VaultStorage partial = createStorage(pending);
+            partial.wipe();
+            partial.close();
+        }
         prefs.clearVaultFlag();
     }
 
     /**
-     * Switch storage (file ↔ SQL) and migrate current data. Call when vault is unlocked.
+     * Switches the storage backend (file, SQL, log, shards). The vault is copied to the new backend in bounded
+     * batches on the migration thread ({@link #setStorageSwitchListener}), verified, and only then made the
+     * storage type in one prefs commit; until then the current backend stays in use. A copy stopped by lock
+     * resumes at next unlock. Call when the vault is unlocked.
      */
     public void switchStorageType(StorageType newType) {
         if (currentKey == null || entriesCache == null) throw new IllegalStateException("Vault locked");
-        if (prefs.getStorageType() == newType) return;
+        if (newType == prefs.getStorageMigrationTarget()) return;
+        if (prefs.getStorageType() == newType) {
+            prefs.cancelStorageMigration();
+            return;
+        }
+        prefs.beginStorageMigration(newType);
+        resumeStorageMigration();
+    }
+
+    /** Target of a storage switch still being copied, or null. */
+    public StorageType getPendingStorageType() {
+        return prefs.getStorageMigrationTarget();
+    }
+
+    public void setStorageSwitchListener(StorageSwitchListener listener) {
+        storageSwitchListener = listener;
+    }
+
+    private void resumeStorageMigration() {
+        if (currentKey == null || prefs.getStorageMigrationTarget() == null) return;
+        migrationCancelled = false;
+        migrationExecutor.execute(this::runStorageMigration);
+    }
+
+    /**
+     * Takes storageLock per batch, so edits keep reaching the current backend during the copy; the ids they
+     * touch are recorded ({@link #flushChanges()}) and copied again before verification and once more, with the
+     * lock held through the switch, before the copy becomes the active storage. The copy stops on lock or when
+     * another switch replaced this one; a method switch meanwhile restarts it under the new method.
+     */
+    private void runStorageMigration() {
+        boolean switched = false;
+        StorageType target = prefs.getStorageMigrationTarget();
         try {
-            List<AuthEntry> full = getStorage().loadEntries(currentKey, prefs.getEncryptionMethod(), true);
-            prefs.setStorageType(newType);
-            getStorage().saveEntries(currentKey, prefs.getEncryptionMethod(), full);
-            entriesCache = full;
+            if (target != null) switched = migrateStorage(target);
         } catch (Exception e) {
-            throw new RuntimeException("Failed to switch storage", e);
+            if (target != null && target == prefs.getStorageMigrationTarget()) prefs.cancelStorageMigration();
+        }
+        if (!switched && !migrationCancelled && currentKey != null && target != null
+                && target == prefs.getStorageMigrationTarget()) {
+            // Stopped by a method switch only: copy again after the re-encryption queued behind this run.
+            resumeStorageMigration();
+            return;
         }
+        StorageSwitchListener listener = storageSwitchListener;
+        if (listener != null) listener.onStorageSwitchFinished(switched);
     }
 
-    private void saveEntries() {
-        if (currentKey == null || entriesCache == null) return;
-        try {
-            List<AuthEntry> full = getStorage().loadEntries(currentKey, prefs.getEncryptionMethod(), true);
-            Map<String, AuthEntry> byId = new HashMap<>();
-            for (AuthEntry e : full) byId.put(e.getId(), e);
-            List<AuthEntry> toSave = new ArrayList<>();
-            for (AuthEntry cached : entriesCache) {
-                AuthEntry existing = byId.get(cached.getId());
-                if (existing != null) {
-                    existing.setTitle(cached.getTitle());
-                    existing.setUsername(cached.getUsername());
-                    existing.setPasswordOrToken(cached.getPasswordOrToken());
-                    existing.setCreatedAt(cached.getCreatedAt());
-                    existing.setUpdatedAt(cached.getUpdatedAt());
-                    if (cached.getHistory() != null && !cached.getHistory().isEmpty()) {
-                        existing.setHistory(cached.getHistory());
+    /** On success the copy becomes the active storage. */
+    private boolean migrateStorage(StorageType target) throws Exception {
+        VaultStorage source;
+        byte[] key;
+        EncryptionMethod method;
+        int total;
+        synchronized (storageLock) {
+            if (currentKey == null || target != prefs.getStorageMigrationTarget()) return false;
+            source = getStorage();
+            key = currentKey;
+            method = prefs.getEncryptionMethod();
+            total = entryCount();
+        }
+        VaultStorage destination = createStorage(target);
+        StorageMigrator migrator = new StorageMigrator(storageLock, source, destination, key, method,
+                new StorageMigrator.Progress() {
+                    @Override
+                    public boolean canContinue() {
+                        // lock() zeroes the key in place, so a new unlock must not let this copy go on with it.
+                        return currentKey == key && !migrationCancelled && activeStorage == source
+                                && target == prefs.getStorageMigrationTarget()
+                                && method == prefs.getEncryptionMethod();
                     }
-                    toSave.add(existing);
-                } else {
-                    toSave.add(cached);
-                }
+
+                    @Override
+                    public Set<String> changedIds() {
+                        return prefs.getStorageMigrationChanged();
+                    }
+
+                    @Override
+                    public boolean onBatch(String cursor, int copied, byte[] checksum, Collection<String> recopied) {
+                        if (!prefs.setStorageMigrationProgress(target, cursor, copied, checksum, recopied)) {
+                            return false;
+                        }
+                        StorageSwitchListener listener = storageSwitchListener;
+                        if (listener != null) listener.onStorageSwitchProgress(copied, Math.max(copied, total));
+                        return true;
+                    }
+                });
+        try {
+            if (!migrator.run(prefs.getStorageMigrationCursor(), prefs.getStorageMigrationDone(),
+                    prefs.getStorageMigrationChecksum())) {
+                destination.close();
+                return false;
             }
-            getStorage().saveEntries(currentKey, prefs.getEncryptionMethod(), toSave);
         } catch (Exception e) {
-            throw new RuntimeException("Save failed", e);
+            discard(destination);
+            throw e;
+        }
+        synchronized (storageLock) {
+            // Held from the last catch-up through the switch, so no write lands on the source in between.
+            try {
+                if (!migrator.catchUp()) {
+                    destination.close();
+                    return false;
+                }
+            } catch (Exception e) {
+                discard(destination);
+                throw e;
+            }
+            prefs.finishStorageMigration(target);
+            // The copy was written entirely under the current method.
+            if (prefs.getMethodMigrationSource() != null) prefs.finishMethodMigration();
+            activeStorage.close();
+            activeStorage = destination;
+            activeStorageType = target;
+            synchronized (cacheLock) {
+                if (entriesCache != null && !entriesComplete && !destination.supportsPagedLoading()) {
+                    // The new backend decrypts everything per page anyway; cache the whole list once instead.
+                    List<AuthEntry> stored = destination.loadEntryMetadata(currentKey, method);
+                    stored = stored != null ? new ArrayList<>(stored) : new ArrayList<>();
+                    stored.sort(EntryPages.ORDER);
+                    entriesCache = new ArrayList<>(withPendingChanges(stored, null, 0, null, true));
+                    entriesComplete = true;
+                }
+            }
         }
+        return true;
     }
 
-    /** Saves cache as-is (use when cache is already full, e.g. after change master password). */
-    private void saveEntriesDirect() {
-        if (currentKey == null || entriesCache == null) return;
+    private static void discard(VaultStorage partial) {
         try {
-            getStorage().saveEntries(currentKey, prefs.getEncryptionMethod(), entriesCache);
+            partial.wipe();
+        } catch (Exception ignored) {
+            // A partial copy is wiped again before the next attempt to use this backend.
+        }
+        partial.close();
+    }
+
+    /**
+     * {@code stored} (with history) updated by an edit of a list copy that never had its history loaded: the
+     * edited fields replace the stored ones, and the edit's history only if it has any. Modifies {@code stored}.
+     */
+    private static AuthEntry withPendingEdit(AuthEntry stored, AuthEntry cached) {
+        stored.setTitle(cached.getTitle());
+        stored.setUsername(cached.getUsername());
+        if (cached.getPasswordOrToken() != null) {
+            stored.setPasswordOrToken(cached.getPasswordOrToken());
+        }
+        stored.setCreatedAt(cached.getCreatedAt());
+        stored.setUpdatedAt(cached.getUpdatedAt());
+        if (cached.getHistory() != null && !cached.getHistory().isEmpty()) {
+            stored.setHistory(cached.getHistory());
+        }
+        return stored;
+    }
+
+    /** Queues a background write unless one is already waiting to pick up this change. Caller holds cacheLock. */
+    private void scheduleFlush() {
+        if (flushQueued) return;
+        flushQueued = true;
+        writeExecutor.execute(this::writeBehind);
+    }
+
+    public void setWriteListener(WriteListener listener) {
+        writeListener = listener;
+    }
+
+    /**
+     * Runs on the writer thread; the outcome is kept for {@link #flush()}. A failure schedules one retry (unless
+     * one is pending), after a delay that doubles per consecutive failure.
+     */
+    private void writeBehind() {
+        WriteListener listener = writeListener;
+        try {
+            flushChanges();
+            writeFailure = null;
+            if (failedWrites > 0) {
+                failedWrites = 0;
+                if (listener != null) listener.onWriteRecovered();
+            }
         } catch (Exception e) {
-            throw new RuntimeException("Save failed", e);
+            writeFailure = e;
+            failedWrites++;
+            if (!retryScheduled) {
+                retryScheduled = true;
+                long delay = Math.min(WRITE_RETRY_MAX_DELAY_MS, WRITE_RETRY_DELAY_MS << Math.min(failedWrites - 1, 6));
+                writeExecutor.schedule(this::retryWrite, delay, TimeUnit.MILLISECONDS);
+            }
+            if (listener != null) listener.onWriteFailed(e);
+        }
+    }
+
+    private void retryWrite() {
+        retryScheduled = false;
+        writeBehind();
+    }
+
+    /**
+     * Persists only what changed since the last flush: upserts for added/edited entries, deletes for removed ids.
+     * The change sets are taken in one snapshot, so a burst of changes becomes one storage commit. An edited
+     * entry whose history was never loaded is merged into its stored copy (one entry read), so its history is
+     * kept. Changes leave the sets only once written (unless changed again meanwhile); on failure they stay and
+     * are retried with the next flush.
+     */
+    private void flushChanges() throws Exception {
+        List<AuthEntry> changed;
+        Set<String> partialIds = new HashSet<>();
+        Set<String> deleted;
+        synchronized (cacheLock) {
+            flushQueued = false;
+            if (entriesCache == null || (dirtyEntries.isEmpty() && deletedIds.isEmpty())) return;
+            changed = new ArrayList<>(dirtyEntries.values());
+            for (AuthEntry e : changed) {
+                if (!fullIds.contains(e.getId())) partialIds.add(e.getId());
+            }
+            deleted = new HashSet<>(deletedIds);
+        }
+        synchronized (storageLock) {
+            if (currentKey == null) return;
+            VaultStorage storage = getStorage();
+            EncryptionMethod method = prefs.getEncryptionMethod();
+            // A pending storage switch copies these again; recorded first so a crash cannot hide the write.
+            List<String> ids = new ArrayList<>(changed.size() + deleted.size());
+            for (AuthEntry e : changed) ids.add(e.getId());
+            ids.addAll(deleted);
+            prefs.addStorageMigrationChanged(ids);
+            List<AuthEntry> upserts = new ArrayList<>(changed.size());
+            for (AuthEntry cached : changed) {
+                AuthEntry existing = partialIds.contains(cached.getId())
+                        ? storage.getEntryWithHistory(currentKey, method, cached.getId())
+                        : null;
+                upserts.add(existing != null ? withPendingEdit(existing, cached) : cached);
+            }
+            storage.applyChanges(currentKey, method, upserts, deleted);
+            synchronized (cacheLock) {
+                for (AuthEntry e : changed) dirtyEntries.remove(e.getId(), e);
+                deletedIds.removeAll(deleted);
+            }
         }
     }
 }
@@ -2,7 +2,11 @@ package com.passvault.app.storage;
 
 import com.passvault.app.data.AuthEntry;
 import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.data.EntryHistoryItem;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -17,16 +21,130 @@ public interface VaultStorage {
      */
     List<AuthEntry> loadEntries(byte[] key, EncryptionMethod method, boolean includeHistory) throws Exception;
 
+    /**
+     * Load all entries for the list view: no history, and backends that can decrypt fields separately also
+     * leave the secret ({@link AuthEntry#getPasswordOrToken()}) null, to be fetched with {@link #loadSecret}.
+     */
+    List<AuthEntry> loadEntryMetadata(byte[] key, EncryptionMethod method) throws Exception;
+
+    /**
+     * True if {@link #loadEntryPage} reads only the requested rows. Otherwise the repository loads the list once
+     * with {@link #loadEntryMetadata} and pages through it in memory.
+     */
+    boolean supportsPagedLoading();
+
+    /**
+     * Up to {@code limit} entries as from {@link #loadEntryMetadata}, in (created at, id) order and strictly after
+     * ({@code afterCreatedAt}, {@code afterId}); a null {@code afterId} starts at the beginning. With a non-empty
+     * {@code titleQuery} (trimmed, lower case) only entries whose title contains it are returned.
+     */
+    List<AuthEntry> loadEntryPage(byte[] key, EncryptionMethod method, String titleQuery, long afterCreatedAt,
+                                  String afterId, int limit) throws Exception;
+
+    /**
+     * Number of entries, or of entries whose title contains {@code titleQuery} when it is non-empty.
+     */
+    int countEntries(byte[] key, EncryptionMethod method, String titleQuery) throws Exception;
+
+    /**
+     * Decrypt one entry's secret; null if the entry does not exist. The caller owns (and should zero) the array.
+     */
+    char[] loadSecret(byte[] key, EncryptionMethod method, String entryId) throws Exception;
+
     /**
      * Load a single entry by id with history (e.g. for More Info or Edit).
      */
     AuthEntry getEntryWithHistory(byte[] key, EncryptionMethod method, String entryId) throws Exception;
 
+    /**
+     * One page of an entry's history, newest first: at most {@code limit} items after skipping the {@code skip}
+     * newest ones. Only the returned items need to be decrypted.
+     */
+    List<EntryHistoryItem> loadHistoryPage(byte[] key, EncryptionMethod method, String entryId, int skip, int limit)
+            throws Exception;
+
+    /**
+     * Reads up to {@code limit} entries with history that follow {@code cursor} (null = from the start) into
+     * {@code out}, so the vault can be copied to another backend without holding all of it. The order is chosen by
+     * the backend; see {@link #batchCursorSurvivesWrites()}.
+     *
+     * @return cursor for the next call, or null once every entry has been read
+     */
+    String readEntryBatch(byte[] key, EncryptionMethod method, String cursor, int limit, List<AuthEntry> out)
+            throws Exception;
+
+    /**
+     * True if a {@link #readEntryBatch} cursor stays valid across writes: an entry present throughout is read
+     * exactly once, whatever was written between batches. A backend whose cursor is a position returns false; its
+     * cursor only holds while the data does not change.
+     */
+    default boolean batchCursorSurvivesWrites() {
+        return true;
+    }
+
     /**
      * Encrypt and persist all entries (replaces existing data).
      */
     void saveEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries) throws Exception;
 
+    /**
+     * Like {@link #saveEntries(byte[], EncryptionMethod, List)} with entries taken from {@code entries} as they are
+     * written. Backends that need the whole list collect it first; see {@link #writesIncrementally()}.
+     */
+    default void saveEntries(byte[] key, EncryptionMethod method, Iterator<AuthEntry> entries) throws Exception {
+        List<AuthEntry> all = new ArrayList<>();
+        while (entries.hasNext()) all.add(entries.next());
+        saveEntries(key, method, all);
+    }
+
+    /**
+     * True if {@link #upsertEntries} costs in proportion to the entries given. A backend sealed as a whole returns
+     * false and streams a full {@link #saveEntries(byte[], EncryptionMethod, Iterator)} instead.
+     */
+    default boolean writesIncrementally() {
+        return true;
+    }
+
+    /**
+     * Encrypt and persist one entry, inserting it or replacing the stored entry with the same id.
+     * The entry must carry its full history; what is passed is what gets stored.
+     */
+    void upsertEntry(byte[] key, EncryptionMethod method, AuthEntry entry) throws Exception;
+
+    /**
+     * Like {@link #upsertEntry} for several entries, applied together.
+     */
+    void upsertEntries(byte[] key, EncryptionMethod method, List<AuthEntry> entries) throws Exception;
+
+    /**
+     * Remove one entry by id; no-op if it does not exist.
+     */
+    void deleteEntry(byte[] key, EncryptionMethod method, String entryId) throws Exception;
+
+    /**
+     * Upserts {@code upserts} and removes {@code deletedIds} (unknown ids are ignored) in one commit: one file
+     * rewrite, transaction, log append or manifest commit, depending on the backend. An id in both is removed.
+     */
+    void applyChanges(byte[] key, EncryptionMethod method, List<AuthEntry> upserts, Collection<String> deletedIds)
+            throws Exception;
+
+    /**
+     * True if stored data is (partly) in an older on-disk format. The repository then rewrites
+     * everything once after unlock so all persisted data carries method tags.
+     */
+    boolean needsFormatUpgrade() throws Exception;
+
+    /**
+     * Re-encrypts stored data that is not yet under {@code target}, in id order, covering at most
+     * {@code maxEntries} entries after {@code afterId} (null = from the start). Each call commits on its own,
+     * so an interrupted migration resumes from the last returned cursor. {@code source} is only used for data
+     * written before method tags existed.
+     *
+     * @return cursor for the next call, or null when all data is under {@code target}
+     */
+    String reencryptBatch(byte[] key, EncryptionMethod source, EncryptionMethod target, String afterId, int maxEntries)
+            throws Exception;
+
     /**
      * True if any vault data exists (so we know vault was created).
      */
@@ -36,4 +154,19 @@ public interface VaultStorage {
      * Permanently delete all vault data (used when "real wipe" is enabled after too many wrong passwords).
      */
     void wipe() throws Exception;
+
+    /**
+     * Release connections or other resources held between calls. The storage may be used again afterwards
+     * (it reopens lazily).
+     */
+    void close();
+
+    /** {@link #loadHistoryPage} over a history list that is already in memory. */
+    static List<EntryHistoryItem> historyPage(List<EntryHistoryItem> history, int skip, int limit) {
+        List<EntryHistoryItem> page = new ArrayList<>();
+        for (int i = history.size() - 1 - skip; i >= 0 && page.size() < limit; i--) {
+            page.add(history.get(i));
+        }
+        return page;
+    }
 }
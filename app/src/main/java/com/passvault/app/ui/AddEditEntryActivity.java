@@ -23,6 +23,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class AddEditEntryActivity extends AppCompatActivity {
 
@@ -30,6 +32,8 @@ public class AddEditEntryActivity extends AppCompatActivity {
 
     private ActivityAddEditEntryBinding binding;
     private VaultRepository vault;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    /** Null while an edited entry is still loading; saving waits for it. */
     private AuthEntry entry;
     private boolean isEdit;
 
@@ -47,21 +51,27 @@ public class AddEditEntryActivity extends AppCompatActivity {
         String id = getIntent().getStringExtra(EXTRA_ENTRY_ID);
         isEdit = id != null;
         if (isEdit) {
-            try {
-                entry = vault.getEntryWithHistory(id);
-            } catch (Exception e) {
-                finish();
-                return;
-            }
-            if (entry == null) {
-                finish();
-                return;
-            }
             binding.toolbar.setTitle(R.string.edit_entry);
-            binding.editTitle.setText(entry.getTitle());
-            binding.editUsername.setText(entry.getUsername());
-            binding.editPassword.setText(entry.getPasswordOrToken());
             binding.btnDelete.setVisibility(android.view.View.VISIBLE);
+            binding.btnDelete.setEnabled(false);
+            // The entry and its history may have to be read from storage.
+            loader.execute(() -> {
+                AuthEntry loaded;
+                try {
+                    loaded = vault.getEntryWithHistory(id);
+                } catch (Exception e) {
+                    loaded = null;
+                }
+                AuthEntry result = loaded;
+                runOnUiThread(() -> {
+                    if (isDestroyed()) return;
+                    if (result == null) {
+                        finish();
+                        return;
+                    }
+                    showEntry(result);
+                });
+            });
         } else {
             entry = new AuthEntry();
             binding.btnDelete.setVisibility(android.view.View.GONE);
@@ -89,7 +99,18 @@ public class AddEditEntryActivity extends AppCompatActivity {
         updateReuseDisplay();
     }
 
+    private void showEntry(AuthEntry loaded) {
+        entry = loaded;
+        binding.editTitle.setText(entry.getTitle());
+        binding.editUsername.setText(entry.getUsername());
+        binding.editPassword.setText(entry.getPasswordOrToken());
+        binding.btnDelete.setEnabled(true);
+        updateStrengthDisplay();
+        updateReuseDisplay();
+    }
+
     private void save() {
+        if (entry == null) return;
         String title = binding.editTitle.getText() != null ? binding.editTitle.getText().toString().trim() : "";
         String username = binding.editUsername.getText() != null ? binding.editUsername.getText().toString().trim() : "";
         String password = binding.editPassword.getText() != null ? binding.editPassword.getText().toString() : "";
@@ -128,6 +149,7 @@ public class AddEditEntryActivity extends AppCompatActivity {
     }
 
     private void confirmDelete() {
+        if (entry == null) return;
         new AlertDialog.Builder(this)
                 .setTitle(R.string.delete)
                 .setMessage("Delete this entry?")
@@ -180,6 +202,11 @@ public class AddEditEntryActivity extends AppCompatActivity {
             binding.btnSave.setEnabled(true);
             return;
         }
+        if (entry == null) {
+            binding.reuseMessage.setVisibility(android.view.View.GONE);
+            binding.btnSave.setEnabled(false);
+            return;
+        }
         String password = binding.editPassword.getText() != null ? binding.editPassword.getText().toString() : "";
         int X = vault.getReuseCheckCount();
         boolean reused = isPasswordReused(entry, password, X);
@@ -195,6 +222,12 @@ public class AddEditEntryActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        loader.shutdown();
+        super.onDestroy();
+    }
+
     private int strengthColor(int strength) {
         if (strength >= 75) return ContextCompat.getColor(this, R.color.health_good);
         if (strength >= 50) return ContextCompat.getColor(this, R.color.health_warning);
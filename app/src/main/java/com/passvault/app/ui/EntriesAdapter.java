@@ -17,20 +17,33 @@ import com.passvault.app.R;
 import com.passvault.app.data.AuthEntry;
 import com.passvault.app.util.HealthCalculator;
 
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class EntriesAdapter extends RecyclerView.Adapter<EntriesAdapter.Holder> {
 
     public interface Listener {
         void onEditEntryClick(AuthEntry entry);
         void onMoreInfoClick(AuthEntry entry);
+
+        /**
+         * A revealed row needs its password: load it off the main thread, then pass it (or null if it cannot be
+         * loaded) to {@link EntriesAdapter#showSecret} on the main thread.
+         */
+        void onRevealSecret(AuthEntry entry);
     }
 
     private final List<AuthEntry> entries = new ArrayList<>();
     private final Map<String, Boolean> revealedByEntryId = new HashMap<>();
+    /** Entries whose password is being loaded, so rebinding does not ask again. */
+    private final Set<String> loadingSecrets = new HashSet<>();
+    private RecyclerView recyclerView;
     private final Listener listener;
     private final int[] healthColors;
 
@@ -45,6 +58,19 @@ public class EntriesAdapter extends RecyclerView.Adapter<EntriesAdapter.Holder>
         notifyDataSetChanged();
     }
 
+    /** Adds the next page of the list below the rows already shown. */
+    public void appendEntries(List<AuthEntry> page) {
+        if (page == null || page.isEmpty()) return;
+        int start = entries.size();
+        entries.addAll(page);
+        notifyItemRangeInserted(start, page.size());
+    }
+
+    /** Last row shown, from which the next page continues; null if the list is empty. */
+    public AuthEntry getLastEntry() {
+        return entries.isEmpty() ? null : entries.get(entries.size() - 1);
+    }
+
     @NonNull
     @Override
     public Holder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -68,18 +94,14 @@ public class EntriesAdapter extends RecyclerView.Adapter<EntriesAdapter.Holder>
         h.healthBadge.setTextColor(android.graphics.Color.WHITE);
 
         boolean revealed = Boolean.TRUE.equals(revealedByEntryId.get(e.getId()));
-        String pass = e.getPasswordOrToken();
-        h.passHidden.setText(revealed && pass != null ? pass : "••••••••");
-        h.btnCopyPass.setVisibility(revealed && pass != null && !pass.isEmpty() ? View.VISIBLE : View.GONE);
-        h.btnCopyPass.setOnClickListener(v -> {
-            if (pass != null && !pass.isEmpty()) {
-                ClipboardManager cm = (ClipboardManager) h.itemView.getContext().getSystemService(Context.CLIPBOARD_SERVICE);
-                if (cm != null) {
-                    cm.setPrimaryClip(ClipData.newPlainText("password", pass));
-                    Toast.makeText(h.itemView.getContext(), R.string.copied, Toast.LENGTH_SHORT).show();
-                }
-            }
-        });
+        // Only revealed rows ask for the secret; hidden rows never decrypt it. A row kept revealed reuses the
+        // secret its holder already has, so rebinding does not decrypt again; a missing one is loaded by the
+        // listener and shown when it arrives.
+        if (!revealed || !h.holdsSecretOf(e)) h.clearSecret();
+        if (revealed && h.secret == null && listener != null && loadingSecrets.add(e.getId())) {
+            listener.onRevealSecret(e);
+        }
+        bindSecret(h);
 
         h.itemView.setOnClickListener(v -> {
             if (revealed) {
@@ -106,6 +128,59 @@ public class EntriesAdapter extends RecyclerView.Adapter<EntriesAdapter.Holder>
         });
     }
 
+    /**
+     * Shows a password loaded for {@link Listener#onRevealSecret} in the row of {@code entry}, which then owns
+     * it. Dropped (and zeroed) if the row was hidden, edited or scrolled away meanwhile.
+     */
+    public void showSecret(AuthEntry entry, char[] secret) {
+        loadingSecrets.remove(entry.getId());
+        int pos = findPositionByEntryId(entry.getId());
+        Holder h = pos >= 0 && recyclerView != null
+                ? (Holder) recyclerView.findViewHolderForAdapterPosition(pos)
+                : null;
+        boolean wanted = h != null && Boolean.TRUE.equals(revealedByEntryId.get(entry.getId()))
+                && entries.get(pos).getUpdatedAt() == entry.getUpdatedAt() && h.secret == null;
+        if (!wanted) {
+            if (secret != null) Arrays.fill(secret, '\0');
+            return;
+        }
+        h.secret = secret;
+        h.secretEntryId = entry.getId();
+        h.secretUpdatedAt = entry.getUpdatedAt();
+        bindSecret(h);
+    }
+
+    private void bindSecret(Holder h) {
+        CharSequence pass = h.secret != null ? CharBuffer.wrap(h.secret) : null;
+        h.passHidden.setText(pass != null ? pass : "••••••••");
+        h.btnCopyPass.setVisibility(pass != null && pass.length() > 0 ? View.VISIBLE : View.GONE);
+        h.btnCopyPass.setOnClickListener(v -> {
+            if (pass != null && pass.length() > 0) {
+                ClipboardManager cm = (ClipboardManager) h.itemView.getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+                if (cm != null) {
+                    cm.setPrimaryClip(ClipData.newPlainText("password", pass));
+                    Toast.makeText(h.itemView.getContext(), R.string.copied, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        this.recyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        this.recyclerView = null;
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull Holder h) {
+        h.clearSecret();
+        h.passHidden.setText("••••••••");
+    }
+
     private int healthIndex(int health) {
         if (health >= 80) return 0;
         if (health >= 50) return 1;
@@ -127,6 +202,10 @@ public class EntriesAdapter extends RecyclerView.Adapter<EntriesAdapter.Holder>
     static class Holder extends RecyclerView.ViewHolder {
         TextView title, username, passHidden, healthBadge;
         View btnEdit, btnMore, btnCopyPass;
+        /** Decrypted password shown by this row while revealed; zeroed when hidden or recycled. */
+        char[] secret;
+        String secretEntryId;
+        long secretUpdatedAt;
 
         Holder(View itemView) {
             super(itemView);
@@ -138,5 +217,16 @@ public class EntriesAdapter extends RecyclerView.Adapter<EntriesAdapter.Holder>
             btnEdit = itemView.findViewById(R.id.btnEdit);
             btnMore = itemView.findViewById(R.id.btnMore);
         }
+
+        /** True if {@link #secret} belongs to this version of {@code e} (an edit changes its updatedAt). */
+        boolean holdsSecretOf(AuthEntry e) {
+            return secret != null && e.getId().equals(secretEntryId) && e.getUpdatedAt() == secretUpdatedAt;
+        }
+
+        void clearSecret() {
+            if (secret != null) Arrays.fill(secret, '\0');
+            secret = null;
+            secretEntryId = null;
+        }
     }
 }
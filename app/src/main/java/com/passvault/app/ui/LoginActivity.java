@@ -43,33 +43,31 @@ public class LoginActivity extends AppCompatActivity {
                     Toast.makeText(this, "Passwords do not match", Toast.LENGTH_SHORT).show();
                     return;
                 }
-            } else {
-                if (!vault.verifyPassword(pass)) {
-                    failedAttempts++;
-                    showPrankMessage();
-                    return;
-                }
-                failedAttempts = 0;
-                hidePrankMessage();
             }
             setLoading(true);
             final boolean createVault = isNew;
             executor.execute(() -> {
                 Exception error = null;
+                boolean unlocked = true;
                 try {
                     if (createVault) {
                         vault.createVault(pass);
                     } else {
-                        vault.unlock(pass);
+                        // Verifies and derives the key in a single KDF run.
+                        unlocked = vault.unlock(pass);
                     }
                 } catch (Exception e) {
                     error = e;
                 }
                 final Exception resultError = error;
+                final boolean passwordAccepted = unlocked;
                 runOnUiThread(() -> {
                     setLoading(false);
                     if (resultError != null) {
                         Toast.makeText(this, "Error: " + resultError.getMessage(), Toast.LENGTH_SHORT).show();
+                    } else if (!passwordAccepted) {
+                        failedAttempts++;
+                        showPrankMessage();
                     } else {
                         failedAttempts = 0;
                         hidePrankMessage();
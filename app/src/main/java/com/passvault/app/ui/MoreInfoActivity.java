@@ -25,17 +25,27 @@ import com.passvault.app.util.PasswordStrength;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MoreInfoActivity extends AppCompatActivity {
 
     public static final String EXTRA_ENTRY_ID = "entry_id";
 
+    private static final int HISTORY_PAGE_SIZE = 20;
+
     private ActivityMoreInfoBinding binding;
     private VaultRepository vault;
+    private String entryId;
+    private HistoryAdapter historyAdapter;
+    private boolean historyComplete;
+    private boolean historyPagePending;
+    /** Storage reads run here, off the main thread. */
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
     private static final SimpleDateFormat SDF = new SimpleDateFormat("dd-MM-yyyy HH:mm", Locale.getDefault());
 
     @Override
@@ -50,21 +60,39 @@ public class MoreInfoActivity extends AppCompatActivity {
         }
 
         String id = getIntent().getStringExtra(EXTRA_ENTRY_ID);
-        AuthEntry entry = null;
-        if (id != null) {
-            try {
-                entry = vault.getEntryWithHistory(id);
-            } catch (Exception e) {
-                finish();
-                return;
-            }
-        }
-        if (entry == null) {
+        if (id == null) {
             finish();
             return;
         }
-
+        entryId = id;
         binding.toolbar.setNavigationOnClickListener(v -> finish());
+        // The entry or its secret may have to be read from storage.
+        loader.execute(() -> {
+            AuthEntry entry;
+            String password;
+            try {
+                entry = vault.getEntryById(id);
+                char[] secret = entry != null ? vault.getSecret(id) : null;
+                password = secret != null ? new String(secret) : "";
+                if (secret != null) Arrays.fill(secret, '\0');
+            } catch (Exception e) {
+                entry = null;
+                password = null;
+            }
+            AuthEntry loaded = entry;
+            String loadedPassword = password;
+            runOnUiThread(() -> {
+                if (isDestroyed()) return;
+                if (loaded == null || loadedPassword == null) {
+                    finish();
+                    return;
+                }
+                showEntry(loaded, loadedPassword);
+            });
+        });
+    }
+
+    private void showEntry(AuthEntry entry, String password) {
         binding.title.setText(entry.getTitle() != null ? entry.getTitle() : "");
 
         int health = HealthCalculator.calculate(entry.getUpdatedAt());
@@ -72,7 +100,7 @@ public class MoreInfoActivity extends AppCompatActivity {
         binding.healthProgress.setProgress(health);
         binding.healthProgress.setProgressTintList(ColorStateList.valueOf(healthColor(health)));
 
-        int strength = PasswordStrength.calculate(entry.getPasswordOrToken() != null ? entry.getPasswordOrToken() : "");
+        int strength = PasswordStrength.calculate(password);
         binding.strengthValue.setText(String.format(Locale.getDefault(), "%s (%d)", PasswordStrength.label(strength), strength));
         binding.strengthProgress.setProgress(strength);
         binding.strengthProgress.setProgressTintList(ColorStateList.valueOf(strengthColor(strength)));
@@ -84,13 +112,58 @@ public class MoreInfoActivity extends AppCompatActivity {
         binding.startDate.setText(SDF.format(new Date(entry.getCreatedAt())));
         binding.updateDate.setText(SDF.format(new Date(entry.getUpdatedAt())));
 
-        List<EntryHistoryItem> history = entry.getHistory();
-        List<EntryHistoryItem> newestFirst = new ArrayList<>(history);
-        Collections.reverse(newestFirst);
-        HistoryAdapter adapter = new HistoryAdapter(newestFirst);
-        binding.historyList.setLayoutManager(new LinearLayoutManager(this));
-        binding.historyList.setAdapter(adapter);
-        binding.historyList.setVisibility(history.isEmpty() ? View.GONE : View.VISIBLE);
+        historyAdapter = new HistoryAdapter(new ArrayList<>());
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        binding.historyList.setLayoutManager(layoutManager);
+        binding.historyList.setAdapter(historyAdapter);
+        binding.historyList.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (historyComplete || historyPagePending) return;
+                if (layoutManager.findLastVisibleItemPosition() >= historyAdapter.getItemCount() - 1) {
+                    // Not from inside the scroll callback: RecyclerView may be mid-layout here.
+                    historyPagePending = true;
+                    recyclerView.post(() -> {
+                        historyPagePending = false;
+                        loadHistoryPage();
+                    });
+                }
+            }
+        });
+        loadHistoryPage();
+    }
+
+    /** Appends the next (older) page of history, read on {@link #loader}; only viewed pages are decrypted. */
+    private void loadHistoryPage() {
+        if (historyComplete || historyPagePending) return;
+        historyPagePending = true;
+        int skip = historyAdapter.getItemCount();
+        loader.execute(() -> {
+            List<EntryHistoryItem> loaded;
+            try {
+                loaded = vault.getHistoryPage(entryId, skip, HISTORY_PAGE_SIZE);
+            } catch (Exception e) {
+                loaded = null;
+            }
+            List<EntryHistoryItem> page = loaded;
+            runOnUiThread(() -> {
+                historyPagePending = false;
+                if (isDestroyed()) return;
+                if (page == null) {
+                    historyComplete = true;
+                    return;
+                }
+                historyComplete = page.size() < HISTORY_PAGE_SIZE;
+                historyAdapter.append(page);
+                binding.historyList.setVisibility(historyAdapter.getItemCount() == 0 ? View.GONE : View.VISIBLE);
+            });
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        loader.shutdown();
+        super.onDestroy();
     }
 
     private int healthColor(int health) {
@@ -116,6 +189,13 @@ public class MoreInfoActivity extends AppCompatActivity {
             this.items = items != null ? items : new java.util.ArrayList<>();
         }
 
+        void append(List<EntryHistoryItem> page) {
+            if (page.isEmpty()) return;
+            int start = items.size();
+            items.addAll(page);
+            notifyItemRangeInserted(start, page.size());
+        }
+
         @Override
         public Holder onCreateViewHolder(ViewGroup parent, int viewType) {
             View v = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_history, parent, false);
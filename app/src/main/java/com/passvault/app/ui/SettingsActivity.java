@@ -4,6 +4,7 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.view.inputmethod.EditorInfo;
 import android.widget.ArrayAdapter;
 import android.widget.Toast;
 
@@ -15,7 +16,9 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.passvault.app.PassVaultApp;
 import com.passvault.app.R;
 import com.passvault.app.data.EncryptionMethod;
+import com.passvault.app.data.KdfAlgorithm;
 import com.passvault.app.databinding.ActivitySettingsBinding;
+import com.passvault.app.storage.PrefsManager;
 import com.passvault.app.storage.StorageType;
 import com.passvault.app.storage.VaultRepository;
 import com.passvault.app.util.ExportImport;
@@ -24,11 +27,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SettingsActivity extends AppCompatActivity {
 
     private ActivitySettingsBinding binding;
     private VaultRepository vault;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private ActivityResultLauncher<String> exportLauncher;
     private ActivityResultLauncher<String> importLauncher;
 
@@ -51,22 +57,17 @@ public class SettingsActivity extends AppCompatActivity {
             storageNames.add(t.getDisplayName());
         }
         binding.spinnerStorageType.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, storageNames));
-        int storageIdx = 0;
-        for (int i = 0; i < StorageType.values().length; i++) {
-            if (StorageType.values()[i] == vault.getStorageType()) {
-                storageIdx = i;
-                break;
-            }
-        }
-        binding.spinnerStorageType.setSelection(storageIdx);
+        binding.spinnerStorageType.setSelection(selectedStorageType().ordinal());
         binding.spinnerStorageType.setOnItemSelectedListener(new android.widget.AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(android.widget.AdapterView<?> parent, android.view.View view, int position, long id) {
                 StorageType selected = StorageType.values()[position];
-                if (selected == vault.getStorageType()) return;
+                if (selected == selectedStorageType()) return;
                 try {
                     vault.switchStorageType(selected);
-                    Toast.makeText(SettingsActivity.this, getString(R.string.storage_switched), Toast.LENGTH_SHORT).show();
+                    if (selected != vault.getStorageType()) {
+                        Toast.makeText(SettingsActivity.this, getString(R.string.storage_switch_started), Toast.LENGTH_SHORT).show();
+                    }
                 } catch (Exception e) {
                     Toast.makeText(SettingsActivity.this, "Failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
                 }
@@ -93,12 +94,85 @@ public class SettingsActivity extends AppCompatActivity {
         binding.spinnerEncryption.setOnItemSelectedListener(new android.widget.AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(android.widget.AdapterView<?> parent, android.view.View view, int position, long id) {
-                vault.setEncryptionMethod(EncryptionMethod.values()[position]);
+                EncryptionMethod selected = EncryptionMethod.values()[position];
+                if (selected == vault.getEncryptionMethod()) return;
+                vault.setEncryptionMethod(selected);
+            }
+
+            @Override
+            public void onNothingSelected(android.widget.AdapterView<?> parent) {}
+        });
+        vault.setMigrationListener(new VaultRepository.MigrationListener() {
+            @Override
+            public void onMigrationProgress(int done, int total) {
+                runOnUiThread(() -> {
+                    binding.textMigrationStatus.setVisibility(android.view.View.VISIBLE);
+                    binding.textMigrationStatus.setText(getString(R.string.reencrypt_progress, done, total));
+                });
+            }
+
+            @Override
+            public void onMigrationFinished(boolean complete) {
+                runOnUiThread(() -> {
+                    binding.textMigrationStatus.setVisibility(android.view.View.VISIBLE);
+                    binding.textMigrationStatus.setText(complete ? R.string.reencrypt_done : R.string.reencrypt_paused);
+                });
+            }
+        });
+
+        vault.setStorageSwitchListener(new VaultRepository.StorageSwitchListener() {
+            @Override
+            public void onStorageSwitchProgress(int copied, int total) {
+                runOnUiThread(() -> {
+                    binding.textMigrationStatus.setVisibility(android.view.View.VISIBLE);
+                    binding.textMigrationStatus.setText(getString(R.string.storage_switch_progress, copied, total));
+                });
+            }
+
+            @Override
+            public void onStorageSwitchFinished(boolean switched) {
+                runOnUiThread(() -> {
+                    binding.textMigrationStatus.setVisibility(android.view.View.VISIBLE);
+                    if (switched) {
+                        binding.textMigrationStatus.setText(R.string.storage_switched);
+                    } else if (vault.getPendingStorageType() == null) {
+                        binding.textMigrationStatus.setText(R.string.storage_switch_failed);
+                        binding.spinnerStorageType.setSelection(vault.getStorageType().ordinal());
+                    } else {
+                        binding.textMigrationStatus.setText(R.string.storage_switch_paused);
+                    }
+                });
+            }
+        });
+
+        // Key derivation algorithm and target (recalibrated at next unlock)
+        List<String> kdfNames = new ArrayList<>();
+        for (KdfAlgorithm a : KdfAlgorithm.values()) {
+            kdfNames.add(a.getDisplayName());
+        }
+        binding.spinnerKdfAlgorithm.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, kdfNames));
+        binding.spinnerKdfAlgorithm.setSelection(vault.getKdfAlgorithm().ordinal());
+        binding.spinnerKdfAlgorithm.setOnItemSelectedListener(new android.widget.AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(android.widget.AdapterView<?> parent, android.view.View view, int position, long id) {
+                KdfAlgorithm selected = KdfAlgorithm.values()[position];
+                if (selected == vault.getKdfAlgorithm()) return;
+                vault.setKdfAlgorithm(selected);
+                Toast.makeText(SettingsActivity.this, getString(R.string.kdf_algorithm_changed), Toast.LENGTH_SHORT).show();
             }
 
             @Override
             public void onNothingSelected(android.widget.AdapterView<?> parent) {}
         });
+        binding.editKdfTarget.setText(String.valueOf(vault.getKdfTargetMillis()));
+        // Committed only when editing ends, so partial input never schedules a recalibration.
+        binding.editKdfTarget.setOnFocusChangeListener((v, hasFocus) -> {
+            if (!hasFocus) commitKdfTarget();
+        });
+        binding.editKdfTarget.setOnEditorActionListener((v, actionId, event) -> {
+            if (actionId == EditorInfo.IME_ACTION_DONE) commitKdfTarget();
+            return false;
+        });
 
         // Password reuse check
         binding.editReuseCount.setText(String.valueOf(vault.getReuseCheckCount()));
@@ -155,7 +229,7 @@ public class SettingsActivity extends AppCompatActivity {
                     if (uri == null) return;
                     try (OutputStream out = getContentResolver().openOutputStream(uri)) {
                         if (out != null) {
-                            ExportImport.writeToStream(ExportImport.exportToJson(vault.getAllEntries()), out);
+                            ExportImport.exportToStream(vault.getEntriesForExport(), out);
                             Toast.makeText(this, "Exported", Toast.LENGTH_SHORT).show();
                         }
                     } catch (Exception e) {
@@ -168,13 +242,12 @@ public class SettingsActivity extends AppCompatActivity {
                     if (uri == null) return;
                     try (InputStream in = getContentResolver().openInputStream(uri)) {
                         if (in != null) {
-                            String json = ExportImport.readFromStream(in);
-                            List<com.passvault.app.data.AuthEntry> imported = ExportImport.importFromJson(json);
+                            List<com.passvault.app.data.AuthEntry> imported = ExportImport.importFromStream(in);
                             for (com.passvault.app.data.AuthEntry e : imported) {
                                 e.setId(java.util.UUID.randomUUID().toString());
                                 e.setHistory(new java.util.ArrayList<>());
-                                vault.addEntry(e);
                             }
+                            vault.addEntries(imported);
                             Toast.makeText(this, "Imported " + imported.size() + " entries", Toast.LENGTH_SHORT).show();
                         }
                     } catch (Exception e) {
@@ -183,6 +256,44 @@ public class SettingsActivity extends AppCompatActivity {
                 });
     }
 
+    @Override
+    protected void onPause() {
+        if (vault != null && vault.isUnlocked()) commitKdfTarget();
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (vault != null) {
+            vault.setMigrationListener(null);
+            vault.setStorageSwitchListener(null);
+        }
+        executor.shutdown();
+        super.onDestroy();
+    }
+
+    /** Saves the typed unlock-time target if it is a whole number of ms within range; otherwise shows the saved one. */
+    private void commitKdfTarget() {
+        String t = binding.editKdfTarget.getText().toString().trim();
+        int millis;
+        try {
+            millis = Integer.parseInt(t);
+        } catch (NumberFormatException e) {
+            millis = -1;
+        }
+        if (millis >= PrefsManager.MIN_KDF_TARGET_MS && millis <= PrefsManager.MAX_KDF_TARGET_MS) {
+            vault.setKdfTargetMillis(millis);
+        } else {
+            binding.editKdfTarget.setText(String.valueOf(vault.getKdfTargetMillis()));
+        }
+    }
+
+    /** The storage type being switched to, or else the current one. */
+    private StorageType selectedStorageType() {
+        StorageType pending = vault.getPendingStorageType();
+        return pending != null ? pending : vault.getStorageType();
+    }
+
     private void showChangePasswordDialog() {
         android.view.View view = getLayoutInflater().inflate(R.layout.dialog_change_password, null);
         com.google.android.material.textfield.TextInputEditText editOld = view.findViewById(R.id.editOldPassword);
@@ -199,17 +310,40 @@ public class SettingsActivity extends AppCompatActivity {
                         Toast.makeText(this, "New passwords do not match", Toast.LENGTH_SHORT).show();
                         return;
                     }
-                    try {
-                        vault.changeMasterPassword(oldP, newP);
-                        Toast.makeText(this, "Password changed", Toast.LENGTH_SHORT).show();
-                    } catch (Exception e) {
-                        Toast.makeText(this, "Failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                    }
+                    setChangingPassword(true);
+                    // Calibration and the KDF run take up to the target unlock time each (and Argon2id's memory).
+                    executor.execute(() -> {
+                        Exception error = null;
+                        try {
+                            vault.changeMasterPassword(oldP, newP);
+                        } catch (Exception e) {
+                            error = e;
+                        } finally {
+                            java.util.Arrays.fill(oldP, '\0');
+                            java.util.Arrays.fill(newP, '\0');
+                            java.util.Arrays.fill(conf, '\0');
+                        }
+                        final Exception resultError = error;
+                        runOnUiThread(() -> {
+                            if (isDestroyed()) return;
+                            setChangingPassword(false);
+                            if (resultError != null) {
+                                Toast.makeText(this, "Failed: " + resultError.getMessage(), Toast.LENGTH_SHORT).show();
+                            } else {
+                                Toast.makeText(this, "Password changed", Toast.LENGTH_SHORT).show();
+                            }
+                        });
+                    });
                 })
                 .setNegativeButton(android.R.string.cancel, null)
                 .show();
     }
 
+    private void setChangingPassword(boolean changing) {
+        binding.progressChangePassword.setVisibility(changing ? android.view.View.VISIBLE : android.view.View.GONE);
+        binding.btnChangePassword.setEnabled(!changing);
+    }
+
     private void launchExport() {
         exportLauncher.launch("passvault_export.json");
     }
@@ -219,7 +353,24 @@ public class SettingsActivity extends AppCompatActivity {
     }
 
     private void logout() {
-        vault.lock();
+        try {
+            vault.lock(false);
+        } catch (Exception e) {
+            new AlertDialog.Builder(this)
+                    .setTitle(R.string.unsaved_changes_title)
+                    .setMessage(getString(R.string.unsaved_changes_message, String.valueOf(e.getMessage())))
+                    .setPositiveButton(R.string.logout_anyway, (d, w) -> {
+                        vault.lock();
+                        showLogin();
+                    })
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .show();
+            return;
+        }
+        showLogin();
+    }
+
+    private void showLogin() {
         Intent intent = new Intent(this, LoginActivity.class);
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
         startActivity(intent);
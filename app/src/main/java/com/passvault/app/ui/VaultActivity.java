@@ -8,6 +8,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
@@ -21,16 +22,26 @@ import com.passvault.app.data.AuthEntry;
 import com.passvault.app.databinding.ActivityVaultBinding;
 import com.passvault.app.storage.VaultRepository;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class VaultActivity extends AppCompatActivity implements EntriesAdapter.Listener {
 
+    /** Entries fetched per page as the list scrolls. */
+    private static final int PAGE_SIZE = 50;
+
     private ActivityVaultBinding binding;
     private VaultRepository vault;
     private EntriesAdapter adapter;
-    private List<AuthEntry> allEntries = new ArrayList<>();
+    private boolean listComplete;
+    private boolean pagePending;
+    /** List loads run here in order, off the main thread. */
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    /** Bumped by each reload, so results of an older load are not shown. */
+    private int listGeneration;
     private String searchQuery = "";
     private TextView countTextView;
     private static final int[] HEALTH_COLORS = new int[]{
@@ -84,8 +95,24 @@ public class VaultActivity extends AppCompatActivity implements EntriesAdapter.L
         });
 
         adapter = new EntriesAdapter(this, HEALTH_COLORS);
-        binding.recycler.setLayoutManager(new LinearLayoutManager(this));
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        binding.recycler.setLayoutManager(layoutManager);
         binding.recycler.setAdapter(adapter);
+        binding.recycler.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (listComplete || pagePending) return;
+                // Fetch ahead: the next page arrives while half a page is still left to scroll through.
+                if (layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - PAGE_SIZE / 2) {
+                    // Not from inside the scroll callback: RecyclerView may be mid-layout here.
+                    pagePending = true;
+                    recyclerView.post(() -> {
+                        pagePending = false;
+                        loadNextPage();
+                    });
+                }
+            }
+        });
         refreshList();
 
         binding.searchBox.addTextChangedListener(new TextWatcher() {
@@ -117,33 +144,88 @@ public class VaultActivity extends AppCompatActivity implements EntriesAdapter.L
         if (vault.isUnlocked()) refreshList();
     }
 
+    @Override
+    protected void onDestroy() {
+        // Recycles the rows, which zeroes any revealed password they hold.
+        if (binding != null) binding.recycler.setAdapter(null);
+        loader.shutdown();
+        super.onDestroy();
+    }
+
+    /** Reloads as many rows as are shown now, so the scroll position survives returning from edit. */
     private void refreshList() {
-        allEntries = vault.getAllEntries();
-        if (allEntries == null) allEntries = new ArrayList<>();
-        applyFilter();
+        reloadList(Math.max(PAGE_SIZE, adapter.getItemCount()));
     }
 
+    /** Restarts the list at its first page for the current search; later pages load on scroll. */
     private void applyFilter() {
-        List<AuthEntry> filtered = allEntries;
-        if (searchQuery != null && !searchQuery.isEmpty()) {
-            filtered = new ArrayList<>();
-            for (AuthEntry e : allEntries) {
-                String title = e.getTitle();
-                if (title != null && title.toLowerCase(Locale.getDefault()).contains(searchQuery)) {
-                    filtered.add(e);
-                }
+        reloadList(PAGE_SIZE);
+    }
+
+    /**
+     * Loads the first {@code limit} rows and the counts on {@link #loader}; pending writes may be flushed there
+     * first, so this never waits on disk on the main thread.
+     */
+    private void reloadList(int limit) {
+        int generation = ++listGeneration;
+        String query = searchQuery;
+        loader.execute(() -> {
+            List<AuthEntry> page;
+            int total;
+            int shown;
+            try {
+                page = vault.getEntriesPage(query, null, limit);
+                total = vault.getEntryCount(null);
+                shown = query == null || query.isEmpty() ? total : vault.getEntryCount(query);
+            } catch (Exception e) {
+                runOnUiThread(() -> {
+                    if (generation == listGeneration && !isDestroyed()) {
+                        Toast.makeText(this, "Could not load entries", Toast.LENGTH_SHORT).show();
+                    }
+                });
+                return;
             }
-        }
-        adapter.setEntries(filtered);
-        int total = allEntries.size();
-        int shown = filtered.size();
-        if (countTextView != null) {
-            if (searchQuery == null || searchQuery.isEmpty()) {
-                countTextView.setText(getString(R.string.entries_count, total));
-            } else {
-                countTextView.setText(getString(R.string.entries_count_filtered, shown, total));
+            runOnUiThread(() -> {
+                if (generation != listGeneration || isDestroyed()) return;
+                listComplete = page.size() < limit;
+                adapter.setEntries(page);
+                if (countTextView != null) {
+                    if (query == null || query.isEmpty()) {
+                        countTextView.setText(getString(R.string.entries_count, total));
+                    } else {
+                        countTextView.setText(getString(R.string.entries_count_filtered, shown, total));
+                    }
+                }
+            });
+        });
+    }
+
+    /** Appends the page after the last row shown; dropped if the list was reloaded meanwhile. */
+    private void loadNextPage() {
+        if (listComplete) return;
+        int generation = listGeneration;
+        String query = searchQuery;
+        AuthEntry after = adapter.getLastEntry();
+        pagePending = true;
+        loader.execute(() -> {
+            List<AuthEntry> loaded;
+            try {
+                loaded = vault.getEntriesPage(query, after, PAGE_SIZE);
+            } catch (Exception e) {
+                loaded = null;
             }
-        }
+            List<AuthEntry> page = loaded;
+            runOnUiThread(() -> {
+                pagePending = false;
+                if (generation != listGeneration || isDestroyed()) return;
+                if (page == null) {
+                    listComplete = true;
+                    return;
+                }
+                listComplete = page.size() < PAGE_SIZE;
+                adapter.appendEntries(page);
+            });
+        });
     }
 
     @Override
@@ -160,6 +242,29 @@ public class VaultActivity extends AppCompatActivity implements EntriesAdapter.L
         startActivity(i);
     }
 
+    /** A cache miss reads storage, which may wait on a write holding it, so the secret loads on {@link #loader}. */
+    @Override
+    public void onRevealSecret(AuthEntry entry) {
+        loader.execute(() -> {
+            char[] loaded;
+            try {
+                loaded = vault.getSecret(entry.getId());
+            } catch (Exception e) {
+                loaded = null;
+            }
+            char[] secret = loaded;
+            boolean failed = loaded == null;
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    if (secret != null) Arrays.fill(secret, '\0');
+                    return;
+                }
+                if (failed) Toast.makeText(this, "Could not decrypt password", Toast.LENGTH_SHORT).show();
+                adapter.showSecret(entry, secret);
+            });
+        });
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
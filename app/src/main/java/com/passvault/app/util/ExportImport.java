@@ -1,47 +1,71 @@
 package com.passvault.app.util;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.passvault.app.data.AuthEntry;
 
+import java.io.BufferedWriter;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Scanner;
 
 /**
- * Export/import vault entries as JSON (no history).
+ * Export/import vault entries as JSON (no history), through {@link VaultJson}'s streaming adapters.
  */
 public final class ExportImport {
 
-    private static final Gson GSON = new Gson();
+    private static final int EXPORT_VERSION = 1;
 
     private ExportImport() {
     }
 
     /** Export entries without history (current data only). */
     public static String exportToJson(List<AuthEntry> entries) {
-        List<AuthEntry> copy = new java.util.ArrayList<>();
-        for (AuthEntry e : entries) {
-            AuthEntry c = new AuthEntry();
-            c.setId(e.getId());
-            c.setTitle(e.getTitle());
-            c.setUsername(e.getUsername());
-            c.setPasswordOrToken(e.getPasswordOrToken());
-            c.setCreatedAt(e.getCreatedAt());
-            c.setUpdatedAt(e.getUpdatedAt());
-            c.setHistory(new java.util.ArrayList<>());
-            copy.add(c);
+        StringWriter out = new StringWriter();
+        try {
+            writeExport(entries, out);
+        } catch (java.io.IOException e) {
+            throw new IllegalStateException(e);
         }
-        ExportData data = new ExportData();
-        data.version = 1;
-        data.entries = copy;
-        return GSON.toJson(data);
+        return out.toString();
+    }
+
+    /** Like {@link #exportToJson} but written straight to {@code out}, which is flushed and left open. */
+    public static void exportToStream(List<AuthEntry> entries, OutputStream out) throws java.io.IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writeExport(entries, writer);
+        writer.flush();
+    }
+
+    private static void writeExport(List<AuthEntry> entries, Writer target) throws java.io.IOException {
+        JsonWriter out = new JsonWriter(target);
+        out.beginObject();
+        out.name("version").value(EXPORT_VERSION);
+        out.name("entries").beginArray();
+        for (AuthEntry e : entries) VaultJson.writeEntry(out, e, false);
+        out.endArray();
+        out.endObject();
+        out.flush();
     }
 
     public static List<AuthEntry> importFromJson(String json) {
-        ExportData data = GSON.fromJson(json, ExportData.class);
+        return importFrom(new StringReader(json));
+    }
+
+    /** Parses an export as it is read; the file is never held as one string. */
+    public static List<AuthEntry> importFromStream(InputStream in) {
+        return importFrom(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    private static List<AuthEntry> importFrom(Reader reader) {
+        ExportData data = VaultJson.GSON.fromJson(reader, ExportData.class);
         if (data == null || data.entries == null) return java.util.Collections.emptyList();
         return data.entries;
     }
@@ -0,0 +1,204 @@
+package com.passvault.app.util;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.passvault.app.data.AuthEntry;
+import com.passvault.app.data.EntryHistoryItem;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The one {@link Gson} for everything still stored or exchanged as JSON (export/import, vault data from earlier
+ * releases). The data model is read and written by hand-written streaming adapters instead of reflection; the
+ * field names are those reflective Gson used, so existing JSON reads unchanged. Null fields are omitted.
+ */
+public final class VaultJson {
+
+    public static final Type HISTORY_LIST_TYPE = new TypeToken<List<EntryHistoryItem>>() {}.getType();
+
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(AuthEntry.class, new AuthEntryAdapter().nullSafe())
+            .registerTypeAdapter(EntryHistoryItem.class, new HistoryItemAdapter().nullSafe())
+            .registerTypeAdapter(ExportImport.ExportData.class, new ExportDataAdapter().nullSafe())
+            .create();
+
+    private VaultJson() {
+    }
+
+    /** Writes one entry object; without history an empty {@code history} array is written. */
+    public static void writeEntry(JsonWriter out, AuthEntry e, boolean includeHistory) throws IOException {
+        out.beginObject();
+        writeString(out, "id", e.getId());
+        writeString(out, "title", e.getTitle());
+        writeString(out, "username", e.getUsername());
+        writeString(out, "passwordOrToken", e.getPasswordOrToken());
+        out.name("createdAt").value(e.getCreatedAt());
+        out.name("updatedAt").value(e.getUpdatedAt());
+        out.name("history").beginArray();
+        if (includeHistory) {
+            for (EntryHistoryItem h : e.getHistory()) writeHistoryItem(out, h);
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    /**
+     * Reads one entry object, or returns null for a JSON null. History is skipped unparsed unless
+     * {@code includeHistory}. Missing fields get the defaults of {@link AuthEntry#AuthEntry()}.
+     */
+    public static AuthEntry readEntry(JsonReader in, boolean includeHistory) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        String id = null;
+        String title = null;
+        String username = null;
+        String password = null;
+        long now = System.currentTimeMillis();
+        long createdAt = now;
+        long updatedAt = now;
+        List<EntryHistoryItem> history = new ArrayList<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id": id = in.nextString(); break;
+                case "title": title = in.nextString(); break;
+                case "username": username = in.nextString(); break;
+                case "passwordOrToken": password = in.nextString(); break;
+                case "createdAt": createdAt = in.nextLong(); break;
+                case "updatedAt": updatedAt = in.nextLong(); break;
+                case "history":
+                    if (!includeHistory) {
+                        in.skipValue();
+                        break;
+                    }
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        EntryHistoryItem item = readHistoryItem(in);
+                        if (item != null) history.add(item);
+                    }
+                    in.endArray();
+                    break;
+                default: in.skipValue(); break;
+            }
+        }
+        in.endObject();
+        return new AuthEntry(id, title, username, password, createdAt, updatedAt, history);
+    }
+
+    private static void writeHistoryItem(JsonWriter out, EntryHistoryItem h) throws IOException {
+        out.beginObject();
+        out.name("startDate").value(h.getStartDate());
+        out.name("endDate").value(h.getEndDate());
+        writeString(out, "passValue", h.getPassValue());
+        out.endObject();
+    }
+
+    private static EntryHistoryItem readHistoryItem(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        EntryHistoryItem item = new EntryHistoryItem();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "startDate": item.setStartDate(in.nextLong()); break;
+                case "endDate": item.setEndDate(in.nextLong()); break;
+                case "passValue": item.setPassValue(in.nextString()); break;
+                default: in.skipValue(); break;
+            }
+        }
+        in.endObject();
+        return item;
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) out.name(name).value(value);
+    }
+
+    private static final class AuthEntryAdapter extends TypeAdapter<AuthEntry> {
+        @Override
+        public void write(JsonWriter out, AuthEntry value) throws IOException {
+            writeEntry(out, value, true);
+        }
+
+        @Override
+        public AuthEntry read(JsonReader in) throws IOException {
+            return readEntry(in, true);
+        }
+    }
+
+    private static final class HistoryItemAdapter extends TypeAdapter<EntryHistoryItem> {
+        @Override
+        public void write(JsonWriter out, EntryHistoryItem value) throws IOException {
+            writeHistoryItem(out, value);
+        }
+
+        @Override
+        public EntryHistoryItem read(JsonReader in) throws IOException {
+            return readHistoryItem(in);
+        }
+    }
+
+    private static final class ExportDataAdapter extends TypeAdapter<ExportImport.ExportData> {
+        @Override
+        public void write(JsonWriter out, ExportImport.ExportData value) throws IOException {
+            out.beginObject();
+            out.name("version").value(value.version);
+            if (value.entries != null) {
+                out.name("entries").beginArray();
+                for (AuthEntry e : value.entries) writeEntry(out, e, true);
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public ExportImport.ExportData read(JsonReader in) throws IOException {
+            ExportImport.ExportData data = new ExportImport.ExportData();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "version": data.version = in.nextInt(); break;
+                    case "entries":
+                        data.entries = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            AuthEntry e = readEntry(in, true);
+                            if (e != null) data.entries.add(e);
+                        }
+                        in.endArray();
+                        break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return data;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.passvault.app.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared bounded pool for CPU-bound vault work (decrypt + parse) that is split across cores.
+ * Threads are daemons so the pool never keeps the process alive.
+ */
+public final class WorkerPool {
+
+    private static volatile ExecutorService executor;
+
+    private WorkerPool() {
+    }
+
+    public static int parallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static ExecutorService get() {
+        ExecutorService e = executor;
+        if (e == null) {
+            synchronized (WorkerPool.class) {
+                e = executor;
+                if (e == null) {
+                    AtomicInteger count = new AtomicInteger();
+                    e = Executors.newFixedThreadPool(parallelism(), r -> {
+                        Thread t = new Thread(r, "vault-worker-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    executor = e;
+                }
+            }
+        }
+        return e;
+    }
+}
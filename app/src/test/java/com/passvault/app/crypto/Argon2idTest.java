@@ -0,0 +1,56 @@
+package com.passvault.app.crypto;
+
+import static com.passvault.app.crypto.Blake2bTest.hex;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The RFC 9106 section 5.3 vector (secret and associated data, four lanes) and the Argon2id version 0x13
+ * vectors of the reference implementation, which vary passes, memory, lanes, password and salt.
+ */
+public class Argon2idTest {
+
+    @Test
+    public void rfc9106Vector() throws Exception {
+        byte[] tag = Argon2id.hash(filled(32, 0x01), filled(16, 0x02), filled(8, 0x03), filled(12, 0x04),
+                3, 32, 4, 32);
+        assertEquals("0d640df58d78766c08c037a34a8b53c9d01ef0452d75b65eb52520e96b01e659", hex(tag));
+    }
+
+    @Test
+    public void referenceVectors() throws Exception {
+        assertReference("09316115d5cf24ed5a15a31a3ba326e5cf32edc24702987c02b6566f61913cf7",
+                2, 1 << 16, 1, "password", "somesalt");
+        assertReference("78fe1ec91fb3aa5657d72e710854e4c3d9b9198c742f9616c2f085bed95b2e8c",
+                2, 1 << 18, 1, "password", "somesalt");
+        assertReference("9dfeb910e80bad0311fee20f9c0e2b12c17987b4cac90c2ef54d5b3021c68bfe",
+                2, 1 << 8, 1, "password", "somesalt");
+        assertReference("6d093c501fd5999645e0ea3bf620d7b8be7fd2db59c20d9fff9539da2bf57037",
+                2, 1 << 8, 2, "password", "somesalt");
+        assertReference("f6a5adc1ba723dddef9b5ac1d464e180fcd9dffc9d1cbf76cca2fed795d9ca98",
+                1, 1 << 16, 1, "password", "somesalt");
+        assertReference("9025d48e68ef7395cca9079da4c4ec3affb3c8911fe4f86d1a2520856f63172c",
+                4, 1 << 16, 1, "password", "somesalt");
+        assertReference("0b84d652cf6b0c4beaef0dfe278ba6a80df6696281d7e0d2891b817d8c458fde",
+                2, 1 << 16, 1, "differentpassword", "somesalt");
+        assertReference("bdf32b05ccc42eb15d58fd19b1f856b113da1e9a5874fdcc544308565aa8141c",
+                2, 1 << 16, 1, "password", "diffsalt");
+    }
+
+    private static void assertReference(String expected, int iterations, int memoryKib, int lanes,
+                                        String password, String salt) throws Exception {
+        byte[] tag = Argon2id.hash(password.getBytes(StandardCharsets.US_ASCII),
+                salt.getBytes(StandardCharsets.US_ASCII), iterations, memoryKib, lanes, 32);
+        assertEquals("t=" + iterations + " m=" + memoryKib + " p=" + lanes, expected, hex(tag));
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] b = new byte[length];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+}
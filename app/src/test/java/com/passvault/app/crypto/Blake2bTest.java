@@ -0,0 +1,70 @@
+package com.passvault.app.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/** RFC 7693 vectors plus block-boundary and short-output cases checked against a reference BLAKE2b. */
+public class Blake2bTest {
+
+    @Test
+    public void rfc7693Abc() {
+        assertEquals("ba80a53f981c4d0d6a2797b69f12f6e94c212f14685ac4b74b12bb6fdbffa2d1"
+                        + "7d87c5392aab792dc252d5de4533cc9518d38aa8dbf1925ab92386edd4009923",
+                hex(new Blake2b(64).update("abc".getBytes(StandardCharsets.US_ASCII)).digest()));
+    }
+
+    @Test
+    public void emptyInput() {
+        assertEquals("786a02f742015903c6c6fd852552d272912f4740e15847618a86e217f71f5419"
+                        + "d25e1031afee585313896444934eb04b903a685b1448b755d56f701afe9be2ce",
+                hex(new Blake2b(64).digest()));
+    }
+
+    @Test
+    public void exactlyOneBlock() {
+        assertEquals("2319e3789c47e2daa5fe807f61bec2a1a6537fa03f19ff32e87eecbfd64b7e0e"
+                        + "8ccff439ac333b040f19b0c4ddd11a61e24ac1fe0f10a039806c5dcc0da3d115",
+                hex(new Blake2b(64).update(sequence(128)).digest()));
+    }
+
+    @Test
+    public void oneByteIntoSecondBlock() {
+        assertEquals("f59711d44a031d5f97a9413c065d1e614c417ede998590325f49bad2fd444d3e"
+                        + "4418be19aec4e11449ac1a57207898bc57d76a1bcf3566292c20c683a5c4648f",
+                hex(new Blake2b(64).update(sequence(129)).digest()));
+    }
+
+    @Test
+    public void shortOutputs() {
+        assertEquals("d9ef0fc521b4266d16df662bec231bc2ec3989e7adeaf63169c295dc239dbbea",
+                hex(new Blake2b(32).update(sequence(255)).digest()));
+        assertEquals("fc9a2426db78846a07219bc181a52bae9a62eacc",
+                hex(new Blake2b(20).update(sequence(1000)).digest()));
+    }
+
+    @Test
+    public void splitUpdatesMatchOneUpdate() {
+        byte[] data = sequence(1000);
+        Blake2b split = new Blake2b(64);
+        for (int offset = 0; offset < data.length; offset += 37) {
+            split.update(data, offset, Math.min(37, data.length - offset));
+        }
+        assertEquals(hex(new Blake2b(64).update(data).digest()), hex(split.digest()));
+    }
+
+    /** Bytes 0, 1, ..., 250, 0, 1, ... */
+    private static byte[] sequence(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) b[i] = (byte) (i % 251);
+        return b;
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.passvault.app.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One unlock's key derivation: PBKDF2 at the default iteration count against Argon2id at the default memory
+ * cost, for a range of passes. Run {@link #main} on the JVM; device numbers differ, which is why
+ * {@link KeyDerivation#calibrate} measures at runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KdfBenchmark {
+
+    @Param({"PBKDF2", "ARGON2ID_1", "ARGON2ID_3"})
+    public String kdf;
+
+    private final char[] password = "correct horse battery staple".toCharArray();
+    private final byte[] salt = KeyDerivation.generateSalt();
+    private KdfParams params;
+
+    @Setup
+    public void setUp() {
+        params = kdf.equals("PBKDF2")
+                ? KdfParams.defaults()
+                : KdfParams.argon2id(Integer.parseInt(kdf.substring("ARGON2ID_".length())),
+                        KdfParams.DEFAULT_ARGON2_MEMORY_KIB, 4);
+    }
+
+    @Benchmark
+    public KeyDerivation.DerivedKeys derive() throws Exception {
+        return KeyDerivation.derive(password, salt, KeyDerivation.CURRENT_VERSION, params);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(KdfBenchmark.class.getSimpleName()).build()).run();
+    }
+}
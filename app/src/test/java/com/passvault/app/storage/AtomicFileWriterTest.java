@@ -0,0 +1,136 @@
+package com.passvault.app.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Fault injection for the commit protocol: writes are killed or left truncated at random byte offsets, and
+ * the target must always hold either its old or its new contents in full.
+ */
+public class AtomicFileWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicFileWriter.DirectorySync realSync = AtomicFileWriter.directorySync;
+    private int directorySyncs;
+    private File target;
+
+    @Before
+    public void setUp() throws IOException {
+        AtomicFileWriter.directorySync = dir -> directorySyncs++;
+        target = folder.newFile("vault.dat");
+    }
+
+    @After
+    public void tearDown() {
+        AtomicFileWriter.directorySync = realSync;
+    }
+
+    @Test
+    public void writeReplacesContentsAndSyncsDirectoryOnce() throws Exception {
+        byte[] contents = randomBytes(new Random(1), 10_000);
+        AtomicFileWriter.write(target, out -> out.write(contents));
+        assertArrayEquals(contents, Files.readAllBytes(target.toPath()));
+        assertFalse(AtomicFileWriter.tempFile(target).exists());
+        assertEquals(1, directorySyncs);
+    }
+
+    @Test
+    public void writeKilledAtRandomOffsetKeepsOldContents() throws Exception {
+        Random random = new Random(42);
+        byte[] old = randomBytes(random, 5_000);
+        AtomicFileWriter.write(target, out -> out.write(old));
+        for (int i = 0; i < 200; i++) {
+            byte[] next = randomBytes(random, 1 + random.nextInt(20_000));
+            int killAt = random.nextInt(next.length);
+            try {
+                AtomicFileWriter.write(target, out -> new KillingStream(out, killAt).write(next));
+                fail("write should have been killed at " + killAt);
+            } catch (IOException expected) {
+                // The writer was killed; the old contents must be untouched.
+            }
+            assertArrayEquals("killed at " + killAt, old, Files.readAllBytes(target.toPath()));
+            assertFalse(AtomicFileWriter.tempFile(target).exists());
+        }
+    }
+
+    @Test
+    public void truncatedTempFromCrashIsNeverReadAndIsReplaced() throws Exception {
+        Random random = new Random(7);
+        byte[] first = randomBytes(random, 8_000);
+        AtomicFileWriter.write(target, out -> out.write(first));
+        byte[] old = first;
+        for (int i = 0; i < 50; i++) {
+            byte[] next = randomBytes(random, 1 + random.nextInt(20_000));
+            // A process killed before the rename leaves a prefix of the new contents in the temp file.
+            try (FileOutputStream leftover = new FileOutputStream(AtomicFileWriter.tempFile(target))) {
+                leftover.write(next, 0, random.nextInt(next.length));
+            }
+            assertArrayEquals(old, Files.readAllBytes(target.toPath()));
+
+            AtomicFileWriter.write(target, out -> out.write(next));
+            assertArrayEquals(next, Files.readAllBytes(target.toPath()));
+            assertFalse(AtomicFileWriter.tempFile(target).exists());
+            old = next;
+        }
+    }
+
+    @Test
+    public void failedDirectorySyncFailsTheCommit() throws Exception {
+        AtomicFileWriter.directorySync = dir -> {
+            throw new IOException("fsync failed");
+        };
+        try {
+            AtomicFileWriter.write(target, out -> out.write(new byte[] {1, 2, 3}));
+            fail("a failed directory sync must be reported");
+        } catch (IOException expected) {
+            assertEquals("fsync failed", expected.getMessage());
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /** Passes {@code limit} bytes through, then fails as if the process died mid-write. */
+    private static final class KillingStream extends OutputStream {
+        private final OutputStream out;
+        private int remaining;
+
+        KillingStream(OutputStream out, int limit) {
+            this.out = out;
+            this.remaining = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int n = Math.min(len, remaining);
+            out.write(b, off, n);
+            remaining -= n;
+            if (n < len) throw new IOException("killed");
+        }
+    }
+}
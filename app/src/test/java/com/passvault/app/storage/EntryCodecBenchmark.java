@@ -0,0 +1,112 @@
+package com.passvault.app.storage;
+
+import com.google.gson.stream.JsonWriter;
+import com.passvault.app.data.AuthEntry;
+import com.passvault.app.data.EntryHistoryItem;
+import com.passvault.app.util.VaultJson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a whole vault payload with the Gson streaming format of earlier releases against
+ * {@link EntryCodec}, at 1k, 10k and 100k entries with two history items each. Run {@link #main} on the JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntryCodecBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    private List<AuthEntry> vault;
+    private byte[] json;
+    private byte[] codec;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        vault = new ArrayList<>(entries);
+        long now = 1_700_000_000_000L;
+        for (int i = 0; i < entries; i++) {
+            List<EntryHistoryItem> history = new ArrayList<>();
+            long changed = now - random.nextInt(1_000_000);
+            history.add(new EntryHistoryItem(now - 2_000_000_000L, now - 1_000_000_000L, randomPassword(random)));
+            history.add(new EntryHistoryItem(now - 1_000_000_000L, changed, randomPassword(random)));
+            vault.add(new AuthEntry(null, "Account " + i, "user" + i + "@example.com", randomPassword(random),
+                    now - 2_000_000_000L, changed, history));
+        }
+        json = encodeJson();
+        codec = encodeCodec();
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonWriter out = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+            out.beginArray();
+            for (AuthEntry e : vault) VaultJson.writeEntry(out, e, true);
+            out.endArray();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeCodec() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EntryCodec.Writer writer = new EntryCodec.Writer(bytes);
+        for (AuthEntry e : vault) writer.write(e);
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public List<AuthEntry> decodeJson() throws IOException {
+        return EntryBlockFormat.readEntries(
+                new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8), true);
+    }
+
+    @Benchmark
+    public List<AuthEntry> decodeCodec() throws IOException {
+        List<AuthEntry> list = new ArrayList<>(entries);
+        EntryCodec.Reader reader = new EntryCodec.Reader(ByteBuffer.wrap(codec));
+        for (AuthEntry e = reader.next(true); e != null; e = reader.next(true)) list.add(e);
+        return list;
+    }
+
+    private static String randomPassword(Random random) {
+        char[] chars = new char[16];
+        for (int i = 0; i < chars.length; i++) chars[i] = (char) ('!' + random.nextInt(94));
+        return new String(chars);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(EntryCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,223 @@
+package com.passvault.app.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.passvault.app.data.AuthEntry;
+import com.passvault.app.data.EntryHistoryItem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EntryCodecTest {
+
+    @Test
+    public void payloadRoundTrip() throws Exception {
+        List<AuthEntry> entries = sampleEntries();
+        byte[] payload = encode(entries);
+        assertTrue(EntryCodec.isEncoded(payload, 0, payload.length));
+
+        EntryCodec.Reader reader = new EntryCodec.Reader(ByteBuffer.wrap(payload));
+        for (AuthEntry expected : entries) assertSameEntry(expected, reader.next(true), true);
+        assertNull(reader.next(true));
+    }
+
+    @Test
+    public void historyIsSkippedUnlessRequested() throws Exception {
+        List<AuthEntry> entries = sampleEntries();
+        EntryCodec.Reader reader = new EntryCodec.Reader(ByteBuffer.wrap(encode(entries)));
+        for (AuthEntry expected : entries) assertSameEntry(expected, reader.next(false), false);
+        assertNull(reader.next(false));
+    }
+
+    @Test
+    public void singleEntryAndHistoryItemRoundTrip() throws Exception {
+        AuthEntry entry = sampleEntries().get(0);
+        byte[] payload = EntryCodec.encodeEntry(entry);
+        assertSameEntry(entry, EntryCodec.decodeEntry(payload, 0, payload.length, true), true);
+
+        EntryHistoryItem item = entry.getHistory().get(0);
+        assertSameItem(item, EntryCodec.decodeHistoryItem(EntryCodec.encodeHistoryItem(item)));
+    }
+
+    @Test
+    public void unknownTagsAreSkipped() throws Exception {
+        // A record from a newer writer: an unknown string field, an unknown varint field and an unknown
+        // history item field around the known ones.
+        Bytes item = new Bytes().varintField(1, 10).stringField(40, "future").stringField(3, "old");
+        Bytes record = new Bytes()
+                .stringField(99, "ignored")
+                .stringField(1, "id-1")
+                .stringField(2, "Title")
+                .varintField(100, Long.MAX_VALUE)
+                .stringField(4, "secret")
+                .varintField(6, 20)
+                .field(7, item.toByteArray());
+        byte[] payload = new Bytes().raw(EntryCodec.VERSION).varint(record.size()).raw(record.toByteArray())
+                .toByteArray();
+
+        AuthEntry e = EntryCodec.decodeEntry(payload, 0, payload.length, true);
+        assertEquals("id-1", e.getId());
+        assertEquals("Title", e.getTitle());
+        assertNull(e.getUsername());
+        assertEquals("secret", e.getPasswordOrToken());
+        assertEquals(20, e.getUpdatedAt());
+        assertEquals(1, e.getHistory().size());
+        assertEquals(10, e.getHistory().get(0).getStartDate());
+        assertEquals("old", e.getHistory().get(0).getPassValue());
+    }
+
+    @Test
+    public void truncatedRecordsFail() throws Exception {
+        AuthEntry entry = sampleEntries().get(0);
+        byte[] payload = EntryCodec.encodeEntry(entry);
+        for (int length = 2; length < payload.length; length++) {
+            byte[] truncated = Arrays.copyOf(payload, length);
+            try {
+                EntryCodec.decodeEntry(truncated, 0, truncated.length, true);
+                fail("decoded a record truncated to " + length + " of " + payload.length + " bytes");
+            } catch (IOException expected) {
+                // Every cut falls inside the only record.
+            }
+        }
+    }
+
+    @Test
+    public void truncatedHistoryItemFails() {
+        byte[] item = EntryCodec.encodeHistoryItem(new EntryHistoryItem(1_700_000_000_000L, 1_700_000_100_000L, "pw"));
+        try {
+            EntryCodec.decodeHistoryItem(Arrays.copyOf(item, item.length - 1));
+            fail("decoded a truncated history item");
+        } catch (IOException expected) {
+            // The pass value is cut short.
+        }
+    }
+
+    @Test
+    public void emptyOrForeignPayloadFails() {
+        assertFails(new byte[0]);
+        assertFails("[{\"id\":\"x\"}]".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void varintOverflowFails() {
+        byte[] tooLong = new byte[12];
+        Arrays.fill(tooLong, (byte) 0x80);
+        tooLong[0] = EntryCodec.VERSION;
+        tooLong[11] = 0x01;
+        assertFails(tooLong);
+
+        // A record length beyond the payload.
+        assertFails(new Bytes().raw(EntryCodec.VERSION).varint(1L << 40).raw(new byte[8]).toByteArray());
+        // A field length beyond its record.
+        byte[] field = new Bytes().varint(2).varint(1000).toByteArray();
+        assertFails(new Bytes().raw(EntryCodec.VERSION).varint(field.length + 4).raw(field).raw(new byte[4])
+                .toByteArray());
+    }
+
+    private static void assertFails(byte[] payload) {
+        try {
+            EntryCodec.decodeEntry(payload, 0, payload.length, true);
+            fail("decoded a corrupt payload");
+        } catch (IOException expected) {
+            // Corruption is reported as IOException, never as a runtime exception.
+        }
+    }
+
+    private static byte[] encode(List<AuthEntry> entries) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EntryCodec.Writer writer = new EntryCodec.Writer(out);
+        for (AuthEntry e : entries) writer.write(e);
+        return out.toByteArray();
+    }
+
+    private static List<AuthEntry> sampleEntries() {
+        List<AuthEntry> entries = new ArrayList<>();
+        List<EntryHistoryItem> history = new ArrayList<>();
+        history.add(new EntryHistoryItem(1_600_000_000_000L, 1_650_000_000_000L, "first"));
+        history.add(new EntryHistoryItem(1_650_000_000_000L, 1_700_000_000_000L, "zweites Passwört ✓"));
+        entries.add(new AuthEntry("a", "Mail", "me@example.com", "p@ss", 1_600_000_000_000L,
+                1_700_000_000_000L, history));
+        entries.add(new AuthEntry("b", "", null, null, 0, -1, new ArrayList<>()));
+        StringBuilder longTitle = new StringBuilder();
+        for (int i = 0; i < 500; i++) longTitle.append("Ω").append(i);
+        entries.add(new AuthEntry("c", longTitle.toString(), "user", "token", Long.MAX_VALUE, 1, null));
+        return entries;
+    }
+
+    private static void assertSameEntry(AuthEntry expected, AuthEntry actual, boolean withHistory) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getUsername(), actual.getUsername());
+        assertEquals(expected.getPasswordOrToken(), actual.getPasswordOrToken());
+        assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+        assertEquals(expected.getUpdatedAt(), actual.getUpdatedAt());
+        if (!withHistory) {
+            assertTrue(actual.getHistory().isEmpty());
+            return;
+        }
+        assertEquals(expected.getHistory().size(), actual.getHistory().size());
+        for (int i = 0; i < expected.getHistory().size(); i++) {
+            assertSameItem(expected.getHistory().get(i), actual.getHistory().get(i));
+        }
+    }
+
+    private static void assertSameItem(EntryHistoryItem expected, EntryHistoryItem actual) {
+        assertEquals(expected.getStartDate(), actual.getStartDate());
+        assertEquals(expected.getEndDate(), actual.getEndDate());
+        assertEquals(expected.getPassValue(), actual.getPassValue());
+    }
+
+    /** Hand-built payload bytes in the codec's field layout. */
+    private static final class Bytes {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Bytes raw(int b) {
+            out.write(b);
+            return this;
+        }
+
+        Bytes raw(byte[] b) {
+            out.write(b, 0, b.length);
+            return this;
+        }
+
+        Bytes varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+            return this;
+        }
+
+        Bytes field(int tag, byte[] value) {
+            return varint(tag).varint(value.length).raw(value);
+        }
+
+        Bytes stringField(int tag, String value) {
+            return field(tag, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Bytes varintField(int tag, long value) {
+            return field(tag, new Bytes().varint(value).toByteArray());
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
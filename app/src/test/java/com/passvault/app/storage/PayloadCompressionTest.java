@@ -0,0 +1,115 @@
+package com.passvault.app.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class PayloadCompressionTest {
+
+    @Test
+    public void smallPayloadsAreLeftAsTheyAre() {
+        byte[] small = repetitive(PayloadCompression.MIN_BYTES - 1);
+        assertNull(PayloadCompression.compress(small, 0, small.length));
+    }
+
+    @Test
+    public void incompressiblePayloadsAreLeftAsTheyAre() {
+        byte[] random = new byte[4096];
+        new Random(3).nextBytes(random);
+        assertNull(PayloadCompression.compress(random, 0, random.length));
+    }
+
+    @Test
+    public void lzRoundTrip() throws Exception {
+        assertRoundTrip(repetitive(PayloadCompression.MIN_BYTES), PayloadCompression.LZ);
+        assertRoundTrip(repetitive(PayloadCompression.DEFLATE_MIN_BYTES - 1), PayloadCompression.LZ);
+        // Long literal runs and long matches use the 255-run length extensions.
+        byte[] mixed = new byte[12_000];
+        new Random(5).nextBytes(mixed);
+        Arrays.fill(mixed, 2_000, 9_000, (byte) 'x');
+        assertRoundTrip(mixed, PayloadCompression.LZ);
+    }
+
+    @Test
+    public void deflateRoundTrip() throws Exception {
+        assertRoundTrip(repetitive(PayloadCompression.DEFLATE_MIN_BYTES), PayloadCompression.DEFLATE);
+        assertRoundTrip(repetitive(1 << 20), PayloadCompression.DEFLATE);
+    }
+
+    @Test
+    public void offsetInputRoundTrip() throws Exception {
+        byte[] plain = repetitive(1000);
+        byte[] padded = new byte[plain.length + 20];
+        System.arraycopy(plain, 0, padded, 7, plain.length);
+        byte[] compressed = PayloadCompression.compress(padded, 7, plain.length);
+        assertNotNull(compressed);
+        assertArrayEquals(plain, PayloadCompression.decompress(compressed, 0, compressed.length));
+    }
+
+    @Test
+    public void legacyAndCodecPayloadsAreNotCompressed() {
+        byte[] json = "[{\"id\":\"x\"}]".getBytes(StandardCharsets.UTF_8);
+        assertFalse(PayloadCompression.isCompressed(json, 0, json.length));
+        byte[] codec = {EntryCodec.VERSION, 0, 0, 0, 0, 0};
+        assertFalse(PayloadCompression.isCompressed(codec, 0, codec.length));
+    }
+
+    @Test
+    public void truncatedPayloadsFail() {
+        for (byte[] plain : new byte[][] {repetitive(4000), repetitive(64 * 1024)}) {
+            byte[] compressed = PayloadCompression.compress(plain, 0, plain.length);
+            assertNotNull(compressed);
+            for (int length = 0; length < compressed.length; length++) {
+                byte[] truncated = Arrays.copyOf(compressed, length);
+                try {
+                    PayloadCompression.decompress(truncated, 0, truncated.length);
+                    fail("decompressed a payload truncated to " + length + " of " + compressed.length + " bytes");
+                } catch (IOException expected) {
+                    // Truncation is reported, never returned as shorter or zero-filled data.
+                }
+            }
+        }
+    }
+
+    @Test
+    public void corruptLengthFails() {
+        byte[] plain = repetitive(4000);
+        byte[] compressed = PayloadCompression.compress(plain, 0, plain.length);
+        compressed[1] = (byte) 0x7F;
+        try {
+            PayloadCompression.decompress(compressed, 0, compressed.length);
+            fail("accepted an original length of over 2 GB");
+        } catch (IOException expected) {
+            // Rejected before allocating.
+        }
+    }
+
+    private static void assertRoundTrip(byte[] plain, byte codec) throws IOException {
+        byte[] compressed = PayloadCompression.compress(plain, 0, plain.length);
+        assertNotNull(compressed);
+        assertEquals(codec, compressed[0]);
+        assertTrue(compressed.length < plain.length);
+        assertTrue(PayloadCompression.isCompressed(compressed, 0, compressed.length));
+        assertArrayEquals(plain, PayloadCompression.decompress(compressed, 0, compressed.length));
+    }
+
+    /** Entry-like text: repeated field names with varying values. */
+    private static byte[] repetitive(int length) {
+        StringBuilder sb = new StringBuilder(length + 64);
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append("{\"title\":\"Account ").append(i).append("\",\"username\":\"user").append(i % 7).append("\"}");
+        }
+        return sb.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+}